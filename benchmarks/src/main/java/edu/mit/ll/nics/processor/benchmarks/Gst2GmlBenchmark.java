@@ -0,0 +1,117 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.nics.processor.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Transforms samplegst.xml with the gst2gml stylesheets. Like the camel xslt endpoint, the
+ * stylesheet is compiled once and a transformer is created per message.
+ * 
+ * <p>The stylesheets are XSLT 2.0, so Saxon is the processor that matters. The JDK's XSLTC runs
+ * them in forwards compatible mode, and is included for comparison.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Gst2GmlBenchmark {
+
+	private static final Charset utf8 = Charset.forName("UTF-8");
+
+	@Param({"gst2gml-air.xslt", "gst2gml-ground.xslt"})
+	public String stylesheet;
+
+	@Param({"net.sf.saxon.TransformerFactoryImpl", 
+		"com.sun.org.apache.xalan.internal.xsltc.trax.TransformerFactoryImpl"})
+	public String transformerFactory;
+
+	private Templates templates;
+
+	private String gst;
+
+	@Setup
+	public void setup() throws Exception {
+		final TransformerFactory factory = TransformerFactory.newInstance(transformerFactory, 
+				Gst2GmlBenchmark.class.getClassLoader());
+		templates = factory.newTemplates(new StreamSource(new StringReader(read("/" + stylesheet))));
+		gst = read("/samplegst.xml");
+	}
+
+	@Benchmark
+	public String transform() throws Exception {
+		final StringWriter gml = new StringWriter();
+		templates.newTransformer().transform(new StreamSource(new StringReader(gst)), new StreamResult(gml));
+		return gml.toString();
+	}
+
+	private static String read(String resource) throws IOException {
+		final InputStream in = Gst2GmlBenchmark.class.getResourceAsStream(resource);
+		if(in == null) {
+			throw new IOException("Missing benchmark resource: " + resource);
+		}
+		try {
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			final byte[] buffer = new byte[4096];
+			int read;
+			while((read = in.read(buffer)) > 0) {
+				out.write(buffer, 0, read);
+			}
+			return new String(out.toByteArray(), utf8);
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,127 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.nics.processor.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import edu.mit.ll.nics.processor.jsonpliconsumer.JSONPLIEntry;
+import edu.mit.ll.nics.processor.jsonpliconsumer.OCFAProcessor;
+
+/**
+ * Converts JSON PLI entries to GML as the json-pli-consumer does: {@link JSONPLIEntry#toXML} on its
+ * own, a single OCFA AVL entry, and a whole OCFA feed of the given size, short of sending the
+ * results on.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonPliBenchmark {
+
+	/** Number of entries in the OCFA feed */
+	@Param({"100"})
+	public int units;
+
+	private OCFAProcessor ocfa;
+
+	private JSONObject ocfaEntry;
+
+	private String ocfaFeed;
+
+	private JSONPLIEntry entry;
+
+	@Setup
+	public void setup() throws JSONException {
+		ocfa = new OCFAProcessor();
+		ocfa.init();
+		ocfa.setTypeName("ocfa");
+		ocfa.setSrsName("EPSG:4326");
+		ocfa.setNicsSchemaLocationURI("http://localhost/nics");
+		ocfa.setWfsServiceURI("http://localhost/geoserver/wfs?service=WFS&version=1.0.0&request=DescribeFeatureType");
+		ocfa.setWfsSchemasURI("http://localhost/geoserver/schemas/wfs/1.0.0/WFS-basic.xsd");
+		
+		final StringBuilder feed = new StringBuilder("[");
+		for(int i = 0; i < units; i++) {
+			if(i > 0) {
+				feed.append(',');
+			}
+			feed.append(ocfaJson(i));
+		}
+		ocfaFeed = feed.append(']').toString();
+		ocfaEntry = new JSONObject(ocfaJson(0));
+		entry = ocfa.toEntry(ocfaEntry);
+	}
+
+	@Benchmark
+	public String toXML() {
+		return entry.toXML(false);
+	}
+
+	@Benchmark
+	public String ocfaEntry() throws JSONException {
+		return ocfa.toEntry(ocfaEntry).toXML(false);
+	}
+
+	@Benchmark
+	public void ocfaFeed(Blackhole blackhole) throws JSONException {
+		final JSONArray entries = new JSONArray(ocfaFeed);
+		for(int i = 0; i < entries.length(); i++) {
+			blackhole.consume(ocfa.toEntry(entries.getJSONObject(i)).toXML(false));
+		}
+	}
+
+	private static String ocfaJson(int unit) {
+		return "{\"Battalion\":\"4\",\"CallNumber\":null,\"Description\":\"Engine " + unit + "\","
+				+ "\"Division\":\"2\",\"FleetId\":\"E" + unit + "\",\"Heading\":" + (unit * 7 % 360) + ","
+				+ "\"LastUpdatedDateTime\":\"/Date(1445789454000-0700)/\","
+				+ "\"LastUpdatedDateTimeAsString\":\"2015-10-25 09:10:54\","
+				+ "\"Latitude\":" + (33.6 + unit * 0.001) + ",\"Longitude\":" + (-117.8 - unit * 0.001) + ","
+				+ "\"Speed\":" + (unit % 60) + ",\"Station\":\"" + (unit % 80) + "\",\"Status\":\"AV\","
+				+ "\"UnitId\":\"E" + unit + "\"}";
+	}
+}
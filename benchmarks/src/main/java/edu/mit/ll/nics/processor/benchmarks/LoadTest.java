@@ -0,0 +1,439 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.nics.processor.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.management.JMX;
+import javax.management.ObjectName;
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.component.properties.PropertiesComponent;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.SimpleRegistry;
+import org.apache.camel.model.RouteDefinition;
+import org.springframework.beans.factory.config.PropertyPlaceholderConfigurer;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.beans.factory.xml.XmlBeanDefinitionReader;
+import org.springframework.core.io.FileSystemResource;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import edu.mit.ll.nics.processor.gml.consumer.GMLToDBProcessor;
+import edu.mit.ll.nics.processor.gml.consumer.IngestMetrics;
+import edu.mit.ll.nics.processor.gml.consumer.IngestMetricsMXBean;
+import edu.mit.ll.nics.processor.gml.consumer.LatencyHistogram;
+
+/**
+ * End to end load test of the geodatafeed-consumer. Runs the gml2gisRoute, with an in-JVM seda
+ * queue in place of RabbitMQ, against a local PostGIS database, feeds it a {@link SyntheticFleet},
+ * and reports throughput and latency.
+ * 
+ * <p>The route and its beans are loaded from the module's own Spring XML, and configured from its
+ * properties file, with camel.gmlUrl pointed at the seda queue. Any of those properties can be
+ * overridden on the command line:</p>
+ * 
+ * <pre>
+ * java -cp target/benchmarks.jar edu.mit.ll.nics.processor.benchmarks.LoadTest \
+ *     --units=500 --rate=1 --duration=120 --out_of_order=0.05 \
+ *     --db.name=nics_loadtest --batch.size=100 --write.lanes=4
+ * </pre>
+ * 
+ * <p>Load test options, with their defaults:</p>
+ * <ul>
+ * <li>units=100: number of units in the fleet</li>
+ * <li>rate=1: reports per second per unit</li>
+ * <li>duration=60: seconds to send reports for</li>
+ * <li>out_of_order=0.05: share of reports older than their unit's last one</li>
+ * <li>consumers=4: concurrent consumers of the seda queue</li>
+ * <li>table=loadtest_tracks: table the fleet reports to</li>
+ * <li>create_table=true: create the table if it doesn't exist</li>
+ * <li>config=../geodatafeed-consumer/src/main/config: the consumer's config directory</li>
+ * <li>report: file to write the report to, as well as standard out</li>
+ * </ul>
+ * 
+ * <p>The database defaults to postgres@localhost:5432/nics_loadtest, and must have PostGIS.
+ * End to end latency runs from sending a report to its batch returning from the processor, so
+ * with coalescing on it no longer includes the write.</p>
+ */
+public class LoadTest {
+
+	private static final Charset utf8 = Charset.forName("UTF-8");
+
+	private static final String camel_ns = "http://camel.apache.org/schema/spring";
+
+	private static final String placeholder_ns = "http://camel.apache.org/schema/placeholder";
+
+	private static final String route_id = "gml2gisRoute";
+
+	private static final String metrics_name = "edu.mit.ll.nics.processor:type=GMLToDBProcessor,name=IngestMetrics";
+
+	private final Properties options;
+
+	/** Latency from sending a report to its batch leaving the processor */
+	private final LatencyHistogram endToEnd = new LatencyHistogram();
+
+	/** System.nanoTime() each report in flight was sent at, by its body */
+	private final Map<Object, Long> sentTimes = Collections.synchronizedMap(new IdentityHashMap<Object, Long>());
+
+	private LoadTest(Properties options) {
+		this.options = options;
+	}
+
+	public static void main(String[] args) throws Exception {
+		final Properties options = new Properties();
+		for(String arg : args) {
+			final int equals = arg.indexOf('=');
+			if(!arg.startsWith("--") || equals < 0) {
+				System.err.println("Expected --key=value, got: " + arg);
+				System.exit(2);
+			}
+			options.setProperty(arg.substring(2, equals), arg.substring(equals + 1));
+		}
+		new LoadTest(options).run();
+	}
+
+	private String option(String key, String defaultValue) {
+		return options.getProperty(key, defaultValue);
+	}
+
+	private void run() throws Exception {
+		final int units = Integer.parseInt(option("units", "100"));
+		final double rate = Double.parseDouble(option("rate", "1"));
+		final long duration = Long.parseLong(option("duration", "60"));
+		final double outOfOrder = Double.parseDouble(option("out_of_order", "0.05"));
+		final int consumers = Integer.parseInt(option("consumers", "4"));
+		final String table = option("table", "loadtest_tracks");
+		final File config = new File(option("config", "../geodatafeed-consumer/src/main/config"));
+		
+		final Properties properties = consumerProperties(config, consumers);
+		if(Boolean.parseBoolean(option("create_table", "true"))) {
+			createTable(properties, table);
+		}
+		
+		final DefaultListableBeanFactory beans = new DefaultListableBeanFactory();
+		final SimpleRegistry registry = new SimpleRegistry();
+		final DefaultCamelContext camel = new DefaultCamelContext(registry);
+		try {
+			final File spring = new File(config, "spring/geodatafeed-consumer.xml");
+			final GMLToDBProcessor processor = createProcessor(beans, spring, properties);
+			final String gmlUrl = properties.getProperty("camel.gmlUrl");
+			
+			// The route's beans, with the processor wrapped to time each batch it returns
+			registry.put("geoToPostGIS", recording(processor));
+			registry.put("trackBatchStrategy", beans.getBean("trackBatchStrategy"));
+			
+			final PropertiesComponent placeholders = new PropertiesComponent();
+			placeholders.setLocation(new File(config, "geodatafeed-consumer.properties").toURI().toString());
+			placeholders.setOverrideProperties(properties);
+			camel.addComponent("properties", placeholders);
+			
+			camel.addRouteDefinitions(loadRoute(camel, spring));
+			camel.start();
+			
+			final IngestMetricsMXBean metrics = JMX.newMXBeanProxy(ManagementFactory.getPlatformMBeanServer(), 
+					new ObjectName(metrics_name), IngestMetricsMXBean.class);
+			
+			final SyntheticFleet fleet = new SyntheticFleet(units, table, outOfOrder, (long) (1000 / rate), 
+					Long.parseLong(option("seed", "1")));
+			final ProducerTemplate producer = camel.createProducerTemplate();
+			
+			System.out.println("Sending " + (units * rate) + " reports/s from " + units + " units for " + duration + "s");
+			final long start = System.nanoTime();
+			final long sent = send(producer, gmlUrl, fleet, units * rate, TimeUnit.SECONDS.toNanos(duration));
+			final double sendSeconds = (System.nanoTime() - start) / 1e9;
+			
+			// Wait for the queue and the last batch to drain
+			final long drainLimit = System.nanoTime() + TimeUnit.SECONDS.toNanos(120);
+			while(endToEnd.getCount() + metrics.getMessagesFailed() < sent && System.nanoTime() < drainLimit) {
+				Thread.sleep(100);
+			}
+			final double totalSeconds = (System.nanoTime() - start) / 1e9;
+			
+			report(metrics, fleet, sent, sendSeconds, totalSeconds, table);
+			producer.stop();
+		} finally {
+			camel.stop();
+			beans.destroySingletons();
+		}
+	}
+
+	/**
+	 * Loads the consumer's properties file, points it at a local database and the seda queue,
+	 * then applies the command line options
+	 */
+	private Properties consumerProperties(File config, int consumers) throws IOException {
+		final Properties properties = new Properties();
+		final InputStream in = new FileInputStream(new File(config, "geodatafeed-consumer.properties"));
+		try {
+			properties.load(in);
+		} finally {
+			in.close();
+		}
+		
+		properties.setProperty("camel.gmlUrl", "seda:loadtest?concurrentConsumers=" + consumers 
+				+ "&size=100000&blockWhenFull=true");
+		// The route's heartbeat replies go nowhere, there's no broker
+		properties.setProperty("camel.mach.destination", "log:loadtest-mach?level=DEBUG");
+		properties.setProperty("db.host", "localhost");
+		properties.setProperty("db.port", "5432");
+		properties.setProperty("db.name", "nics_loadtest");
+		properties.setProperty("db.user", "postgres");
+		properties.setProperty("db.pass", "");
+		properties.setProperty("metrics.jmx", "true");
+		
+		// Keep the consumer's logging to warnings, a log line per track would be the bottleneck
+		final File log4j = File.createTempFile("loadtest-log4j", ".properties");
+		log4j.deleteOnExit();
+		final Writer out = new OutputStreamWriter(new FileOutputStream(log4j), utf8);
+		try {
+			out.write("log4j.rootLogger=WARN, stdout\n"
+					+ "log4j.appender.stdout=org.apache.log4j.ConsoleAppender\n"
+					+ "log4j.appender.stdout.layout=org.apache.log4j.PatternLayout\n"
+					+ "log4j.appender.stdout.layout.ConversionPattern=%d %p %c - %m%n\n");
+		} finally {
+			out.close();
+		}
+		properties.setProperty("log4jPropertyFile", log4j.getAbsolutePath());
+		
+		properties.putAll(options);
+		return properties;
+	}
+
+	private void createTable(Properties properties, String table) throws SQLException {
+		final Connection connection = DriverManager.getConnection("jdbc:postgresql://" 
+				+ properties.getProperty("db.host").trim() + ":" + properties.getProperty("db.port").trim() + "/" 
+				+ properties.getProperty("db.name").trim(), properties.getProperty("db.user").trim(), 
+				properties.getProperty("db.pass").trim());
+		try {
+			final Statement statement = connection.createStatement();
+			statement.execute("CREATE EXTENSION IF NOT EXISTS postgis");
+			statement.execute("CREATE TABLE IF NOT EXISTS \"" + table + "\" (gid serial PRIMARY KEY, "
+					+ "id varchar(255), name varchar(255), speed double precision, course double precision, "
+					+ "timestamp timestamp with time zone, geom geometry(Point, 3857))");
+			// Unique, as the upsert writer's ON CONFLICT (id) needs. Named apart from the plain
+			// index earlier runs created, which IF NOT EXISTS would otherwise keep
+			statement.execute("DROP INDEX IF EXISTS \"" + table + "_id_idx\"");
+			statement.execute("CREATE UNIQUE INDEX IF NOT EXISTS \"" + table + "_id_key\" ON \"" + table + "\" (id)");
+			statement.close();
+		} finally {
+			connection.close();
+		}
+	}
+
+	/**
+	 * Creates the GMLToDBProcessor from the consumer's Spring XML, with its placeholders resolved
+	 * from the given properties
+	 */
+	private GMLToDBProcessor createProcessor(DefaultListableBeanFactory beans, File spring, Properties properties) {
+		new XmlBeanDefinitionReader(beans).loadBeanDefinitions(new FileSystemResource(spring));
+		
+		// Logging is set up by the processor, from the generated log4j file
+		beans.removeBeanDefinition("log4jInitialization");
+		
+		final PropertyPlaceholderConfigurer placeholders = new PropertyPlaceholderConfigurer();
+		placeholders.setProperties(properties);
+		placeholders.postProcessBeanFactory(beans);
+		
+		return beans.getBean("geoToPostGIS", GMLToDBProcessor.class);
+	}
+
+	/**
+	 * Reads the gml2gisRoute out of the consumer's Spring XML, as Camel's XML DSL would load it
+	 * from its own routes file
+	 */
+	private List<RouteDefinition> loadRoute(DefaultCamelContext camel, File spring) throws Exception {
+		final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		factory.setNamespaceAware(true);
+		final Document context = factory.newDocumentBuilder().parse(spring);
+		
+		Element route = null;
+		final NodeList routes = context.getElementsByTagNameNS(camel_ns, "route");
+		for(int i = 0; i < routes.getLength(); i++) {
+			if(route_id.equals(((Element) routes.item(i)).getAttribute("id"))) {
+				route = (Element) routes.item(i);
+			}
+		}
+		if(route == null) {
+			throw new IllegalStateException("No route " + route_id + " in " + spring);
+		}
+		
+		final Document document = factory.newDocumentBuilder().newDocument();
+		final Element root = document.createElementNS(camel_ns, "routes");
+		root.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, "xmlns:prop", placeholder_ns);
+		root.appendChild(document.importNode(route, true));
+		document.appendChild(root);
+		
+		final ByteArrayOutputStream xml = new ByteArrayOutputStream();
+		TransformerFactory.newInstance().newTransformer().transform(new DOMSource(document), new StreamResult(xml));
+		return camel.loadRoutesDefinition(new ByteArrayInputStream(xml.toByteArray())).getRoutes();
+	}
+
+	/**
+	 * Wraps the processor, recording the end to end latency of each report in a batch once the
+	 * processor returns it
+	 */
+	private Processor recording(final Processor processor) {
+		return new Processor() {
+			@Override
+			public void process(Exchange exchange) throws Exception {
+				try {
+					processor.process(exchange);
+				} finally {
+					final long now = System.nanoTime();
+					final List<?> batch = exchange.getIn().getBody(List.class);
+					if(batch != null) {
+						for(Object report : batch) {
+							final Long sent = sentTimes.remove(report);
+							if(sent != null) {
+								endToEnd.record(now - sent);
+							}
+						}
+					}
+				}
+			}
+		};
+	}
+
+	/**
+	 * Sends reports at the given rate for the given time
+	 * 
+	 * @return the number of reports sent
+	 */
+	private long send(ProducerTemplate producer, String gmlUrl, SyntheticFleet fleet, double perSecond, long nanos) {
+		final long start = System.nanoTime();
+		long sent = 0;
+		while(true) {
+			final long elapsed = System.nanoTime() - start;
+			if(elapsed >= nanos) {
+				return sent;
+			}
+			
+			final long due = (long) (elapsed / 1e9 * perSecond);
+			while(sent < due) {
+				final byte[] report = fleet.nextReport(System.currentTimeMillis());
+				sentTimes.put(report, System.nanoTime());
+				producer.sendBody(gmlUrl, report);
+				sent++;
+			}
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+		}
+	}
+
+	private void report(IngestMetricsMXBean metrics, SyntheticFleet fleet, long sent, double sendSeconds, 
+			double totalSeconds, String table) throws IOException {
+		final StringBuilder report = new StringBuilder();
+		final Long written = metrics.getTracksWritten().get(table);
+		
+		report.append("==== geodatafeed-consumer load test ====\n");
+		report.append(line("reports sent", sent + " in " + format(sendSeconds) + "s, " + format(sent / sendSeconds) + "/s"));
+		report.append(line("sent out of order", String.valueOf(fleet.getOutOfOrder())));
+		report.append(line("messages processed", String.valueOf(metrics.getMessagesStarted())));
+		report.append(line("tracks written", (written != null ? written : 0) + ", " 
+				+ format((written != null ? written : 0) / totalSeconds) + "/s over " + format(totalSeconds) + "s"));
+		final Long suppressed = metrics.getTracksSuppressed().get(table);
+		if(suppressed != null) {
+			report.append(line("tracks suppressed", String.valueOf(suppressed)));
+		}
+		report.append(line("messages rejected", String.valueOf(metrics.getMessagesRejected())));
+		for(Map.Entry<String, Long> rejection : metrics.getRejections().entrySet()) {
+			if(rejection.getValue() > 0) {
+				report.append(line("  " + rejection.getKey(), String.valueOf(rejection.getValue())));
+			}
+		}
+		report.append(line("messages failed", String.valueOf(metrics.getMessagesFailed())));
+		
+		report.append(line("end to end ms", latency(endToEnd.getCount(), endToEnd.getMeanMillis(), 
+				endToEnd.getPercentileMillis(50), endToEnd.getPercentileMillis(99), endToEnd.getMaxMillis())));
+		for(Map.Entry<String, IngestMetrics.Latency> stage : metrics.getLatencies().entrySet()) {
+			final IngestMetrics.Latency latency = stage.getValue();
+			report.append(line(stage.getKey() + " ms", latency(latency.getCount(), latency.getMean(), 
+					latency.getP50(), latency.getP99(), latency.getMax())));
+		}
+		for(Map.Entry<String, Long> gauge : metrics.getGauges().entrySet()) {
+			report.append(line(gauge.getKey(), String.valueOf(gauge.getValue())));
+		}
+		report.append("db ms is per batch commit. Percentiles are bucket upper bounds, within 2x\n");
+		
+		System.out.print(report);
+		final String file = options.getProperty("report");
+		if(file != null) {
+			final Writer out = new OutputStreamWriter(new FileOutputStream(file), utf8);
+			try {
+				out.write(report.toString());
+			} finally {
+				out.close();
+			}
+		}
+	}
+
+	private static String latency(long count, double mean, double p50, double p99, double max) {
+		return "n=" + count + "  mean=" + format(mean) + "  p50=" + format(p50) + "  p99=" + format(p99) 
+				+ "  max=" + format(max);
+	}
+
+	private static String line(String name, String value) {
+		return String.format(Locale.US, "%-24s %s%n", name, value);
+	}
+
+	private static String format(double value) {
+		return String.format(Locale.US, "%.2f", value);
+	}
+}
@@ -0,0 +1,138 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.nics.processor.benchmarks;
+
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Generates GML track reports for a fleet of units moving around a point, in the shape of
+ * geodatafeed-consumer's ex.xml. Units report in turn, and a share of the reports carry a
+ * timestamp older than the unit's last one, as delayed or reordered messages do.
+ * 
+ * <p>Not thread safe, a fleet is driven by one thread.</p>
+ */
+public class SyntheticFleet {
+
+	private static final Charset utf8 = Charset.forName("UTF-8");
+
+	/** Degrees a unit moves at most per report */
+	private static final double step = 0.0005;
+
+	private final String typeName;
+
+	private final double outOfOrderRatio;
+
+	private final long reportInterval;
+
+	private final Random random;
+
+	private final double[] lat;
+
+	private final double[] lon;
+
+	/** Timestamp of each unit's newest report */
+	private final long[] last;
+
+	private final SimpleDateFormat timestamp = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+
+	private int next = 0;
+
+	private long outOfOrder = 0;
+
+	/**
+	 * @param units number of units
+	 * @param typeName feature type of the reports, which names the table they're written to
+	 * @param outOfOrderRatio share of reports, from 0 to 1, older than their unit's last report
+	 * @param reportInterval time in milliseconds between a unit's reports
+	 * @param seed seed of the random positions and reordering
+	 */
+	public SyntheticFleet(int units, String typeName, double outOfOrderRatio, long reportInterval, long seed) {
+		this.typeName = typeName;
+		this.outOfOrderRatio = outOfOrderRatio;
+		this.reportInterval = Math.max(1, reportInterval);
+		this.random = new Random(seed);
+		this.lat = new double[units];
+		this.lon = new double[units];
+		this.last = new long[units];
+		timestamp.setTimeZone(TimeZone.getTimeZone("UTC"));
+		
+		// Spread the fleet over about 50km around Riverside, CA
+		for(int i = 0; i < units; i++) {
+			lat[i] = 33.95 + (random.nextDouble() - 0.5) * 0.5;
+			lon[i] = -117.40 + (random.nextDouble() - 0.5) * 0.5;
+		}
+	}
+
+	/**
+	 * @param now the current time, in epoch milliseconds
+	 * @return the next unit's report
+	 */
+	public byte[] nextReport(long now) {
+		final int unit = next;
+		next = (next + 1) % lat.length;
+		
+		long time = Math.max(now, last[unit] + 1);
+		if(last[unit] > 0 && random.nextDouble() < outOfOrderRatio) {
+			// Older than the report already sent, the consumer should drop it
+			time = last[unit] - 1 - (long) (random.nextDouble() * reportInterval);
+			outOfOrder++;
+		} else {
+			last[unit] = time;
+			lat[unit] += (random.nextDouble() - 0.5) * 2 * step;
+			lon[unit] += (random.nextDouble() - 0.5) * 2 * step;
+		}
+		
+		final String id = "loadtest-" + unit;
+		return ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+				+ "<wfs:FeatureCollection xmlns:wfs=\"http://www.opengis.net/wfs\" "
+				+ "xmlns:gml=\"http://www.opengis.net/gml\" xmlns:NICS=\"http://mapserver.nics.ll.mit.edu/NICS\">"
+				+ "<gml:featureMember><NICS:" + typeName + ">"
+				+ "<NICS:id>" + id + "</NICS:id>"
+				+ "<NICS:name>" + id + "</NICS:name>"
+				+ "<NICS:geom><gml:Point srsName=\"EPSG:4326\"><gml:coordinates>" + lat[unit] + "," + lon[unit] 
+				+ "</gml:coordinates></gml:Point></NICS:geom>"
+				+ "<NICS:speed>" + random.nextInt(70) + "</NICS:speed>"
+				+ "<NICS:course>" + random.nextInt(360) + "</NICS:course>"
+				+ "<NICS:timestamp>" + timestamp.format(new Date(time)) + "</NICS:timestamp>"
+				+ "</NICS:" + typeName + "></gml:featureMember></wfs:FeatureCollection>").getBytes(utf8);
+	}
+
+	/**
+	 * @return number of reports generated out of order
+	 */
+	public long getOutOfOrder() {
+		return outOfOrder;
+	}
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.nics.processor.benchmarks;
+
+import java.sql.Timestamp;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.mit.ll.nics.processor.gml.consumer.IsoTimestampParser;
+
+/**
+ * Compares the {@link IsoTimestampParser} used by the GMLToDBProcessor with the SimpleDateFormat
+ * per track parsing it replaced, for each of the accepted offset forms.
+ * 
+ * <p>Run with <code>java -jar target/benchmarks.jar TimestampParse</code>, which also reports
+ * the allocation rate of each.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimestampParseBenchmark {
+
+	@Param({"2016-03-01T12:34:56", "2016-03-01T12:34:56Z", "2016-03-01T12:34:56-08", 
+		"2016-03-01T12:34:56-0800", "2016-03-01T12:34:56-08:00"})
+	public String timestamp;
+
+	@Benchmark
+	public long isoParser() {
+		return IsoTimestampParser.parseMillis(timestamp);
+	}
+
+	@Benchmark
+	public Timestamp isoParserTimestamp() {
+		return new Timestamp(IsoTimestampParser.parseMillis(timestamp));
+	}
+
+	@Benchmark
+	public Timestamp simpleDateFormat() throws ParseException {
+		return legacyParse(timestamp);
+	}
+
+	/**
+	 * The GMLToDBProcessor timestamp parsing before the IsoTimestampParser: a pattern picked by
+	 * length, and a new SimpleDateFormat per call
+	 */
+	private static Timestamp legacyParse(String strTime) throws ParseException {
+		final String dateFormatPattern;
+		if (strTime.length() == 19) {
+			dateFormatPattern = "yyyy-MM-dd'T'HH:mm:ss";
+		} else if (strTime.length() <= 22) {
+			dateFormatPattern = "yyyy-MM-dd'T'HH:mm:ssX";
+		} else if (strTime.length() == 24) {
+			dateFormatPattern = "yyyy-MM-dd'T'HH:mm:ssXX";
+		} else if (strTime.length() == 25) {
+			dateFormatPattern = "yyyy-MM-dd'T'HH:mm:ssXXX";
+		} else {
+			throw new ParseException("timestamp did not fit any of the expected formats" + strTime, 0);
+		}
+		
+		final SimpleDateFormat sdf = new SimpleDateFormat(dateFormatPattern, Locale.US);
+		return new Timestamp(sdf.parse(strTime).getTime());
+	}
+}
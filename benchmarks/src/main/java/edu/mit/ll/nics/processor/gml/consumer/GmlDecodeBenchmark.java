@@ -0,0 +1,129 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.nics.processor.gml.consumer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decodes, validates and transforms the sample track in ex.xml with
+ * {@link GMLToDBProcessor#decodeTracks(byte[], Map)}, the processor's path for each message, which
+ * is everything it does to a message short of writing it.
+ * 
+ * <p>Lives in the processor's package to reach decodeTracks. The sample's timestamp is moved to
+ * the current time so it passes the age check. With gml_fast_decoder false, the GeoTools parser
+ * resolves the document's schemaLocation as it does in production, so that variant needs it
+ * reachable.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GmlDecodeBenchmark {
+
+	private static final Charset utf8 = Charset.forName("UTF-8");
+
+	@Param({"true", "false"})
+	public boolean gml_fast_decoder;
+
+	@Param({"EPSG:3857"})
+	public String crs;
+
+	private GMLToDBProcessor processor;
+
+	private byte[] gml;
+
+	@Setup
+	public void setup() throws Exception {
+		final SimpleDateFormat now = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+		now.setTimeZone(TimeZone.getTimeZone("UTC"));
+		gml = read("/ex.xml").replaceAll("<NICS:timestamp>[^<]*</NICS:timestamp>", 
+				"<NICS:timestamp>" + now.format(new Date()) + "</NICS:timestamp>").getBytes(utf8);
+		
+		processor = new GMLToDBProcessor();
+		processor.setCrs(crs);
+		processor.setGml_version("WFS1_0");
+		processor.setGml_fast_decoder(gml_fast_decoder);
+		processor.setTimestampPropertyName("timestamp");
+		processor.initDecoding();
+		
+		// Fail here rather than benchmark the rejection path
+		if(decodeTracks().isEmpty()) {
+			throw new IllegalStateException("The sample track in ex.xml was rejected, see the log");
+		}
+	}
+
+	@Benchmark
+	public Map<String, Map<String, Track>> decodeTracks() {
+		final Map<String, Map<String, Track>> tables = new HashMap<>();
+		processor.decodeTracks(gml, tables);
+		return tables;
+	}
+
+	private static String read(String resource) throws IOException {
+		final InputStream in = GmlDecodeBenchmark.class.getResourceAsStream(resource);
+		if(in == null) {
+			throw new IOException("Missing benchmark resource: " + resource);
+		}
+		try {
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			final byte[] buffer = new byte[4096];
+			int read;
+			while((read = in.read(buffer)) > 0) {
+				out.write(buffer, 0, read);
+			}
+			return new String(out.toByteArray(), utf8);
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,265 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.nics.processor.gml.consumer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Holds back tracks for up to a flush interval, keeping only the newest pending report per
+ * table and id, so units that report every second cost one write per interval instead of one
+ * per report.
+ * 
+ * <p>Pending tracks are handed to the {@link Sink} from a single flusher thread, every flush
+ * interval, or as soon as the number of pending tracks reaches the maximum. While the sink is
+ * slow, offers block once twice the maximum is pending, until the next flush takes them.</p>
+ */
+public class CoalescingTrackBuffer {
+
+	private static final Logger log = Logger.getLogger(CoalescingTrackBuffer.class.getSimpleName());
+
+	/**
+	 * Receives the coalesced tracks on every flush
+	 */
+	public interface Sink {
+		/**
+		 * @param tables the newest pending track per id, by table name
+		 */
+		void write(Map<String, Map<String, Track>> tables);
+
+		/**
+		 * @param track a report that won't be written, since a newer one for its id is pending
+		 */
+		void discarded(Track track);
+	}
+
+	private final Sink sink;
+
+	/** Number of pending tracks that triggers an early flush */
+	private final int maxPending;
+
+	/** Number of pending tracks above which offers block */
+	private final int capacity;
+
+	/** Whether an early flush has been queued and hasn't started yet */
+	private final AtomicBoolean flushQueued = new AtomicBoolean();
+
+	/** table name -> (id -> newest pending track), guarded by this */
+	private Map<String, Map<String, Track>> pending = new LinkedHashMap<String, Map<String, Track>>();
+
+	/** Number of tracks pending, guarded by this */
+	private int pendingCount = 0;
+
+	/** Whether shutdown has started, after which no more tracks are taken, guarded by this */
+	private boolean closed;
+
+	private final ScheduledExecutorService flusher;
+
+	/** Number of pending reports replaced by a newer one */
+	private final AtomicLong coalesced = new AtomicLong();
+
+	/** Number of reports handed to the sink */
+	private final AtomicLong written = new AtomicLong();
+
+	/** Number of reports dropped because a newer one was already pending */
+	private final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * @param sink where flushed tracks are written
+	 * @param flushInterval time in milliseconds between flushes
+	 * @param maxPending number of pending tracks that triggers an early flush
+	 */
+	public CoalescingTrackBuffer(Sink sink, long flushInterval, int maxPending) {
+		this.sink = sink;
+		this.maxPending = maxPending;
+		this.capacity = 2 * maxPending;
+		
+		flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				final Thread thread = new Thread(runnable, "track-coalescer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		flusher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		}, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Adds a track to the buffer, replacing the pending report for its id if this one is newer,
+	 * or dropping it if the pending one is newer. Blocks while the buffer is at capacity
+	 * 
+	 * @param track the track to add
+	 * @return false if the buffer is shut down, and the track wasn't taken
+	 * @throws InterruptedException if interrupted while waiting for room
+	 */
+	public boolean offer(Track track) throws InterruptedException {
+		boolean full = false;
+		Track discarded = null;
+		synchronized(this) {
+			while(pendingCount >= capacity && !closed) {
+				wait(1000);
+			}
+			if(closed) {
+				return false;
+			}
+			
+			Map<String, Track> table = pending.get(track.getTableName());
+			if(table == null) {
+				table = new LinkedHashMap<String, Track>();
+				pending.put(track.getTableName(), table);
+			}
+			
+			final Track previous = table.get(track.getId());
+			if(previous == null) {
+				table.put(track.getId(), track);
+				full = ++pendingCount >= maxPending;
+			} else if(track.getTimestamp().before(previous.getTimestamp())) {
+				dropped.incrementAndGet();
+				discarded = track;
+			} else {
+				table.put(track.getId(), track);
+				coalesced.incrementAndGet();
+				discarded = previous;
+			}
+		}
+		
+		if(discarded != null) {
+			sink.discarded(discarded);
+		}
+		
+		// One early flush at a time, the offers after it are taken by that flush. Once shut down,
+		// the track is taken by the final flush instead
+		if(full && !flusher.isShutdown() && flushQueued.compareAndSet(false, true)) {
+			try {
+				flusher.execute(new Runnable() {
+					@Override
+					public void run() {
+						flushQueued.set(false);
+						flush();
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// Shut down since the check, the final flush was queued after the track was added
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Hands all the pending tracks to the sink. Only called on the flusher thread, so flushes
+	 * never overlap
+	 */
+	private void flush() {
+		final Map<String, Map<String, Track>> tables;
+		final int count;
+		synchronized(this) {
+			if(pendingCount == 0) {
+				return;
+			}
+			tables = pending;
+			count = pendingCount;
+			pending = new LinkedHashMap<String, Map<String, Track>>();
+			pendingCount = 0;
+			notifyAll();
+		}
+		
+		try {
+			sink.write(tables);
+		} catch (Exception e) {
+			log.error("Caught unhandled exception writing " + count + " coalesced tracks: " + e.getMessage(), e);
+		}
+		written.addAndGet(count);
+	}
+
+	/**
+	 * Stops taking tracks and the periodic flush, and writes whatever is still pending
+	 */
+	public void shutdown() {
+		synchronized(this) {
+			closed = true;
+			notifyAll();
+		}
+		flusher.execute(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		});
+		flusher.shutdown();
+		try {
+			flusher.awaitTermination(30, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return number of pending reports replaced by a newer one
+	 */
+	public long getCoalesced() {
+		return coalesced.get();
+	}
+
+	/**
+	 * @return number of reports handed to the writer
+	 */
+	public long getWritten() {
+		return written.get();
+	}
+
+	/**
+	 * @return number of reports dropped because a newer one was already pending
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return number of reports waiting for the next flush
+	 */
+	public synchronized int getPending() {
+		return pendingCount;
+	}
+}
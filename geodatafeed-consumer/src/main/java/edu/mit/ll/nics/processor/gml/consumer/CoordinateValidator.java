@@ -0,0 +1,122 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.nics.processor.gml.consumer;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * Validates the position of incoming tracks directly on the coordinate's doubles, and counts
+ * the tracks rejected for each reason. Thread safe.
+ */
+public class CoordinateValidator {
+
+	/**
+	 * Why a coordinate was rejected
+	 */
+	public enum Rejection {
+		NOT_FINITE("x or y is NaN or infinite"),
+		INFINITE_Z("z is infinite"),
+		ZERO_ZERO("Coordinates 0,0 in GML"),
+		OUT_OF_RANGE("outside the valid range of the source CRS");
+
+		private final String description;
+
+		private Rejection(String description) {
+			this.description = description;
+		}
+
+		public String getDescription() {
+			return description;
+		}
+	}
+
+	private final AtomicLong[] rejections = new AtomicLong[Rejection.values().length];
+
+	public CoordinateValidator() {
+		for(int i = 0; i < rejections.length; i++) {
+			rejections[i] = new AtomicLong();
+		}
+	}
+
+	/**
+	 * Checks that x and y are finite, not the 0,0 sentinel, and within the source CRS's range,
+	 * and that z, if present, isn't infinite. A missing z is NaN.
+	 * 
+	 * @param coordinate the position, in the source CRS
+	 * @param reprojection the source CRS of the position
+	 * @return the reason the coordinate is rejected, or null if it's valid
+	 */
+	public Rejection validate(Coordinate coordinate, CrsTransformCache.Reprojection reprojection) {
+		final Rejection rejection = check(coordinate, reprojection);
+		if(rejection != null) {
+			rejections[rejection.ordinal()].incrementAndGet();
+		}
+		return rejection;
+	}
+
+	private static Rejection check(Coordinate coordinate, CrsTransformCache.Reprojection reprojection) {
+		final double x = coordinate.x;
+		final double y = coordinate.y;
+		
+		if(Double.isNaN(x) || Double.isInfinite(x) || Double.isNaN(y) || Double.isInfinite(y)) {
+			return Rejection.NOT_FINITE;
+		}
+		if(Double.isInfinite(coordinate.z)) {
+			return Rejection.INFINITE_Z;
+		}
+		if(x == 0 && y == 0) {
+			return Rejection.ZERO_ZERO;
+		}
+		if(!reprojection.isInRange(x, y)) {
+			return Rejection.OUT_OF_RANGE;
+		}
+		return null;
+	}
+
+	/**
+	 * @return the number of coordinates rejected for the reason
+	 */
+	public long getRejections(Rejection rejection) {
+		return rejections[rejection.ordinal()].get();
+	}
+
+	/**
+	 * @return the rejection counts, for logging
+	 */
+	public String getStatistics() {
+		final StringBuilder builder = new StringBuilder("coordinate rejections");
+		for(Rejection rejection : Rejection.values()) {
+			builder.append("   ").append(rejection.name().toLowerCase()).append(": ").append(getRejections(rejection));
+		}
+		return builder.toString();
+	}
+}
@@ -0,0 +1,173 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.nics.processor.gml.consumer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.geotools.referencing.CRS;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.cs.CoordinateSystem;
+import org.opengis.referencing.operation.MathTransform;
+
+/**
+ * Caches the parsed source CoordinateReferenceSystem of incoming geometries, and the
+ * MathTransform from it to the table CRS. Feeds nearly always send the same CRS, so
+ * parsing its WKT and looking up the transform for every message is wasted work.
+ * 
+ * <p>Keyed by the geometry's user data, which holds either the CRS itself, or its WKT.
+ * At most maxEntries sources are cached, evicting the least recently used.</p>
+ */
+public class CrsTransformCache {
+
+	/** The CRS every geometry is transformed into */
+	private final CoordinateReferenceSystem targetCrs;
+
+	/** Maximum number of source CRSs to cache */
+	private final int maxEntries;
+
+	/** user data -> reprojection, in access order */
+	private final Map<Object, Reprojection> cache;
+
+	private long hits = 0;
+
+	private long misses = 0;
+
+	public CrsTransformCache(CoordinateReferenceSystem targetCrs, int maxEntries) {
+		this.targetCrs = targetCrs;
+		this.maxEntries = maxEntries;
+		cache = new LinkedHashMap<Object, Reprojection>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Object, Reprojection> eldest) {
+				return size() > CrsTransformCache.this.maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Gets the reprojection for a geometry's source CRS
+	 * 
+	 * @param userData the geometry's user data, either a CoordinateReferenceSystem or its WKT
+	 * @return the reprojection into the target CRS
+	 * @throws FactoryException if the CRS can't be parsed, or no transform is found
+	 */
+	public Reprojection get(Object userData) throws FactoryException {
+		Reprojection reprojection;
+		synchronized(this) {
+			reprojection = cache.get(userData);
+			if(reprojection != null) {
+				hits++;
+				return reprojection;
+			}
+			misses++;
+		}
+
+		// Resolved outside the lock, a source missed by two threads at once is resolved twice
+
+		final CoordinateReferenceSystem sourceCrs = (userData instanceof CoordinateReferenceSystem) ?
+				(CoordinateReferenceSystem) userData : CRS.parseWKT(userData.toString());
+		if(sourceCrs == null) {
+			return null;
+		}
+
+		final MathTransform transform = CRS.findMathTransform(sourceCrs, targetCrs, false);
+		reprojection = new Reprojection(sourceCrs, transform,
+				transform.isIdentity() || CRS.equalsIgnoreMetadata(sourceCrs, targetCrs));
+
+		synchronized(this) {
+			cache.put(userData, reprojection);
+		}
+		return reprojection;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized int size() {
+		return cache.size();
+	}
+
+	/**
+	 * How to get from a source CRS to the target CRS, and the valid range of the source CRS
+	 */
+	public static class Reprojection {
+
+		private final MathTransform transform;
+
+		/** True when the source and target CRS match, so no transform is needed */
+		private final boolean identity;
+
+		/** Valid range of the source CRS's first two axes */
+		private final double minX, maxX, minY, maxY;
+
+		private Reprojection(CoordinateReferenceSystem sourceCrs, MathTransform transform, boolean identity) {
+			this.transform = transform;
+			this.identity = identity;
+			
+			final CoordinateSystem cs = sourceCrs.getCoordinateSystem();
+			if(cs != null && cs.getDimension() >= 2) {
+				minX = cs.getAxis(0).getMinimumValue();
+				maxX = cs.getAxis(0).getMaximumValue();
+				minY = cs.getAxis(1).getMinimumValue();
+				maxY = cs.getAxis(1).getMaximumValue();
+			} else {
+				minX = minY = Double.NEGATIVE_INFINITY;
+				maxX = maxY = Double.POSITIVE_INFINITY;
+			}
+		}
+
+		public MathTransform getTransform() {
+			return transform;
+		}
+
+		public boolean isIdentity() {
+			return identity;
+		}
+
+		/**
+		 * Checks a position against the valid range of the source CRS's first two axes, which
+		 * is latitude and longitude, in either order, for a geographic CRS, and unbounded for
+		 * a projected one
+		 * 
+		 * @return true if both ordinates are within range
+		 */
+		public boolean isInRange(double x, double y) {
+			return x >= minX && x <= maxX && y >= minY && y <= maxY;
+		}
+	}
+}
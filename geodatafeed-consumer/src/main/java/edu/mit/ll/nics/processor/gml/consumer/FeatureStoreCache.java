@@ -0,0 +1,123 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.nics.processor.gml.consumer;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.log4j.Logger;
+import org.geotools.data.DataStore;
+import org.geotools.data.simple.SimpleFeatureStore;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+/**
+ * Registry of the resolved feature store and schema of each PostGIS table, so the
+ * datastore's JDBC metadata is only looked up the first time a table is written to.
+ * Must be cleared whenever the datastore is disposed.
+ * 
+ * <p>A feature store holds the transaction it's writing with, so each thread is given
+ * its own store for a table.</p>
+ */
+public class FeatureStoreCache {
+
+	private static final Logger log = Logger.getLogger(FeatureStoreCache.class.getSimpleName());
+
+	private final ConcurrentMap<String, FeatureTable> tables = new ConcurrentHashMap<String, FeatureTable>();
+
+	/**
+	 * Gets the table, resolving it from the datastore if it isn't cached yet
+	 * 
+	 * @param datastore the datastore the table is in
+	 * @param tableName name of the table
+	 * @return the resolved table
+	 * @throws IOException if the table can't be resolved
+	 */
+	public FeatureTable get(DataStore datastore, String tableName) throws IOException {
+		FeatureTable table = tables.get(tableName);
+		if(table == null) {
+			table = new FeatureTable(datastore, tableName);
+
+			final FeatureTable existing = tables.putIfAbsent(tableName, table);
+			if(existing != null) {
+				table = existing;
+			} else {
+				log.info("Resolved feature store for table: " + tableName);
+			}
+		}
+		return table;
+	}
+
+	/**
+	 * Forgets every resolved table
+	 */
+	public void clear() {
+		tables.clear();
+	}
+
+	/**
+	 * A table's feature store and schema
+	 */
+	public static class FeatureTable {
+
+		private final DataStore datastore;
+
+		private final String tableName;
+
+		/** Feature store of each thread writing to the table */
+		private final ThreadLocal<SimpleFeatureStore> stores = new ThreadLocal<SimpleFeatureStore>();
+
+		private final SimpleFeatureType schema;
+
+		private FeatureTable(DataStore datastore, String tableName) throws IOException {
+			this.datastore = datastore;
+			this.tableName = tableName;
+			this.schema = getStore().getSchema();
+		}
+
+		/**
+		 * @return the calling thread's feature store for the table
+		 * @throws IOException if the store can't be resolved
+		 */
+		public SimpleFeatureStore getStore() throws IOException {
+			SimpleFeatureStore store = stores.get();
+			if(store == null) {
+				//featuresource is read only, cast as featurestore for write/modify
+				store = (SimpleFeatureStore) datastore.getFeatureSource(tableName);
+				stores.set(store);
+			}
+			return store;
+		}
+
+		public SimpleFeatureType getSchema() {
+			return schema;
+		}
+	}
+}
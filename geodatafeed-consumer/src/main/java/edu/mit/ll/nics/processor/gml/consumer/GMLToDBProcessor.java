@@ -31,46 +31,61 @@ package edu.mit.ll.nics.processor.gml.consumer;
 
 import org.apache.camel.Exchange;
 import org.apache.camel.Processor;
-import org.apache.commons.lang.time.StopWatch;
 import org.apache.log4j.Logger;
 import org.apache.log4j.PropertyConfigurator;
 
+import java.nio.charset.Charset;
+import java.sql.SQLException;
 import java.sql.Timestamp;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Locale;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TimeZone;
-import java.util.regex.Pattern;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.geotools.GML;
 import org.geotools.GML.Version;
+import org.geotools.data.collection.ListFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureIterator;
 import org.geotools.data.simple.SimpleFeatureStore;
 import org.geotools.data.DataStore;
 import org.geotools.data.DataStoreFinder;
 import org.geotools.data.DefaultTransaction;
+import org.geotools.data.Query;
 import org.geotools.data.Transaction;
 import org.opengis.feature.IllegalAttributeException;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.feature.type.AttributeDescriptor;
 import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
 import org.opengis.referencing.FactoryException;
 import org.opengis.referencing.NoSuchAuthorityCodeException;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
-import org.opengis.referencing.operation.MathTransform;
 import org.geotools.geometry.jts.JTS;
 import org.geotools.referencing.CRS;
 import org.geotools.util.logging.Logging;
 import org.geotools.feature.type.Types;
-import org.geotools.filter.text.cql2.CQL;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.jdbc.JDBCDataStoreFactory;
 
-import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Point;
 
+import edu.mit.ll.nics.processor.gml.consumer.IngestMetrics.RejectReason;
+import edu.mit.ll.nics.processor.gml.consumer.IngestMetrics.Stage;
+
 import java.io.*;
 
 
@@ -81,7 +96,7 @@ public class GMLToDBProcessor implements Processor {
      */
     private static final Logger log = Logger.getLogger(GMLToDBProcessor.class.getSimpleName());
 	
-    private static boolean hasInitialized = false;
+    private volatile boolean hasInitialized = false;
     
     // !!! Properties !!!
     
@@ -114,9 +129,41 @@ public class GMLToDBProcessor implements Processor {
 	private String crs;
         	
 	/** 
-	 * DataSource reset interval in minutes
+	 * DataSource reset interval in minutes. No longer used, the connection pool validates and
+	 * replaces connections instead
 	 */
 	private long db_reset_interval;
+	
+	/**
+	 * Maximum number of database connections open at once. Should be at least the number of
+	 * concurrent consumers.
+	 * <p>Default: 8</p>
+	 */
+	private int db_pool_size = 8;
+	
+	/**
+	 * Number of idle database connections kept open
+	 * <p>Default: 1</p>
+	 */
+	private int db_pool_min_idle = 1;
+	
+	/**
+	 * Time in milliseconds to wait for a free connection before failing a write
+	 * <p>Default: 10000</p>
+	 */
+	private long db_pool_max_wait = 10000;
+	
+	/**
+	 * Time in milliseconds after which an idle connection is closed
+	 * <p>Default: 300000</p>
+	 */
+	private long db_pool_idle_timeout = 300000;
+	
+	/**
+	 * Number of times a failed connect is retried, with a doubling backoff, before failing a write
+	 * <p>Default: 5</p>
+	 */
+	private int db_connect_retries = 5;
 
 	/** 
 	 * The property name that contains the time in the GML
@@ -124,15 +171,6 @@ public class GMLToDBProcessor implements Processor {
 	 */
 	private String timestampPropertyName = "timestamp";
 	
-	/**
-	 * The SimpleDateFormat pattern expected from the timestamp field
-	 * Default: yyyy-MM-dd'T'HH:mm:ssXXX
-	 */
-	private String dateFormatPatternOp0 = "yyyy-MM-dd'T'HH:mm:ss";
-	private String dateFormatPatternOp1 = "yyyy-MM-dd'T'HH:mm:ssX";
-	private String dateFormatPatternOp2 = "yyyy-MM-dd'T'HH:mm:ssXX";
-	private String dateFormatPatternOp3 = "yyyy-MM-dd'T'HH:mm:ssXXX";
-	
 	
     private String log4jPropertyFile;
 	
@@ -150,6 +188,219 @@ public class GMLToDBProcessor implements Processor {
 	 */
 	private String gml_version;
 	
+	/**
+	 * Decode track documents with the streaming {@link TrackGmlDecoder}, falling back to the
+	 * GeoTools GML parser for documents it doesn't handle.
+	 * <p>Default: false</p>
+	 */
+	private boolean gml_fast_decoder = false;
+	
+	/**
+	 * Maximum number of features accepted in one GML message. Each feature of a collection is
+	 * checked and written as its own track, and a collection with more features is rejected whole.
+	 * <p>Default: 1, which rejects any collection of more than one feature</p>
+	 */
+	private int gml_max_features = 1;
+	
+	/**
+	 * Write tracks with a native PostGIS INSERT ... ON CONFLICT upsert instead of the GeoTools
+	 * lookup, remove and add. Requires PostgreSQL 9.5+ and a unique index on the id column.
+	 * <p>Default: false</p>
+	 */
+	private boolean db_upsert = false;
+	
+	/**
+	 * Maximum number of track ids per table to keep the last accepted timestamp of in memory,
+	 * so out-of-order and duplicate reports are dropped without querying the database.
+	 * <p>Default: 0, which disables the cache</p>
+	 */
+	private int position_cache_size = 0;
+	
+	/**
+	 * Comma delimited list of tables to warm the position cache from at startup. Other tables
+	 * are warmed the first time a track for them arrives.
+	 */
+	private String position_cache_tables;
+	
+	/**
+	 * Maximum number of bytes of a message to include when logging it. Longer messages are
+	 * cut short, followed by their full length.
+	 * <p>Default: 1000, 0 leaves the payload out, and a negative value logs it whole</p>
+	 */
+	private int payload_log_limit = 1000;
+	
+	/**
+	 * Number of single threaded lanes tracks are written on, by hash of their id, so the
+	 * reports of one unit stay in order while different units are written in parallel.
+	 * <p>Default: 0, which writes on the consumer thread</p>
+	 */
+	private int write_lanes = 0;
+	
+	/**
+	 * Maximum number of pending batches per write lane. Consumers block while a lane is full.
+	 * <p>Default: 100</p>
+	 */
+	private int write_lane_queue_size = 100;
+	
+	/**
+	 * Time in milliseconds to hold tracks back for, keeping only the newest report per id, before
+	 * writing them. Messages are then acknowledged before their tracks are written.
+	 * <p>Default: 0, which writes every batch as it arrives</p>
+	 */
+	private long coalesce_interval = 0;
+	
+	/**
+	 * Number of pending tracks that makes the coalescing buffer write before its interval is up.
+	 * Offers block once twice this many are pending, until the buffer is written.
+	 * <p>Default: 10000</p>
+	 */
+	private int coalesce_max_pending = 10000;
+	
+	/**
+	 * Whether to write every accepted track to its table's log table, named by appending "_log"
+	 * to the table name. Rows are bulk loaded with COPY on a separate thread, the live tables
+	 * never wait on them.
+	 * <p>Default: false</p>
+	 */
+	private boolean history_log = false;
+	
+	/**
+	 * Maximum number of tracks waiting to be written to the log tables. Beyond it, tracks are
+	 * spilled to history_spill_dir, or dropped.
+	 * <p>Default: 10000</p>
+	 */
+	private int history_buffer_size = 10000;
+	
+	/**
+	 * Maximum number of tracks written to the log tables at once
+	 * <p>Default: 1000</p>
+	 */
+	private int history_batch_size = 1000;
+	
+	/**
+	 * Time in milliseconds the history writer waits for tracks before loading spilled rows
+	 * <p>Default: 1000</p>
+	 */
+	private long history_flush_interval = 1000;
+	
+	/**
+	 * Directory history rows are spilled to when the buffer is full or the database fails, and
+	 * loaded from once it recovers
+	 * <p>Default: empty, which drops them instead</p>
+	 */
+	private String history_spill_dir = "";
+	
+	/**
+	 * Partitioning of the log tables declared PARTITION BY RANGE on the timestamp column: none,
+	 * daily or hourly. Partitions are created ahead of time, expired ones are detached, and history
+	 * rows are loaded straight into their partition.
+	 * <p>Default: none</p>
+	 */
+	private String history_partition = "none";
+	
+	/**
+	 * Number of partitions to keep created ahead of the current one
+	 * <p>Default: 3</p>
+	 */
+	private int history_partitions_ahead = 3;
+	
+	/**
+	 * How long partitions are kept for, such as 30d or 48h, unless history_retention_tables sets
+	 * one for the table
+	 * <p>Default: 0, which keeps them forever</p>
+	 */
+	private String history_retention = "0";
+	
+	/**
+	 * Comma delimited list of table:retention pairs, such as mobile_pli:7d,aircraft:48h
+	 */
+	private String history_retention_tables;
+	
+	/**
+	 * Whether to drop expired partitions rather than only detach them
+	 * <p>Default: false</p>
+	 */
+	private boolean history_drop_expired = false;
+	
+	/**
+	 * Whether to register the ingest metrics as a JMX bean
+	 * <p>Default: true</p>
+	 */
+	private boolean metrics_jmx = true;
+	
+	/**
+	 * Port to serve the ingest metrics on at /metrics, in the Prometheus text format
+	 * <p>Default: 0, which doesn't serve them</p>
+	 */
+	private int metrics_http_port = 0;
+	
+	/**
+	 * Whether to skip writing reports of units that haven't moved more than movement_distance,
+	 * changed any of the movement_attributes, or gone movement_keepalive without a write
+	 * <p>Default: false</p>
+	 */
+	private boolean movement_filter = false;
+	
+	/**
+	 * Distance a unit must move for its report to be written, in the units of the table CRS. For
+	 * EPSG:3857 these are meters stretched by 1/cos(latitude).
+	 * <p>Default: 10</p>
+	 */
+	private double movement_distance = 10;
+	
+	/**
+	 * Comma delimited list of attributes that have a report written whenever they change
+	 * <p>Default: speed,course,description</p>
+	 */
+	private String movement_attributes = "speed,course,description";
+	
+	/**
+	 * Time in milliseconds, by report timestamp, after which a stationary unit's report is
+	 * written anyway, so its timestamp in the table stays current
+	 * <p>Default: 300000</p>
+	 */
+	private long movement_keepalive = 300000;
+	
+	/**
+	 * Maximum number of track ids per table to keep the last written position of
+	 * <p>Default: 100000</p>
+	 */
+	private int movement_filter_size = 100000;
+	
+	/**
+	 * Whether to write each table on its own pipeline, with its own queue and writer thread, so a
+	 * slow or locked table doesn't hold up the others. Messages are then acknowledged once their
+	 * tracks are queued. Takes the place of write_lanes and coalesce_interval.
+	 * <p>Default: false</p>
+	 */
+	private boolean table_pipelines = false;
+	
+	/**
+	 * Maximum number of tracks queued per table, unless table_pipeline_tables sets one
+	 * <p>Default: 10000</p>
+	 */
+	private int table_queue_size = 10000;
+	
+	/**
+	 * Maximum number of tracks a table pipeline writes at once, unless table_pipeline_tables
+	 * sets one
+	 * <p>Default: 1000</p>
+	 */
+	private int table_batch_size = 1000;
+	
+	/**
+	 * Time in milliseconds to wait for room in full table queues per batch, before rejecting the
+	 * tracks that don't fit
+	 * <p>Default: 500, 0 waits as long as it takes</p>
+	 */
+	private long table_offer_timeout = 500;
+	
+	/**
+	 * Comma delimited list of per table queue and batch sizes, such as
+	 * avlxriair:queue=20000:batch=500,ca_corona:batch=100
+	 */
+	private String table_pipeline_tables;
+	
 		
 	// !!! Local private use objects !!!
 	
@@ -157,51 +408,128 @@ public class GMLToDBProcessor implements Processor {
      * The GeoTools datastore object which connects to the database specified
      * in the db_params Map 
      */
-    private static DataStore datastore = null;
+    private volatile DataStore datastore = null;
+    
+    /** Connection pool shared by the datastore and the upsert writer */
+    private PooledDataSource dataSource = null;
     
     /** The coordinate reference system used for a table */
-    private static CoordinateReferenceSystem tablecrs = null;
+    private CoordinateReferenceSystem tablecrs = null;
+    
+    /** Source CRS and transform to tablecrs, per source CRS seen on incoming geometries */
+    private CrsTransformCache crsCache = null;
+    
+    /** Checks incoming coordinates, and counts the rejected ones by reason */
+    private final CoordinateValidator coordinateValidator = new CoordinateValidator();
+    
+    /** Maximum number of distinct source CRSs to cache */
+    private static final int crs_cache_size = 64;
     
     /** Unique identifier field for lookup of incoming features in the db */
     private static final String id_table_entry = "id"; // TODO: Make a property?
     
-    /** GML object used for processing incoming GML messages */
-    private static GML gml;
+    /** Factory for the id filters used to look up and replace features in the db */
+    private static final FilterFactory2 filterFactory = CommonFactoryFinder.getFilterFactory2();
+    
+    /** Writes tracks with a native upsert, only set when db_upsert is enabled */
+    private PostgisUpsertWriter upsertWriter = null;
+    
+    /** Last accepted timestamp per table and id, only set when position_cache_size is positive */
+    private volatile LastPositionCache positionCache = null;
+    
+    /** GML version parsed from the gml_version property */
+    private volatile Version gmlVersion;
+    
+    /** GML object of each consumer thread used for processing incoming GML messages */
+    private final ThreadLocal<GML> gml = new ThreadLocal<GML>() {
+    	@Override
+    	protected GML initialValue() {
+    		return new GML(gmlVersion);
+    	}
+    };
+    
+    /** Streaming decoder tried before the GML object, only set when gml_fast_decoder is enabled */
+    private TrackGmlDecoder fastDecoder = null;
+    
+    /** Builds the features of {@link TrackReport}s handed over in process */
+    private TrackGmlDecoder reportDecoder = null;
     
     /** Map of database parameters for use with the GeoTools DataStore object */
-    private static Map db_params;
+    private Map db_params;
+    
+    /** Resolved feature store and schema per table */
+    private final FeatureStoreCache featureStores = new FeatureStoreCache();
+    
+    /** Time in milliseconds at which connecting the datastore is next retried, after a failure */
+    private volatile long datastore_retry_time;
     
-    /** Interval in milliseconds to reset the datastore */
-    private static long datastore_reset_interval;
+    /** Time in milliseconds to wait before retrying to connect the datastore, doubled on each failure */
+    private long datastore_retry_interval = datastore_min_retry_interval;
     
-    /** TODO: */
-    private static final StopWatch stopwatch = new StopWatch();
+    /** Shortest time in milliseconds to wait before retrying to connect the datastore */
+    private static final long datastore_min_retry_interval = 5 * 1000;
     
-    /** TODO: */
-    private static String last_table;
+    /** Longest time in milliseconds to wait before retrying to connect the datastore */
+    private static final long datastore_max_retry_interval = 5 * 60 * 1000;
+    
+    /** Last table written to, only used for logging */
+    private volatile String last_table;
+    
+    /** 
+     * Number of lanes track ids are hashed to. Writes lock the lanes of all their ids, so tracks
+     * for the same id are never written by two threads at once
+     */
+    private static final int id_lane_count = 64;
+    
+    /** Lock for each id lane */
+    private final ReentrantLock[] idLanes = new ReentrantLock[id_lane_count];
+    
+    /** Writes tracks on lanes partitioned by id, only set when write_lanes is positive */
+    private PartitionedTrackExecutor trackExecutor = null;
+    
+    /** Keeps the newest report per id until it's written, only set when coalesce_interval is positive */
+    private CoalescingTrackBuffer coalescer = null;
+    
+    /** Writes accepted tracks to the log tables, only set when history_log is true */
+    private TrackHistoryWriter historyWriter = null;
+    
+    /** Manages the log table partitions, only set when history_partition isn't none */
+    private HistoryPartitionManager partitionManager = null;
+    
+    /** Last written position and attributes per id, only set when movement_filter is enabled */
+    private MovementFilter movementFilter = null;
+    
+    /** Pipeline per table, only set when table_pipelines is enabled */
+    private TableRouter tableRouter = null;
     
     /** String of bad GML coordinates containing only a comma */
     private static final String gml_coord_comma = "<gml:coordinates>,</gml:coordinates>";
     
-    /** Number of messages that have entered the process, used for debugging */
-    private static int num_msg_started = 0;
+    /** Encoding of messages that arrive as Strings, and of logged payloads */
+    private static final Charset utf8 = Charset.forName("UTF-8");
+    
+    /** gml_coord_comma as bytes, it's plain ASCII, so matches any ASCII compatible encoding */
+    private static final byte[] gml_coord_comma_bytes = gml_coord_comma.getBytes(utf8);
     
-    /** Number of messages that have had an exception, used for debugging */
-    private static int num_msg_ex = 0;
+    /** Message counts, rejections, stage latencies and component gauges */
+    private final IngestMetrics metrics = new IngestMetrics();
     
-    /** Number of messages that have had a handled exception, used for debugging */
-    private static int num_msg_h_ex = 0;
+    /** Serves the metrics over HTTP, only set when metrics_http_port is positive */
+    private MetricsHttpServer metricsServer = null;
     
     /** Time threshold to throw away incoming features if they are older than*/
-    private static long old_feature_threshold = 12 * 3600 * 1000;
+    private static final long old_feature_threshold = 12 * 3600 * 1000;
     
     /** Time threshold to throw away incoming features if they are newer than (i.e. in the future)*/
-    private static long new_feature_threshold = 12 * 3600 * 1000;
+    private static final long new_feature_threshold = 12 * 3600 * 1000;
 
     /**
      * Public constructor
      */
     public GMLToDBProcessor() {
+    	for(int i = 0; i < idLanes.length; i++) {
+    		idLanes[i] = new ReentrantLock();
+    	}
     }
     
     /**
@@ -219,57 +547,95 @@ public class GMLToDBProcessor implements Processor {
     			log.info("datastore was null, so no datastore was found");
     		} else {
     			success = true;
-    			stopwatch.reset();
-            	stopwatch.start();
     		}
     	} catch (Exception e) {
     		log.error("Unhandled exception while getting datastore: " + e.getMessage(), e);
     	}
     	
+    	if(!success) {
+    		log.error("Could not connect to PostGIS DB, retrying in " + (datastore_retry_interval / 1000) + " seconds");
+    		datastore_retry_time = System.currentTimeMillis() + datastore_retry_interval;
+    		datastore_retry_interval = Math.min(datastore_retry_interval * 2, datastore_max_retry_interval);
+    	} else {
+    		datastore_retry_interval = datastore_min_retry_interval;
+    	}
+    	
     	return success;
     }
     
     
     /**
-     * Disposes of the datastore connection, and reconnects
+     * Retries connecting the datastore after it failed at startup, once the backoff has elapsed.
+     * Once connected, the pool itself replaces broken connections, so this isn't needed again.
+     * 
+     * @return true if the datastore is connected
      */
-    private void reset_datastore() {
-    	try {
-    		log.info("\n!!! RESETTING DATASTORE !!!\n");
-    		if (datastore != null) {
-    			datastore.dispose();    			
-    			datastore = null;
+    private synchronized boolean reconnect_datastore() {
+    	if(datastore != null) {
+    		return true;
+    	}
+    	if(System.currentTimeMillis() < datastore_retry_time) {
+    		return false;
+    	}
+    	
+    	metrics.increment("datastore_reconnects");
+    	if(init_datastore()) {
+    		log.info("Successfully connected PostGIS DB");
+    		if(positionCache == null) {
+    			initPositionCache();
     		}
-    		
+    		return true;
+    	}
+    	return false;
+    }
+    
+    
+    /**
+     * Closes the datastore and the connection pool
+     */
+    public synchronized void destroy() {
+    	if(metricsServer != null) {
+    		metricsServer.stop();
+    	}
+    	metrics.unregister();
+    	if(tableRouter != null) {
+    		tableRouter.shutdown();
+    	}
+    	if(coalescer != null) {
+    		coalescer.shutdown();
+    	}
+    	if(trackExecutor != null) {
+    		trackExecutor.shutdown();
+    	}
+    	if(historyWriter != null) {
+    		historyWriter.shutdown();
+    	}
+    	if(partitionManager != null) {
+    		partitionManager.shutdown();
+    	}
+    	featureStores.clear();
+    	if(datastore != null) {
+    		datastore.dispose();
+    		datastore = null;
+    	}
+    	if(dataSource != null) {
     		try {
-    			datastore = DataStoreFinder.getDataStore(db_params);	
-    		} catch (IOException dse) {
-    			log.error("Unhandled Exception ("+dse.getMessage()+") getting datastore with db_params: " 
-    					+ db_params.toString(), dse);
+    			dataSource.close();
+    		} catch (SQLException e) {
+    			log.error("Exception closing the connection pool: " + e.getMessage(), e);
     		}
-    		
-    		
-    		if (datastore == null) {
-            	log.fatal("reset_datastore(): Could not connect to PostGIS DB");
-            	System.exit(1);
-            } else {
-            	log.info("Successfully connected PostGIS DB");
-            	stopwatch.reset();
-            	stopwatch.start();
-            }
-    		
-    	} catch (Exception e) {
-    		log.error("Error initializing database connection.  Exiting.", e);
-    		System.exit(1);
-		} 
-    	
+    	}
     }
     
     
     /**
      * Initializes various objects with specified property values
      */
-    private boolean init() {
+    private synchronized boolean init() {
+    	if(hasInitialized) {
+    		return true;
+    	}
+    	
         PropertyConfigurator.configure(log4jPropertyFile);
         
         try {
@@ -292,20 +658,38 @@ public class GMLToDBProcessor implements Processor {
    	
     	log.info("Using the following for database:\n" + db_params.toString());
     	
-    	datastore_reset_interval = db_reset_interval * 60 * 1000;
-    	log.info("Using a db_reset_interval of: " + db_reset_interval);
-    	
-    	// Initialize the datastore
-    	//reset_datastore();
-    	if(!init_datastore()) {
-    		success = false;
+    	if(db_reset_interval > 0) {
+    		log.info("db_reset_interval is no longer used, connections are validated by the pool instead");
     	}
     	
+    	// The datastore and upsert writer share one pool, which validates connections on borrow
+    	// and evicts idle and broken ones
+    	dataSource = new PooledDataSource(dbhost, dbport, dbname, dbuser, dbpassword, db_pool_size, 
+    			db_pool_min_idle, db_pool_max_wait, db_pool_idle_timeout, db_connect_retries);
+    	db_params.put(JDBCDataStoreFactory.DATASOURCE.key, dataSource);
+    	log.info("Using a connection pool of " + db_pool_size + " connections");
+    	
+    	// Initialize the datastore. If the database isn't up yet, it's retried as messages arrive
+    	init_datastore();
+    	
     	try {
-    		// Set the CRS
-			tablecrs = CRS.decode(crs);
-			log.info("Set CRS to: " + crs);
-			log.info("tablecrs: " + tablecrs);
+    		initDecoding();
+			
+			if(db_upsert || history_log) {
+				final Integer srid = CRS.lookupEpsgCode(tablecrs, true);
+				if(srid == null) {
+					log.error("No EPSG code found for CRS '" + crs + "', can't use db_upsert or history_log");
+					success = false;
+				} else {
+					if(db_upsert) {
+						upsertWriter = new PostgisUpsertWriter(dataSource, srid, id_table_entry, timestampPropertyName);
+						log.info("Writing tracks with native upsert, using SRID: " + srid);
+					}
+					if(history_log) {
+						success = initHistoryWriter(srid) && success;
+					}
+				}
+			}
 		} catch (NoSuchAuthorityCodeException e) {
 			log.error("NoSuchAuthorityException while setting CoordinateReferenceSystem to: '" + crs + 
 					"': " + e.getMessage(), e);
@@ -322,8 +706,57 @@ public class GMLToDBProcessor implements Processor {
 			System.exit(1);
 		}
     	
-    	// Initialize the GML object to the specified version
-    	gml = new GML(parseGMLVersion());
+    	if(datastore != null) {
+    		initPositionCache();
+    	}
+    	
+    	if(movement_filter) {
+    		final List<String> attributes = new ArrayList<String>();
+    		if(movement_attributes != null) {
+    			for(String attribute : movement_attributes.split(",")) {
+    				if(!attribute.trim().isEmpty()) {
+    					attributes.add(attribute.trim());
+    				}
+    			}
+    		}
+    		movementFilter = new MovementFilter(movement_distance, movement_keepalive, 
+    				attributes.toArray(new String[attributes.size()]), movement_filter_size);
+    		log.info("Skipping writes of units that moved " + movement_distance + " or less, with unchanged " 
+    				+ attributes + ", for up to " + movement_keepalive + "ms");
+    	}
+    	
+    	if(table_pipelines) {
+    		success = initTableRouter() && success;
+    	}
+    	
+    	if(write_lanes > 0 && tableRouter == null) {
+    		trackExecutor = new PartitionedTrackExecutor(write_lanes, write_lane_queue_size);
+    		log.info("Writing tracks on " + write_lanes + " lanes partitioned by " + id_table_entry);
+    	}
+    	
+    	if(coalesce_interval > 0 && tableRouter == null) {
+    		coalescer = new CoalescingTrackBuffer(new CoalescingTrackBuffer.Sink() {
+    			@Override
+    			public void write(Map<String, Map<String, Track>> tables) {
+    				try {
+    					writeBatch(tables);
+    				} catch (InterruptedException ex) {
+    					// The messages were acknowledged as they joined the buffer, the lanes finish the writes
+    					log.warn("Interrupted waiting for coalesced track writes");
+    					Thread.currentThread().interrupt();
+    				}
+    			}
+    			
+    			@Override
+    			public void discarded(Track track) {
+    				// Superseding is routine here, so it's only counted
+    				metrics.rejected(RejectReason.DUPLICATE_ID);
+    			}
+    		}, coalesce_interval, coalesce_max_pending);
+    		log.info("Coalescing tracks by " + id_table_entry + " for " + coalesce_interval + "ms before writing");
+    	}
+    	
+    	initMetrics();
     	
     	hasInitialized = true;
     	
@@ -332,383 +765,1194 @@ public class GMLToDBProcessor implements Processor {
     
     
     /**
-     * Parses the gml_version property for the GeoTools GML Version to
-     * instantiate the GML object with.
+     * Sets up what {@link #decodeTracks(byte[], Map)} needs: the table CRS and its transform cache, the
+     * GML version, and the streaming decoder if enabled. Package-private, so the benchmarks can
+     * decode tracks without a database.
      * 
-     * @return the proper Version value the gml_version maps to.  If the one specified is not found, a default
-     *  of WFS1_0 is returned.
+     * @throws FactoryException if the crs property can't be decoded
      */
-    private Version parseGMLVersion() {
-		/* Options:
-	  		<li>WSF1_0</li>
-  			<li>WSF1_1</li>
-  			<li>GML2</li>
-  			<li>GML3</li>
-		 */
+    void initDecoding() throws FactoryException {
+    	// Set the CRS
+		tablecrs = CRS.decode(crs);
+		log.info("Set CRS to: " + crs);
+		log.info("tablecrs: " + tablecrs);
+		crsCache = new CrsTransformCache(tablecrs, crs_cache_size);
+		
+    	// Each thread initializes its GML object to the specified version
+    	gmlVersion = parseGMLVersion();
     	
-    	Version version = null;
-    	try {
-    		version = Version.valueOf(gml_version);
-    	} catch(Exception e) {
-    		log.info("Unhandled Exception while getting GML Version to use from gml_version property. " + 
-    				"Passed in value ("+ gml_version +") most likely didn't match one of the acceptable " + 
-    				"values (WFS1_0, WFS1_1, GML2, GML3).");
-    	} finally {
-    		if(version == null) {
-    			log.info("GML Version was unable to be processed from property, setting to default value of: WFS1_0");
-    			version = Version.WFS1_0; // the default
-    		} else {
-    			log.info("Parsed GMLVersion to: " + version.name());
-    		}
+    	if(gml_fast_decoder) {
+    		fastDecoder = new TrackGmlDecoder(id_table_entry, timestampPropertyName);
+    		log.info("Using the streaming GML track decoder");
     	}
-    	    	
-    	return version;
-	}   
-
-
-	/**
-     * Processes incoming GML messages, and inserts them into a PostGIS database
-     * @param exchange The incoming exchange from the camel route
+    	reportDecoder = fastDecoder != null ? fastDecoder : new TrackGmlDecoder(id_table_entry, timestampPropertyName);
+    }
+    
+    
+    /**
+     * Hooks the gauges of the components in use up to the metrics, and exposes them over JMX and
+     * HTTP if enabled
      */
-    @Override
-    //@SuppressWarnings({"unchecked", "unchecked", "unchecked", "unchecked"})
-    public void process(Exchange exchange) {
+    private void initMetrics() {
+    	metrics.setGaugeSource(new IngestMetrics.GaugeSource() {
+    		@Override
+    		public void collect(Map<String, Long> gauges) {
+    			gauges.put("pool_active", (long) dataSource.getNumActive());
+    			gauges.put("pool_idle", (long) dataSource.getNumIdle());
+    			gauges.put("pool_borrowed", dataSource.getBorrowed());
+    			gauges.put("pool_connect_retries", dataSource.getFailures());
+    			gauges.put("pool_exhausted", dataSource.getExhausted());
+    			gauges.put("pool_max_wait_ms", (long) dataSource.getMaxWaitMillis());
+    			gauges.put("crs_cache_hits", crsCache.getHits());
+    			gauges.put("crs_cache_misses", crsCache.getMisses());
+    			
+    			final LastPositionCache cache = positionCache;
+    			if(cache != null) {
+    				gauges.put("position_cache_hits", cache.getHits());
+    				gauges.put("position_cache_misses", cache.getMisses());
+    			}
+    			if(fastDecoder != null) {
+    				gauges.put("fast_decoder_fallbacks", fastDecoder.getFallbacks());
+    			}
+    			if(trackExecutor != null) {
+    				gauges.put("lane_queue_depth", (long) trackExecutor.getQueueDepth());
+    			}
+    			if(coalescer != null) {
+    				gauges.put("coalescer_pending", (long) coalescer.getPending());
+    				gauges.put("coalescer_coalesced", coalescer.getCoalesced());
+    				gauges.put("coalescer_dropped", coalescer.getDropped());
+    			}
+    			if(historyWriter != null) {
+    				gauges.put("history_queue_depth", (long) historyWriter.getQueueDepth());
+    				gauges.put("history_written", historyWriter.getWritten());
+    				gauges.put("history_spilled", historyWriter.getSpilled());
+    				gauges.put("history_dropped", historyWriter.getDropped());
+    				gauges.put("history_copy_failures", historyWriter.getFailures());
+    			}
+    			if(movementFilter != null) {
+    				gauges.put("movement_suppressed", movementFilter.getSuppressed());
+    				gauges.put("movement_moved", movementFilter.getMoved());
+    				gauges.put("movement_changed", movementFilter.getChanged());
+    				gauges.put("movement_kept_alive", movementFilter.getKeptAlive());
+    				gauges.put("movement_filter_size", (long) movementFilter.size());
+    			}
+    		}
+    		
+    		@Override
+    		public void collectTables(Map<String, Map<String, Long>> tableGauges) {
+    			if(tableRouter != null) {
+    				tableGauges.put("table_queue_depth", tableRouter.getQueueDepths());
+    				tableGauges.put("table_coalesced", tableRouter.getCoalesced());
+    			}
+    		}
+    	});
     	
-    	if(!hasInitialized && !init()) {
-			log.info("Initialization failed... shutting down.");
-			try {
-				exchange.getContext().stop();
-				System.exit(1);
-			} catch (Exception e) {
-				log.error("Unhandled exception while attempting to stop context: " + e.getMessage(), e);
-			}
+    	if(metrics_jmx) {
+    		metrics.register("edu.mit.ll.nics.processor:type=GMLToDBProcessor,name=IngestMetrics");
     	}
     	
-    	num_msg_started++;
+    	if(metrics_http_port > 0) {
+    		try {
+    			metricsServer = new MetricsHttpServer(metrics_http_port, metrics);
+    			metricsServer.start();
+    		} catch (IOException e) {
+    			log.error("Could not serve metrics on port " + metrics_http_port + ": " + e.getMessage(), e);
+    		}
+    	}
+    }
+    
+    
+    /**
+     * Creates and starts the history writer, which looks up the log tables through the datastore
+     * 
+     * @param srid SRID of the table CRS
+     * @return false if the partitioning properties are invalid
+     */
+    private boolean initHistoryWriter(int srid) {
+    	if(!"none".equalsIgnoreCase(history_partition.trim())) {
+    		try {
+    			final HistoryPartitionManager.Interval interval = HistoryPartitionManager.Interval.valueOf(
+    					history_partition.trim().toUpperCase());
+    			
+    			final Map<String, Long> retentions = new HashMap<String, Long>();
+    			if(history_retention_tables != null) {
+    				for(String entry : history_retention_tables.split(",")) {
+    					if(!entry.trim().isEmpty()) {
+    						final int colon = entry.lastIndexOf(':');
+    						if(colon < 0) {
+    							throw new IllegalArgumentException("Expected table:retention, got: " + entry.trim());
+    						}
+    						retentions.put(entry.substring(0, colon).trim(), 
+    								HistoryPartitionManager.parseRetention(entry.substring(colon + 1)));
+    					}
+    				}
+    			}
+    			
+    			partitionManager = new HistoryPartitionManager(dataSource, timestampPropertyName, interval, 
+    					history_partitions_ahead, HistoryPartitionManager.parseRetention(history_retention), 
+    					retentions, history_drop_expired);
+    		} catch (IllegalArgumentException e) {
+    			log.error("Invalid history partitioning properties, history_partition: " + history_partition 
+    					+ ", history_retention: " + history_retention + ", history_retention_tables: " 
+    					+ history_retention_tables + ": " + e.getMessage());
+    			return false;
+    		}
+    		partitionManager.start();
+    	}
     	
-    	SimpleFeatureIterator iterator = null;
-    	SimpleFeatureCollection getfeatures = null;
-    	SimpleFeatureCollection featcollection = null;
-    	SimpleFeatureStore featStore = null;
+    	final File spillDir = history_spill_dir == null || history_spill_dir.trim().isEmpty() ? null 
+    			: new File(history_spill_dir.trim());
     	
-    	String id = null;
-    	int count;
-    	Filter filter = null;
-    	
-        // get the GML message from the exchange
-    	InputStream in = exchange.getIn().getBody(InputStream.class);
-    	String gml_str = exchange.getIn().getBody(String.class);
-        //log.info("Processing Message In : " + gml_str);
-    	
-    	// Test for the coordinates being ',' here...
-    	if(gml_str.contains(gml_coord_comma)) {
-    		log.info("Dropping message:\n"
-    				+ gml_str + "\n\nRejecting above message due to invalid coordinates");
-    		return;
+    	historyWriter = new TrackHistoryWriter(dbhost, dbport, dbname, dbuser, dbpassword, srid, 
+    			timestampPropertyName, new TrackHistoryWriter.SchemaSource() {
+    		@Override
+    		public SimpleFeatureType getSchema(String tableName) throws IOException {
+    			final DataStore store = datastore;
+    			if(store == null) {
+    				throw new IOException("Datastore is not initialized");
+    			}
+    			return featureStores.get(store, tableName).getSchema();
+    		}
+    	}, partitionManager, history_buffer_size, history_batch_size, history_flush_interval, spillDir);
+    	historyWriter.start();
+    	log.info("Writing track history to the _log tables" 
+    			+ (spillDir != null ? ", spilling to " + spillDir : ", dropping rows that can't be buffered"));
+    	return true;
+    }
+    
+    
+    /**
+     * Creates the table router, writing each table's batches on its own thread
+     * 
+     * @return false if table_pipeline_tables is invalid
+     */
+    private boolean initTableRouter() {
+    	if(write_lanes > 0 || coalesce_interval > 0) {
+    		log.warn("table_pipelines is enabled, so write_lanes and coalesce_interval are ignored");
     	}
     	
-        try {
-        	if (stopwatch.getTime() > datastore_reset_interval) {
-        		stopwatch.stop();
-        		reset_datastore();
-        	}
-        	
-        	// Bad coordinates bomb here, so checks later don't help, at least not for the ',' kind - jp
-        	featcollection = gml.decodeFeatureCollection(in);
-        	//log.info("GML parsed");
-
-        	iterator = featcollection.features();
-            SimpleFeature feat = iterator.next();
-            
-            // The below check of the attributes may be unnecessary? When it's decoded, it runs
-            // into syntax issues and dies, dropping the track. However, there may be parseable values
-            // that make it here, then other issues the validation below susses out. Except not sure if
-            // the decoding does validation at the same time already, though? - jp
-            
-            //ERROR CHECK - Use geotools validation
-            for (AttributeDescriptor property : feat.getType().getAttributeDescriptors() ) {
-          	   Object value = feat.getAttribute( property.getName() );
-          	   try {
-          		   Types.validate( property, value);
-          	   } catch (IllegalAttributeException ex) {
-          		   throw new GdfcException("Failed geotools validation", ex);
-          	   }
-          	}
-              
-            //ERROR CHECK - 1 FEATURE
-          	if (iterator.hasNext()) {
-          		throw new GdfcException("More than one feature in incoming GML");
-          	}
-            
-            //ERROR CHECK - ID
-            try {
-            	id = feat.getAttribute(id_table_entry).toString();
-            } catch (NullPointerException ex) {
-            	throw new GdfcException("NullPointerException getting " + id_table_entry + " attribute from feature", ex);
-            }
-            
-        	//ERROR CHECK - TIMESTAMP
-        	// Don't persist a track with an invalid or old time
-            Timestamp tsNew = getTimestampFromFeature(feat);
-        	if(tsNew == null) {
-        		throw new GdfcException("Unparseable timestamp, dropping track");
-        	}
-        	
-        	long currentTimeMillis = System.currentTimeMillis();
-        	
-        	if (tsNew.before(new Timestamp(currentTimeMillis - old_feature_threshold))) { //if it's older than threshold
-        		throw new GdfcException("Timestamp is old and being ignored");
-        	}
-        	
-        	if (tsNew.after(new Timestamp(currentTimeMillis + new_feature_threshold))) { //if it's "newer" than threshold
-        		throw new GdfcException("Timestamp is too far in the future and being ignored");
-        	}
-        	
-        	
-        	//ERROR CHECK - COORDINATES
-        	Point point =  (Point) feat.getDefaultGeometry();
-        	if ( !Pattern.matches( "(\\(-?\\d+(\\.\\d+)?,\\s?-?\\d+(\\.\\d+)?(,\\s?-?\\d+(\\.\\d+)?|(,\\s?NaN))?\\))", 
-        			point.getCoordinate().toString() ) ) {
-        		throw new GdfcException("failed coordinate regex check on: " + point.getCoordinate().toString());
-        	}
-        	if ( point.getCoordinate().equals(new Coordinate(0,0)))	{
-        		throw new GdfcException("Coordinates 0,0 in GML");
-        	}
-        	
-        	//ERROR CHECK - COORDINATE REFERENCE SYSTEM
-        	String feat_crs_wkt = point.getUserData().toString();
-        	CoordinateReferenceSystem pointcrs = CRS.parseWKT(feat_crs_wkt);
-        	if(pointcrs == null) {
-        		throw new GdfcException("pointcrs is null");
-        	}
-        	
-        	//transform coordinates to our preferred CRS
-        	MathTransform transform = CRS.findMathTransform(pointcrs, tablecrs, false);
-        	point = (Point) JTS.transform(point, transform);
-        	point.setUserData(null);
-        	feat.setDefaultGeometry(point);
-        	   	
-        	
-        	//THIS FEATURE ISNT USED, DISABLE FOR NOW
-        	// Log the track to the current table's log table
-        	//logTrack(postgisTableName + "_log", featcollection);
-        	
+    	final TableRouter.Settings defaults = new TableRouter.Settings(table_queue_size, table_batch_size);
+    	final Map<String, TableRouter.Settings> settings;
+    	try {
+    		settings = TableRouter.parseSettings(table_pipeline_tables, defaults);
+    	} catch (IllegalArgumentException e) {
+    		log.error("Invalid table_pipeline_tables: " + table_pipeline_tables + ": " + e.getMessage());
+    		return false;
+    	}
+    	
+    	tableRouter = new TableRouter(new TableRouter.Writer() {
+    		@Override
+    		public void write(String table, List<Track> tracks) {
+    			// Each table has one writer thread, the id locks still keep the cache check and the
+    			// commit together
+    			writeTracks(table, tracks);
+    		}
+    		
+    		@Override
+    		public void discarded(Track track) {
+    			// Superseding is routine here, so it's only counted
+    			metrics.rejected(RejectReason.DUPLICATE_ID);
+    		}
+    		
+    		@Override
+    		public void failed(String table, List<Track> tracks) {
+    			metrics.failed(tracks.size());
+    		}
+    	}, defaults, settings, table_offer_timeout);
+    	log.info("Writing each table on its own pipeline, " + defaults + ", tables: " + settings);
+    	return true;
+    }
+    
+    
+    /**
+     * Creates the position cache if enabled, and warms it from the position_cache_tables
+     */
+    private void initPositionCache() {
+    	if(position_cache_size > 0) {
+    		final LastPositionCache cache = new LastPositionCache(position_cache_size, old_feature_threshold);
+    		log.info("Using a position cache of " + position_cache_size + " ids per table");
+    		
+    		if(position_cache_tables != null) {
+    			for(String table : position_cache_tables.split(",")) {
+    				if(!table.trim().isEmpty()) {
+    					warmPositionCache(cache, table.trim());
+    				}
+    			}
+    		}
+    		positionCache = cache;
+    	}
+    }
+    
+    
+    /**
+     * Loads the id and timestamp of every feature in the table into the position cache
+     * 
+     * @param cache the position cache to load into
+     * @param postgisTableName the table to load
+     */
+    private void warmPositionCache(LastPositionCache cache, String postgisTableName) {
+    	cache.addTable(postgisTableName);
+    	
+    	SimpleFeatureIterator iter = null;
+    	try {
+    		final Query query = new Query(postgisTableName, Filter.INCLUDE, 
+    				new String[] {id_table_entry, timestampPropertyName});
+    		iter = featureStores.get(datastore, postgisTableName).getStore().getFeatures(query).features();
+    		
+    		int count = 0;
+    		while(iter.hasNext()) {
+    			final SimpleFeature stored = iter.next();
+    			final Object storedId = stored.getAttribute(id_table_entry);
+    			try {
+    				final Timestamp tsStored = getTimestampFromFeature(stored);
+    				if(storedId != null && tsStored != null) {
+    					cache.put(postgisTableName, storedId.toString(), tsStored.getTime());
+    					count++;
+    				}
+    			} catch (GdfcException e) {
+    				log.debug("Not caching feature " + storedId + ": " + e.getMessage());
+    			}
+    		}
+    		
+    		log.info("Warmed position cache for table " + postgisTableName + " with " + count + " ids");
+    	} catch (Exception e) {
+    		log.error("Unhandled exception while warming position cache for table " + postgisTableName 
+    				+ ": " + e.getMessage(), e);
+    	} finally {
+    		if(iter != null) {
+    			iter.close();
+    		}
+    	}
+    }
+    
+    
+    /**
+     * Parses the gml_version property for the GeoTools GML Version to
+     * instantiate the GML object with.
+     * 
+     * @return the proper Version value the gml_version maps to.  If the one specified is not found, a default
+     *  of WFS1_0 is returned.
+     */
+    private Version parseGMLVersion() {
+		/* Options:
+	  		<li>WSF1_0</li>
+  			<li>WSF1_1</li>
+  			<li>GML2</li>
+  			<li>GML3</li>
+		 */
+    	
+    	Version version = null;
+    	try {
+    		version = Version.valueOf(gml_version);
+    	} catch(Exception e) {
+    		log.info("Unhandled Exception while getting GML Version to use from gml_version property. " + 
+    				"Passed in value ("+ gml_version +") most likely didn't match one of the acceptable " + 
+    				"values (WFS1_0, WFS1_1, GML2, GML3).");
+    	} finally {
+    		if(version == null) {
+    			log.info("GML Version was unable to be processed from property, setting to default value of: WFS1_0");
+    			version = Version.WFS1_0; // the default
+    		} else {
+    			log.info("Parsed GMLVersion to: " + version.name());
+    		}
+    	}
+    	    	
+    	return version;
+	}   
 
-        	//connect to feature store
-        	final SimpleFeatureType schema_new = featcollection.getSchema();
-        	final String postgisTableName = schema_new.getName().getLocalPart();
-        	//featuresource is read only, cast as featurestore for write/modify
-        	featStore = (SimpleFeatureStore) datastore.getFeatureSource(postgisTableName); 
-        	//log.info("connected to postgis table: " + postgisTableName);
-        	
-        	//look for feature in table
-        	filter = CQL.toFilter(id_table_entry + " = '" + id + "'");
-            getfeatures = featStore.getFeatures(filter);
-            count = getfeatures.size();
-        	
-            switch (count) { 	
-	            case 0: 	//if no feature exists then create feature for postgis database
-	            	//log.info("adding feature: " + id + " to db: " + postgisTableName);
-	            	
-	            	//add feature to database
-	            	Transaction addTransaction = new DefaultTransaction("add");
-	                featStore.setTransaction(addTransaction);
-	                try {
-	                	featStore.addFeatures(featcollection);
-	                    addTransaction.commit();
-	                } catch (Exception ex) {
-	                	addTransaction.rollback();
-	                	throw new GdfcException("Exception adding features: " + ex.getMessage(), ex);
-	                } finally {
-	                    addTransaction.close();
-	                }
-	            	
-	            	//log.info("added feature: " + id + " to table: " + postgisTableName);
-	            	break;
-	            
-	            case 1://if feature is in table modify feature with updated info
-	            	
-	            	//log.info("found feature id: " + id + " in db: " + postgisTableName);
-
-	            	// Get existing track's timestamp
-	            	Timestamp tsCurrent = getTimestampFromFeatureCollection(getfeatures);
-	            	
-	            	if(tsCurrent == null) {
-	            		throw new GdfcException("A feature exists in the DB with a null timestamp");
-	            	}else if(tsNew.before(tsCurrent)) {
-            			throw new GdfcException("A feature exists in the DB with a newer timestamp");
-            		}
-	            	
-	            	Transaction removeAddTransaction = new DefaultTransaction("remove_add");
-	                featStore.setTransaction(removeAddTransaction);
-	                try {
-	                	featStore.removeFeatures(filter);
-	                	featStore.addFeatures(featcollection);
-	                    removeAddTransaction.commit();
-	                } catch (Exception ex) {
-	                	removeAddTransaction.rollback();
-	                	throw new GdfcException("Exception during remove_add transaction: " + ex.getMessage(), ex);
-	                } finally {
-	                    removeAddTransaction.close();
-	                }
-
-	            	//log.info("modified feature: " + id + " in table: " + postgisTableName);
-	            	
-	            	break;
-	            	
-	            default:
-	            	throw new GdfcException("More than one feature with same " + id_table_entry + " in DB, " + id_table_entry + " : " + id);
-            }
-            
-            if (!postgisTableName.equals(last_table)) {
-            	last_table = postgisTableName;
-            	log.info("current data source: " + postgisTableName);
-            }
-            
-        } catch (GdfcException ex) {
-        	log.warn("Caught expected exception processing gml: " + gml_str + " exception: " + ex.getMessage());
-            num_msg_h_ex++;
-            
-        } catch (Exception ex) {
-            log.error("Caught UNEXPECTED exception processing gml: " + gml_str + " exception: " + ex, ex);
-            num_msg_ex++;
-            
-        } finally {
-        	try {
-        		if (num_msg_started % 1000 == 0)	{
-        			log.info("number of messages started: " + num_msg_started + "   number of messages with a handled exception: " + num_msg_h_ex + "   number of messages with an unhandled exception: " + num_msg_ex);
-        		}
-        		
-        		featStore = null;
-        		featcollection = null;
-        		getfeatures = null;
-        		
-        		if(iterator != null) {
-        			iterator.close();
-        		}
-        		
-        		in.close();
-        		
-        	} catch (IOException ex) {
-        		log.error("could not close GML inputstream");
-        		num_msg_ex++;
-        	}
-        }
-    }
-            
-
-
-	/**
-     * Logs the features to a log table, created by appending "_log" to the postgisTableName
+
+	/**
+     * Processes incoming GML messages, and inserts them into a PostGIS database. The body is
+     * either a single GML message, or a List of GML messages collected by the
+     * {@link TrackBatchAggregationStrategy} when the route batches tracks.
      * 
-     * @param logTableName The name of the log table to log to
-     * @param features The feature collection to log
-     * @return true if successfully committed track to log, false otherwise
+     * @param exchange The incoming exchange from the camel route
+     * @throws Exception if the database can't be reached, failing the exchange so its messages
+     *         aren't acknowledged, and are delivered again
      */
-    private boolean logTrack(String logTableName, SimpleFeatureCollection features) {
-    	boolean success = false;
+    @Override
+    @SuppressWarnings("unchecked")
+    public void process(Exchange exchange) throws Exception {
+    	
+    	if(!hasInitialized && !init()) {
+			log.info("Initialization failed... shutting down.");
+			try {
+				exchange.getContext().stop();
+				System.exit(1);
+			} catch (Exception e) {
+				log.error("Unhandled exception while attempting to stop context: " + e.getMessage(), e);
+			}
+    	}
+    	
+    	// Messages are kept as the bytes received, and only decoded by the GML parser. Reports
+    	// handed over in process are taken as they are
+    	final Object body = exchange.getIn().getBody();
+    	final List<?> messages;
+    	if(body instanceof List) {
+    		messages = (List<?>) body;
+    	} else if(body instanceof TrackReport) {
+    		messages = Collections.singletonList(body);
+    	} else {
+    		messages = Collections.singletonList(exchange.getIn().getBody(byte[].class));
+    	}
+    	
+    	if(datastore == null && !reconnect_datastore()) {
+    		metrics.started(messages.size());
+    		metrics.failed(messages.size());
+    		throw new GdfcException(RejectReason.DB_ERROR, "No connection to PostGIS DB, failing " + messages.size() + " messages");
+    	}
+    	
+    	processTracks(messages);
+    }
+    
+    /**
+     * Decodes and validates each GML message, or each feature of a collection, collapses the resulting tracks by table and
+     * {@link #id_table_entry}, keeping only the newest report per id, and writes each table's
+     * tracks in a single transaction
+     * 
+     * @param messages the GML messages to process, as byte arrays or Strings, or {@link TrackReport}s
+     * @throws InterruptedException if interrupted waiting for the write lanes, so the messages
+     *         aren't acknowledged before their tracks are written
+     */
+    private void processTracks(List<?> messages) throws InterruptedException {
+    	// table name -> (id -> newest track)
+    	final Map<String, Map<String, Track>> tables = new LinkedHashMap<String, Map<String, Track>>();
+    	
+    	for(Object message : messages) {
+    		if (metrics.started(1) % 1000 == 0)	{
+    			logStatistics();
+    		}
+    		
+    		final TrackReport report = message instanceof TrackReport ? (TrackReport) message : null;
+    		final byte[] gml_bytes = report != null ? null : toBytes(message);
+    		if(report == null && gml_bytes == null) {
+    			log.warn("Dropping message with no body");
+    			metrics.rejected(RejectReason.EMPTY_MESSAGE);
+    			continue;
+    		}
+    		
+    		// Test for the coordinates being ',' here...
+    		if(gml_bytes != null && indexOf(gml_bytes, gml_coord_comma_bytes) >= 0) {
+    			log.info("Dropping message:\n"
+    					+ payload(gml_bytes) + "\n\nRejecting above message due to invalid coordinates");
+    			metrics.rejected(RejectReason.INVALID_COORDINATES);
+    			continue;
+    		}
+    		
+    		if(report != null) {
+    			try {
+    				addTrack(decodeReport(report), tables);
+    			} catch (Exception ex) {
+    				dropTrack(report, ex);
+    			}
+    		} else {
+    			decodeTracks(gml_bytes, tables);
+    		}
+    	}
+    	
+    	if(movementFilter != null) {
+    		suppressStationary(tables);
+    	}
+    	
+    	if(tableRouter != null) {
+    		final List<Track> tracks = new ArrayList<Track>();
+    		for(Map<String, Track> table : tables.values()) {
+    			tracks.addAll(table.values());
+    		}
+    		for(Track track : tableRouter.offer(tracks)) {
+    			rejectTrack(track, RejectReason.TABLE_BACKLOG, "The queue of table " + track.getTableName() 
+    					+ " stayed full for the batch's " + table_offer_timeout + "ms");
+    		}
+    	} else if(coalescer != null) {
+    		int total = 0;
+    		int offered = 0;
+    		for(Map<String, Track> table : tables.values()) {
+    			total += table.size();
+    		}
+    		try {
+    			for(Map<String, Track> table : tables.values()) {
+    				for(Track track : table.values()) {
+    					if(!coalescer.offer(track)) {
+    						log.error("The coalescing buffer is shut down, dropping track " + track.getId());
+    						metrics.failed(1);
+    					}
+    					offered++;
+    				}
+    			}
+    		} catch (InterruptedException ex) {
+    			Thread.currentThread().interrupt();
+    			log.warn("Interrupted waiting for room in the coalescing buffer, dropping " + (total - offered) + " tracks");
+    			metrics.failed(total - offered);
+    		}
+    	} else {
+    		writeBatch(tables);
+    	}
+    }
+    
+    /**
+     * Decodes a GML message of up to gml_max_features features, checking each feature as its own
+     * track, so one bad feature of a collection doesn't drop the rest. The features after the
+     * first are counted as messages started, so the counters stay per track. Package-private for
+     * the benchmarks.
+     * 
+     * @param gml_bytes the GML message
+     * @param tables the tracks to write, by table name and id, to add the message's tracks to
+     */
+    void decodeTracks(byte[] gml_bytes, Map<String, Map<String, Track>> tables) {
+    	SimpleFeatureIterator iterator = null;
+    	final List<SimpleFeature> features = new ArrayList<SimpleFeature>();
+    	final String postgisTableName;
+    	try {
+    		final long stageStart = System.nanoTime();
+    		final SimpleFeatureCollection featcollection = decodeCollection(gml_bytes);
+    		
+    		iterator = featcollection.features();
+    		while(iterator.hasNext()) {
+    			features.add(iterator.next());
+    			
+    			//ERROR CHECK - gml_max_features FEATURES
+    			if(features.size() > gml_max_features) {
+    				throw new GdfcException(RejectReason.MULTIPLE_FEATURES, "More than " + gml_max_features + " features in incoming GML");
+    			}
+    		}
+    		metrics.time(Stage.DECODE, stageStart);
+    		
+    		if(features.isEmpty()) {
+    			throw new GdfcException(RejectReason.EMPTY_MESSAGE, "No features in incoming GML");
+    		}
+    		postgisTableName = featcollection.getSchema().getName().getLocalPart();
+    		
+    	} catch (Exception ex) {
+    		dropTrack(payload(gml_bytes), ex);
+    		return;
+    	} finally {
+    		if(iterator != null) {
+    			iterator.close();
+    		}
+    	}
+    	
+    	if(features.size() > 1) {
+    		metrics.started(features.size() - 1);
+    	}
+    	
+    	for(SimpleFeature feat : features) {
+    		try {
+    			addTrack(checkTrack(feat, postgisTableName, gml_bytes), tables);
+    		} catch (Exception ex) {
+    			dropTrack(features.size() > 1 ? feat.getID() + " of " + payload(gml_bytes) : payload(gml_bytes), ex);
+    		}
+    	}
+    }
+    
+    /**
+     * Adds a decoded track to the batch, unless the position cache or a newer report for the same
+     * id in the batch shows it's out of date
+     * 
+     * @param track the track
+     * @param tables the tracks to write, by table name and id
+     * @throws GdfcException if the track isn't newer than the last accepted report
+     */
+    private void addTrack(Track track, Map<String, Map<String, Track>> tables) throws GdfcException {
+    	if(positionCache != null) {
+    		if(!positionCache.hasTable(track.getTableName())) {
+    			warmPositionCache(positionCache, track.getTableName());
+    		}
+    		
+    		final Long tsCached = positionCache.get(track.getTableName(), track.getId());
+    		if(tsCached != null && track.getTimestamp().getTime() <= tsCached) {
+    			throw new GdfcException(RejectReason.NOT_NEWER, "Timestamp is not newer than the last accepted report, dropping track");
+    		}
+    	}
+    	
+    	Map<String, Track> pending = tables.get(track.getTableName());
+    	if(pending == null) {
+    		pending = new LinkedHashMap<String, Track>();
+    		tables.put(track.getTableName(), pending);
+    	}
+    	
+    	final Track previous = pending.get(track.getId());
+    	if(previous != null && track.getTimestamp().before(previous.getTimestamp())) {
+    		rejectTrack(track, RejectReason.DUPLICATE_ID, "A newer report for this " + id_table_entry + " is in the same batch");
+    	} else {
+    		if(previous != null) {
+    			rejectTrack(previous, RejectReason.DUPLICATE_ID, "Superseded by a newer report in the same batch");
+    		}
+    		pending.put(track.getId(), track);
+    	}
+    }
+    
+    /**
+     * Logs and counts a message, or a feature of one, that couldn't be turned into a track
+     * 
+     * @param message what was dropped, for the log
+     * @param ex why, a {@link GdfcException} for an expected rejection
+     */
+    private void dropTrack(Object message, Exception ex) {
+    	if(ex instanceof GdfcException) {
+    		log.warn("Caught expected exception processing gml: " + message + " exception: " + ex.getMessage());
+    		metrics.rejected(((GdfcException) ex).getReason());
+    	} else {
+    		log.error("Caught UNEXPECTED exception processing gml: " + message + " exception: " + ex, ex);
+    		metrics.failed(1);
+    	}
+    }
+    
+    /**
+     * Removes the tracks of units that haven't moved or changed since their last written report,
+     * counting them as suppressed
+     * 
+     * @param tables the tracks to write, by table name and id
+     */
+    private void suppressStationary(Map<String, Map<String, Track>> tables) {
+    	for(Map.Entry<String, Map<String, Track>> table : tables.entrySet()) {
+    		int suppressed = 0;
+    		final Iterator<Track> tracks = table.getValue().values().iterator();
+    		while(tracks.hasNext()) {
+    			if(movementFilter.suppress(tracks.next())) {
+    				tracks.remove();
+    				suppressed++;
+    			}
+    		}
+    		if(suppressed > 0) {
+    			metrics.suppressed(table.getKey(), suppressed);
+    		}
+    	}
+    }
+    
+    /**
+     * Writes a batch of tracks, on the write lanes if enabled, or on the calling thread
+     * 
+     * @param tables the tracks to write, by table name and id
+     * @throws InterruptedException if interrupted waiting for the write lanes
+     */
+    private void writeBatch(Map<String, Map<String, Track>> tables) throws InterruptedException {
+    	if(trackExecutor != null) {
+    		writeTracksOnLanes(tables);
+    	}
+    	
+    	for(Map.Entry<String, Map<String, Track>> table : tables.entrySet()) {
+    		if(trackExecutor == null) {
+    			writeTracks(table.getKey(), table.getValue().values());
+    		}
+    		
+    		if (!table.getKey().equals(last_table)) {
+    			last_table = table.getKey();
+    			log.info("current data source: " + last_table);
+    		}
+    	}
+    }
+    
+    /**
+     * Splits the tracks between the write lanes by id, and waits for every lane to commit its
+     * share, so the incoming message is only acknowledged once its tracks are written. The tracks
+     * of a lane whose write throws are counted as failed
+     * 
+     * @param tables the tracks to write, by table name and id
+     * @throws InterruptedException if interrupted waiting, failing the exchange so the message
+     *         isn't acknowledged while its writes are still running
+     */
+    private void writeTracksOnLanes(Map<String, Map<String, Track>> tables) throws InterruptedException {
+    	// lane -> (table name -> tracks)
+    	final Map<Integer, Map<String, List<Track>>> partitions = new HashMap<Integer, Map<String, List<Track>>>();
+    	for(Map.Entry<String, Map<String, Track>> table : tables.entrySet()) {
+    		for(Track track : table.getValue().values()) {
+    			final Integer lane = trackExecutor.laneOf(track.getId());
+    			Map<String, List<Track>> partition = partitions.get(lane);
+    			if(partition == null) {
+    				partition = new LinkedHashMap<String, List<Track>>();
+    				partitions.put(lane, partition);
+    			}
+    			List<Track> laneTracks = partition.get(table.getKey());
+    			if(laneTracks == null) {
+    				laneTracks = new ArrayList<Track>();
+    				partition.put(table.getKey(), laneTracks);
+    			}
+    			laneTracks.add(track);
+    		}
+    	}
+    	
+    	// Each lane's write, and how many tracks it has
+    	final Map<Future<Void>, Integer> pending = new LinkedHashMap<Future<Void>, Integer>();
+    	for(Map.Entry<Integer, Map<String, List<Track>>> partition : partitions.entrySet()) {
+    		final Map<String, List<Track>> laneTables = partition.getValue();
+    		int laneCount = 0;
+    		for(List<Track> tracks : laneTables.values()) {
+    			laneCount += tracks.size();
+    		}
+    		try {
+    			pending.put(trackExecutor.submit(partition.getKey(), new Callable<Void>() {
+    				@Override
+    				public Void call() {
+    					// A lane is the only writer of its ids, the id locks are uncontended
+    					for(Map.Entry<String, List<Track>> table : laneTables.entrySet()) {
+    						writeTracks(table.getKey(), table.getValue());
+    					}
+    					return null;
+    				}
+    			}), laneCount);
+    		} catch (RejectedExecutionException ex) {
+    			for(List<Track> tracks : laneTables.values()) {
+    				for(Track track : tracks) {
+    					log.error("Caught UNEXPECTED exception processing gml: " + payload(track.getMessage()) + " exception: " + ex, ex);
+    					metrics.failed(1);
+    				}
+    			}
+    		}
+    	}
+    	
+    	for(Map.Entry<Future<Void>, Integer> write : pending.entrySet()) {
+    		try {
+    			write.getKey().get();
+    		} catch (ExecutionException ex) {
+    			log.error("Caught UNEXPECTED exception writing " + write.getValue() + " tracks: " + ex.getCause(), ex.getCause());
+    			metrics.failed(write.getValue());
+    		}
+    	}
+    }
+    
+    /**
+     * Gets the bytes of a message body, encoding it as UTF-8 if it arrived as a String
+     * 
+     * @return the bytes, or null if the body is null
+     */
+    private static byte[] toBytes(Object message) {
+    	if(message == null || message instanceof byte[]) {
+    		return (byte[]) message;
+    	}
+    	return message.toString().getBytes(utf8);
+    }
+    
+    /**
+     * Finds the first occurrence of the pattern in the message, without decoding the message
+     * 
+     * @return the index of the pattern, or -1 if it isn't found
+     */
+    private static int indexOf(byte[] message, byte[] pattern) {
+    	final byte first = pattern[0];
+    	final int last = message.length - pattern.length;
+    	for(int i = 0; i <= last; i++) {
+    		if(message[i] != first) {
+    			continue;
+    		}
+    		int j = 1;
+    		while(j < pattern.length && message[i + j] == pattern[j]) {
+    			j++;
+    		}
+    		if(j == pattern.length) {
+    			return i;
+    		}
+    	}
+    	return -1;
+    }
+    
+    /**
+     * Formats a track's message for logging, decoding it if it's GML
+     */
+    private String payload(Object message) {
+    	return message instanceof byte[] ? payload((byte[]) message) : String.valueOf(message);
+    }
+    
+    /**
+     * Decodes a message for logging, cut to payload_log_limit bytes
+     */
+    private String payload(byte[] message) {
+    	if(payload_log_limit < 0) {
+    		return new String(message, utf8);
+    	}
+    	if(payload_log_limit == 0) {
+    		return "(" + message.length + " bytes)";
+    	}
+    	
+    	final int length = Math.min(message.length, payload_log_limit);
+    	final String text = new String(message, 0, length, utf8);
+    	return length < message.length ? text + "... (" + message.length + " bytes)" : text;
+    }
+    
+    /**
+     * Logs the message counters, and the statistics of the caches in use
+     */
+    private void logStatistics() {
+    	log.info("number of messages started: " + metrics.getMessagesStarted() + "   number of messages with a handled exception: " + metrics.getMessagesRejected() + "   number of messages with an unhandled exception: " + metrics.getMessagesFailed());
+    	if(fastDecoder != null) {
+    		log.info("fast decoded messages: " + fastDecoder.getDecoded() + "   fallbacks to GeoTools parser: " + fastDecoder.getFallbacks());
+    	}
+    	log.info("crs cache hits: " + crsCache.getHits() + "   misses: " + crsCache.getMisses() + "   size: " + crsCache.size());
+    	if(positionCache != null) {
+    		log.info("position cache hits: " + positionCache.getHits() + "   misses: " + positionCache.getMisses() + "   size: " + positionCache.size());
+    	}
+    	log.info(coordinateValidator.getStatistics());
+    	log.info(dataSource.getStatistics());
+    	if(trackExecutor != null) {
+    		log.info("write lanes: " + trackExecutor.getLaneCount() + "   queued batches: " + trackExecutor.getQueueDepth());
+    	}
+    	if(coalescer != null) {
+    		log.info("coalesced reports: " + coalescer.getCoalesced() + "   written: " + coalescer.getWritten() 
+    				+ "   dropped: " + coalescer.getDropped() + "   pending: " + coalescer.getPending());
+    	}
+    	if(historyWriter != null) {
+    		log.info(historyWriter.getStatistics());
+    	}
+    	if(movementFilter != null) {
+    		log.info(movementFilter.getStatistics());
+    	}
+    	if(tableRouter != null) {
+    		log.info(tableRouter.getStatistics());
+    	}
+    }
+    
+    /**
+     * Parses a GML message, with the streaming decoder if enabled, or the GeoTools parser
+     * 
+     * @param gml_bytes the GML message
+     * @return the features of the message
+     * @throws Exception if neither can parse it
+     */
+    private SimpleFeatureCollection decodeCollection(byte[] gml_bytes) throws Exception {
+    	// Both parsers read the message's own bytes, the stream is reset for the fallback
+    	final ByteArrayInputStream in = new ByteArrayInputStream(gml_bytes);
+    	
+    	SimpleFeatureCollection featcollection = null;
+    	if(fastDecoder != null) {
+    		featcollection = fastDecoder.decode(in);
+    		in.reset();
+    	}
+    	
+    	// Bad coordinates bomb here, so checks later don't help, at least not for the ',' kind - jp
+    	if(featcollection == null) {
+    		featcollection = gml.get().decodeFeatureCollection(in);
+    	}
+    	//log.info("GML parsed");
+    	return featcollection;
+    }
+    
+    /**
+     * Turns a report handed over in process into a {@link Track}, with the same checks and
+     * transform as {@link #decodeTracks(byte[], Map)}, but no GML to parse
+     * 
+     * @param report the report
+     * @return the track
+     * @throws GdfcException if the report is rejected by one of the checks
+     * @throws Exception on any unexpected failure
+     */
+    Track decodeReport(TrackReport report) throws Exception {
+    	final long stageStart = System.nanoTime();
+    	if(report.getTypeName() == null || report.getTypeName().isEmpty()) {
+    		throw new GdfcException(RejectReason.INVALID_ATTRIBUTES, "Report has no type name");
+    	}
+    	if(Double.isNaN(report.getX()) || Double.isNaN(report.getY())) {
+    		throw new GdfcException(RejectReason.INVALID_COORDINATES, "Report has no coordinates");
+    	}
+    	
+    	final SimpleFeature feat = reportDecoder.decode(report);
+    	metrics.time(Stage.DECODE, stageStart);
+    	
+    	// Only formatted if the track is rejected
+    	return checkTrack(feat, report.getTypeName(), report);
+    }
+    
+    /**
+     * Validates a decoded feature's attributes, id, timestamp and coordinates, and transforms its
+     * geometry into the table CRS
+     * 
+     * @param feat the decoded feature
+     * @param postgisTableName the table the feature is for
+     * @param message the GML message or report the feature came from, for logging
+     * @return the track
+     * @throws GdfcException if the feature is rejected by one of the checks
+     * @throws Exception on any unexpected failure
+     */
+    private Track checkTrack(SimpleFeature feat, String postgisTableName, Object message) throws Exception {
+    	long stageStart = System.nanoTime();
+    	
+    	// The below check of the attributes may be unnecessary? When it's decoded, it runs
+    	// into syntax issues and dies, dropping the track. However, there may be parseable values
+    	// that make it here, then other issues the validation below susses out. Except not sure if
+    	// the decoding does validation at the same time already, though? - jp
+    	
+    	//ERROR CHECK - Use geotools validation
+    	for (AttributeDescriptor property : feat.getType().getAttributeDescriptors() ) {
+    		Object value = feat.getAttribute( property.getName() );
+    		try {
+    			Types.validate( property, value);
+    		} catch (IllegalAttributeException ex) {
+    			throw new GdfcException(RejectReason.INVALID_ATTRIBUTES, "Failed geotools validation", ex);
+    		}
+    	}
+    	
+    	//ERROR CHECK - ID
+    	String id = null;
+    	try {
+    		id = feat.getAttribute(id_table_entry).toString();
+    	} catch (NullPointerException ex) {
+    		throw new GdfcException(RejectReason.MISSING_ID, "NullPointerException getting " + id_table_entry + " attribute from feature", ex);
+    	}
+    	
+    	//ERROR CHECK - TIMESTAMP
+    	// Don't persist a track with an invalid or old time
+    	Timestamp tsNew = getTimestampFromFeature(feat);
+    	if(tsNew == null) {
+    		throw new GdfcException(RejectReason.BAD_TIMESTAMP, "Unparseable timestamp, dropping track");
+    	}
+    	
+    	final long currentTimeMillis = System.currentTimeMillis();
+    	final long msNew = tsNew.getTime();
+    	
+    	if (msNew < currentTimeMillis - old_feature_threshold) { //if it's older than threshold
+    		throw new GdfcException(RejectReason.OLD_TIMESTAMP, "Timestamp is old and being ignored");
+    	}
+    	
+    	if (msNew > currentTimeMillis + new_feature_threshold) { //if it's "newer" than threshold
+    		throw new GdfcException(RejectReason.FUTURE_TIMESTAMP, "Timestamp is too far in the future and being ignored");
+    	}
+    	
+    	
+    	//ERROR CHECK - COORDINATE REFERENCE SYSTEM
+    	Point point =  (Point) feat.getDefaultGeometry();
+    	if(point.getUserData() == null) {
+    		throw new GdfcException(RejectReason.BAD_CRS, "pointcrs is null");
+    	}
+    	CrsTransformCache.Reprojection reprojection;
+    	try {
+    		reprojection = crsCache.get(point.getUserData());
+    	} catch (FactoryException ex) {
+    		throw new GdfcException(RejectReason.BAD_CRS, "Unknown or unsupported CRS: " + point.getUserData(), ex);
+    	}
+    	if(reprojection == null) {
+    		throw new GdfcException(RejectReason.BAD_CRS, "pointcrs is null");
+    	}
+    	
+    	//ERROR CHECK - COORDINATES
+    	final CoordinateValidator.Rejection rejection = coordinateValidator.validate(point.getCoordinate(), reprojection);
+    	if(rejection != null) {
+    		throw new GdfcException(RejectReason.of(rejection), "failed coordinate check, " + rejection.getDescription() + ": " + point.getCoordinate());
+    	}
+    	
+    	metrics.time(Stage.VALIDATE, stageStart);
+    	stageStart = System.nanoTime();
+    	
+    	//transform coordinates to our preferred CRS, unless they're already in it
+    	if(!reprojection.isIdentity()) {
+    		point = (Point) JTS.transform(point, reprojection.getTransform());
+    	}
+    	point.setUserData(null);
+    	feat.setDefaultGeometry(point);
+    	metrics.time(Stage.TRANSFORM, stageStart);
+    	
+    	return new Track(id, postgisTableName, feat, tsNew, message);
+    }
+    
+    /**
+     * Writes the tracks for a single table, holding the lanes of all their ids. Lanes are always
+     * locked in ascending order, so concurrent writes can't deadlock
+     * 
+     * @param postgisTableName the table to write to
+     * @param tracks the tracks to write, at most one per {@link #id_table_entry}
+     */
+    private void writeTracks(String postgisTableName, Collection<Track> tracks) {
+    	if(tracks.isEmpty()) {
+    		return;
+    	}
+    	
+    	final boolean[] held = new boolean[idLanes.length];
+    	for(Track track : tracks) {
+    		held[(track.getId().hashCode() & Integer.MAX_VALUE) % idLanes.length] = true;
+    	}
+    	
+    	for(int i = 0; i < held.length; i++) {
+    		if(held[i]) {
+    			idLanes[i].lock();
+    		}
+    	}
+    	try {
+    		storeTracks(postgisTableName, tracks);
+    	} finally {
+    		for(int i = held.length - 1; i >= 0; i--) {
+    			if(held[i]) {
+    				idLanes[i].unlock();
+    			}
+    		}
+    	}
+    }
+    
+    /**
+     * Writes the tracks for a single table with the configured writer. Tracks the position cache
+     * holds the same or a newer timestamp for are rejected first, since a newer report may have
+     * been committed after they were accepted. Like every path, only strictly newer reports replace
+     * the stored one. The caller must hold the lanes of the tracks' ids, so nothing
+     * else checks or commits the same ids until their timestamps are cached.
+     * 
+     * @param postgisTableName the table to write to
+     * @param tracks the tracks to write, at most one per {@link #id_table_entry}
+     */
+    private void storeTracks(String postgisTableName, Collection<Track> tracks) {
+    	final long start = System.nanoTime();
+    	
+    	final List<Track> current = new ArrayList<Track>(tracks.size());
+    	for(Track track : tracks) {
+    		final Long tsCached = positionCache != null ? positionCache.get(postgisTableName, track.getId()) : null;
+    		if(tsCached != null && tsCached >= track.getTimestamp().getTime()) {
+    			rejectTrack(track, RejectReason.NOT_NEWER, "A newer report was written since this one was accepted");
+    		} else {
+    			current.add(track);
+    		}
+    	}
+    	if(current.isEmpty()) {
+    		return;
+    	}
     	
-    	if(datastore == null || logTableName == null || logTableName.isEmpty()) {
-    		log.warn("Required parameter(s) null, so can't connect to log table for: " + logTableName);
-    		return success;
+    	if(upsertWriter != null) {
+    		upsertTracks(postgisTableName, current);
+    	} else {
+    		removeAddTracks(postgisTableName, current);
     	}
+    	metrics.timeTable(postgisTableName, start);
+    }
+    
+    /**
+     * Writes the tracks for a single table. The stored timestamps of all the tracks' ids are read with
+     * one query, tracks no newer than what is stored are rejected, and the rest are written with a single
+     * remove+add in one transaction.
+     * 
+     * @param postgisTableName the table to write to
+     * @param tracks the tracks to write, at most one per {@link #id_table_entry}
+     */
+    private void removeAddTracks(String postgisTableName, Collection<Track> tracks) {
+    	final List<Track> accepted = new ArrayList<Track>();
+    	final List<SimpleFeature> features = new ArrayList<SimpleFeature>();
+    	final List<Filter> replaced = new ArrayList<Filter>();
+    	boolean classified = false;
     	
-    	// connect to logstore, assumed named with appended _log
-    	SimpleFeatureStore logStore = null;
     	try {
-    		logStore = (SimpleFeatureStore) datastore.getFeatureSource(logTableName);
-    		Transaction logTransaction = new DefaultTransaction("add");
-            logStore.setTransaction(logTransaction);
-            try {
-            	logStore.addFeatures(features);
-                logTransaction.commit();
-                success = true;
-            } catch (Exception ex) {
-                log.error("Exception adding features: " + ex.getMessage(), ex);
-                logTransaction.rollback();
-            } finally {
-                logTransaction.close();
-            }
-    	} catch(IOException e) {
-    		log.error("IOException connecting to log table store. No log table for : " + 
-    				logTableName + "! Can't log feature");
-    	} catch(Exception e) {
-    		log.error("Unhandled exception while trying to connect to log table for: " + 
-    				logTableName, e);
+    		//connect to feature store
+    		final SimpleFeatureStore featStore = featureStores.get(datastore, postgisTableName).getStore();
+    		//log.info("connected to postgis table: " + postgisTableName);
+    		
+    		// Tracks with a cached timestamp are already known to be in the table, and no newer,
+    		// storeTracks has checked
+    		final List<Track> lookup = new ArrayList<Track>();
+    		for(Track track : tracks) {
+    			if(positionCache != null && positionCache.contains(postgisTableName, track.getId())) {
+    				replaced.add(idFilter(track.getId()));
+    				accepted.add(track);
+    				features.add(track.getFeature());
+    			} else {
+    				lookup.add(track);
+    			}
+    		}
+    		
+    		//look for the remaining features in table
+    		final Map<String, Timestamp> existing = new HashMap<String, Timestamp>();
+    		final Set<String> duplicated = new HashSet<String>();
+    		
+    		final SimpleFeatureIterator iter = lookup.isEmpty() ? null : featStore.getFeatures(idFilter(lookup)).features();
+    		try {
+    			while(iter != null && iter.hasNext()) {
+    				final SimpleFeature stored = iter.next();
+    				final String storedId = String.valueOf(stored.getAttribute(id_table_entry));
+    				
+    				if(existing.containsKey(storedId)) {
+    					duplicated.add(storedId);
+    				}
+    				
+    				Timestamp tsStored = null;
+    				try {
+    					tsStored = getTimestampFromFeature(stored);
+    				} catch (GdfcException ex) {
+    					log.debug("Unparseable timestamp on stored feature " + storedId + ": " + ex.getMessage());
+    				}
+    				existing.put(storedId, tsStored);
+    			}
+    		} finally {
+    			if(iter != null) {
+    				iter.close();
+    			}
+    		}
+    		
+    		classified = true;
+    		for(Track track : lookup) {
+    			final String id = track.getId();
+    			
+    			if(duplicated.contains(id)) {
+    				rejectTrack(track, RejectReason.DUPLICATE_ID, "More than one feature with same " + id_table_entry + " in DB, " + id_table_entry + " : " + id);
+    				
+    			} else if(existing.containsKey(id)) {
+    				// Get existing track's timestamp
+    				final Timestamp tsCurrent = existing.get(id);
+    				
+    				if(tsCurrent == null) {
+    					rejectTrack(track, RejectReason.BAD_TIMESTAMP, "A feature exists in the DB with a null timestamp");
+    				} else if(!track.getTimestamp().after(tsCurrent)) {
+    					rejectTrack(track, RejectReason.NOT_NEWER, "A feature exists in the DB with the same or a newer timestamp");
+    					if(positionCache != null) {
+    						positionCache.put(postgisTableName, id, tsCurrent.getTime());
+    					}
+    				} else {
+    					replaced.add(idFilter(id));
+    					accepted.add(track);
+    					features.add(track.getFeature());
+    				}
+    				
+    			} else {
+    				accepted.add(track);
+    				features.add(track.getFeature());
+    			}
+    		}
+    		
+    		if(accepted.isEmpty()) {
+    			return;
+    		}
+    		
+    		final SimpleFeatureCollection featcollection = new ListFeatureCollection(
+    				accepted.get(0).getFeature().getFeatureType(), features);
+    		
+    		Transaction transaction = new DefaultTransaction("batch_remove_add");
+    		featStore.setTransaction(transaction);
+    		try {
+    			if(!replaced.isEmpty()) {
+    				featStore.removeFeatures(replaced.size() == 1 ? replaced.get(0) : filterFactory.or(replaced));
+    			}
+    			featStore.addFeatures(featcollection);
+    			transaction.commit();
+    			recordTracks(postgisTableName, accepted);
+    		} catch (Exception ex) {
+    			metrics.rolledBack(postgisTableName);
+    			try {
+    				transaction.rollback();
+    			} catch (IOException rex) {
+    				log.error("Exception rolling back batch_remove_add transaction: " + rex.getMessage(), rex);
+    			}
+    			for(Track track : accepted) {
+    				rejectTrack(track, RejectReason.DB_ERROR, "Exception during batch_remove_add transaction: " + ex.getMessage());
+    			}
+    			accepted.clear();
+    		} finally {
+    			// The store is cached, so leave it on auto commit for the next lookup
+    			featStore.setTransaction(Transaction.AUTO_COMMIT);
+    			transaction.close();
+    		}
+    		
+    		//log.info("wrote " + accepted.size() + " features to table: " + postgisTableName);
+    		
+    	} catch (Exception ex) {
+    		// Once classified, the rejected tracks have already been counted
+    		for(Track track : (classified ? accepted : tracks)) {
+    			log.error("Caught UNEXPECTED exception processing gml: " + payload(track.getMessage()) + " exception: " + ex, ex);
+    			metrics.failed(1);
+    		}
     	}
-    	
-    	return success;
-    	
     }
     
     /**
-     * Helper method to convert a "timestamp" on a feature from a String to a Timestamp. It first
-     * tries creating a Timestamp from the standard format, and failing that, attempts a more generic
-     * method of parsing the timestamp String
-     * 
-     * @param strTime Date/time string as it exists in the incoming GML track
+     * Writes the tracks for a single table with the {@link PostgisUpsertWriter}, in one transaction.
+     * Tracks the database holds a newer timestamp for are left untouched, and rejected.
      * 
-     * @return A SQL Timestamp object set to the specified time if successful in parsing,
-     * 		   null otherwise
-     * @throws GdfcException 
+     * @param postgisTableName the table to write to
+     * @param tracks the tracks to write, at most one per {@link #id_table_entry}
      */
-    private Timestamp getTimestampFromFeatureString(String strTime) throws GdfcException {
-    	Timestamp ts = null;
-    	java.util.Date date = null;
-    	SimpleDateFormat sdf = null;
-    	String dateFormatPattern = null;
-    	
-    	// Expected format... but should be forgiving if this doesn't work
-    	// yyyy-MM-dd'T'HH:mm:ssX   yyyy-MM-dd'T'HH:mm:ssXX   yyyy-MM-dd'T'HH:mm:ssXXX
-    	// can be any iso8601 option:  Z, -08; -0800; -08:00
-    	// ASSUME no Z or timezone info means zulu time, maybe risky
-
-    	if (strTime.length() == 19) {
-    		dateFormatPattern = dateFormatPatternOp0;
-    	} else if (strTime.length() <= 22) {
-    		dateFormatPattern = dateFormatPatternOp1;
-    	} else if (strTime.length() == 24) {
-    		dateFormatPattern = dateFormatPatternOp2;
-    	} else if (strTime.length() == 25) {
-    		dateFormatPattern = dateFormatPatternOp3;
-    	} else {
-    		throw new GdfcException("timestamp did not fit any of the expected formats" + strTime);
-    	}
-
+    private void upsertTracks(String postgisTableName, List<Track> tracks) {
     	try {
-    		log.debug("Using this dateFormatPattern: " + dateFormatPattern);
-    		sdf = new SimpleDateFormat(dateFormatPattern, Locale.US); // TODO:NEW make locale configurable
-    		date = sdf.parse(strTime);
-    		ts = new Timestamp(date.getTime());
-    	} catch (ParseException e) {
-    		throw new GdfcException("Exception parsing incoming timestamp("+strTime+"): " + e);			
+    		final SimpleFeatureType schema = featureStores.get(datastore, postgisTableName).getSchema();
+    		final boolean[] written = upsertWriter.write(postgisTableName, schema, tracks);
+    		
+    		for(int i = 0; i < written.length; i++) {
+    			if(written[i]) {
+    				recordTracks(postgisTableName, Collections.singletonList(tracks.get(i)));
+    			} else {
+    				rejectTrack(tracks.get(i), RejectReason.NOT_NEWER, "A feature exists in the DB with the same or a newer timestamp");
+    			}
+    		}
+    		
+    	} catch (SQLException ex) {
+    		metrics.rolledBack(postgisTableName);
+    		for(Track track : tracks) {
+    			rejectTrack(track, RejectReason.DB_ERROR, "Exception during upsert transaction: " + ex.getMessage());
+    		}
+    		
+    	} catch (Exception ex) {
+    		for(Track track : tracks) {
+    			log.error("Caught UNEXPECTED exception processing gml: " + payload(track.getMessage()) + " exception: " + ex, ex);
+    			metrics.failed(1);
+    		}
     	}
-
-
-    	return ts;
     }
     
+    /**
+     * Counts committed tracks, records their timestamps in the position cache and their positions
+     * in the movement filter, and queues them for the log tables, if enabled
+     */
+    private void recordTracks(String postgisTableName, List<Track> tracks) {
+    	metrics.written(postgisTableName, tracks.size());
+    	if(movementFilter != null) {
+    		for(Track track : tracks) {
+    			movementFilter.written(track);
+    		}
+    	}
+    	if(positionCache != null) {
+    		for(Track track : tracks) {
+    			positionCache.put(postgisTableName, track.getId(), track.getTimestamp().getTime());
+    		}
+    	}
+    	if(historyWriter != null) {
+    		for(Track track : tracks) {
+    			historyWriter.offer(track);
+    		}
+    	}
+    }
     
     /**
-     * Attempts to extract the "timestamp" property out of the feature collection
+     * Counts and logs a track that was decoded, but not written
      * 
-     * @param features collection of features assumed to contain a "timestamp" property, in this use
-     * 		  there is only one feature in each collection
-     * 
-     * @return An initialized Timestamp object if successful, null otherwise
-     * @throws GdfcException 
+     * @param track the rejected track
+     * @param reason why the track was rejected
+     * @param message description of the rejection, for the log
+     */
+    private void rejectTrack(Track track, RejectReason reason, String message) {
+    	log.warn("Caught expected exception processing gml: " + payload(track.getMessage()) + " exception: " + message);
+    	metrics.rejected(reason);
+    }
+    
+    /**
+     * Builds a filter matching the {@link #id_table_entry} of the given track id
+     */
+    private Filter idFilter(String id) {
+    	return filterFactory.equals(filterFactory.property(id_table_entry), filterFactory.literal(id));
+    }
+    
+    /**
+     * Builds a filter matching the {@link #id_table_entry} of any of the given tracks
      */
-    private Timestamp getTimestampFromFeatureCollection(SimpleFeatureCollection features) throws GdfcException {
-    	final SimpleFeatureIterator iter = features.features();
-    	SimpleFeature feature = iter.next(); // Only looking at first/only feature
-    	iter.close();
+    private Filter idFilter(Collection<Track> tracks) {
+    	if(tracks.size() == 1) {
+    		return idFilter(tracks.iterator().next().getId());
+    	}
     	
-    	Timestamp ts = getTimestampFromFeature(feature);
-    			
-		//log.debug("getTimestampFromFeatureCollection: returning: " + ts);
-    	return ts;
+    	final List<Filter> filters = new ArrayList<Filter>(tracks.size());
+    	for(Track track : tracks) {
+    		filters.add(idFilter(track.getId()));
+    	}
+    	return filterFactory.or(filters);
+    }
+
+
+    /**
+     * Helper method to convert a "timestamp" on a feature from a String to a Timestamp, with the
+     * {@link IsoTimestampParser}. Accepts yyyy-MM-dd'T'HH:mm:ss with an optional Z, -08, -0800 or
+     * -08:00 offset. Without an offset, the time is read in the local time zone.
+     * 
+     * @param strTime Date/time string as it exists in the incoming GML track
+     * 
+     * @return A SQL Timestamp object set to the specified time
+     * @throws GdfcException if the string isn't an accepted timestamp
+     */
+    private Timestamp getTimestampFromFeatureString(String strTime) throws GdfcException {
+    	try {
+    		return new Timestamp(IsoTimestampParser.parseMillis(strTime));
+    	} catch (IllegalArgumentException e) {
+    		throw new GdfcException(RejectReason.BAD_TIMESTAMP, "Exception parsing incoming timestamp("+strTime+"): " + e.getMessage());
+    	}
     }
     
+    
     /**
      * Attempts to extract the "timestamp" property out of the feature
      * 
@@ -747,12 +1991,18 @@ public class GMLToDBProcessor implements Processor {
     
     private class GdfcException extends Exception {
 		private static final long serialVersionUID = 7049430620036975247L;
-		public GdfcException(String message) {
+		private final RejectReason reason;
+		public GdfcException(RejectReason reason, String message) {
 	        super(message);
+	        this.reason = reason;
 	    }
-		public GdfcException(String message, Throwable ex) {
+		public GdfcException(RejectReason reason, String message, Throwable ex) {
 	        super(message, ex);
+	        this.reason = reason;
 	    }
+		public RejectReason getReason() {
+			return reason;
+		}
 	}
     
     // Property getter/setters
@@ -837,6 +2087,26 @@ public class GMLToDBProcessor implements Processor {
 	}
 
 
+	public final boolean isGml_fast_decoder() {
+		return gml_fast_decoder;
+	}
+
+
+	public final void setGml_fast_decoder(final boolean gml_fast_decoder) {
+		this.gml_fast_decoder = gml_fast_decoder;
+	}
+
+
+	public final int getGml_max_features() {
+		return gml_max_features;
+	}
+
+
+	public final void setGml_max_features(final int gml_max_features) {
+		this.gml_max_features = gml_max_features;
+	}
+
+
 	public final long getDb_reset_interval() {
 		return db_reset_interval;
 	}
@@ -846,6 +2116,306 @@ public class GMLToDBProcessor implements Processor {
 		this.db_reset_interval = db_reset_interval;
 	}
 
+	public final int getDb_pool_size() {
+		return db_pool_size;
+	}
+
+
+	public final void setDb_pool_size(final int db_pool_size) {
+		this.db_pool_size = db_pool_size;
+	}
+
+
+	public final int getDb_pool_min_idle() {
+		return db_pool_min_idle;
+	}
+
+
+	public final void setDb_pool_min_idle(final int db_pool_min_idle) {
+		this.db_pool_min_idle = db_pool_min_idle;
+	}
+
+
+	public final long getDb_pool_max_wait() {
+		return db_pool_max_wait;
+	}
+
+
+	public final void setDb_pool_max_wait(final long db_pool_max_wait) {
+		this.db_pool_max_wait = db_pool_max_wait;
+	}
+
+
+	public final long getDb_pool_idle_timeout() {
+		return db_pool_idle_timeout;
+	}
+
+
+	public final void setDb_pool_idle_timeout(final long db_pool_idle_timeout) {
+		this.db_pool_idle_timeout = db_pool_idle_timeout;
+	}
+
+
+	public final int getDb_connect_retries() {
+		return db_connect_retries;
+	}
+
+
+	public final void setDb_connect_retries(final int db_connect_retries) {
+		this.db_connect_retries = db_connect_retries;
+	}
+
+	public final int getWrite_lanes() {
+		return write_lanes;
+	}
+
+
+	public final void setWrite_lanes(final int write_lanes) {
+		this.write_lanes = write_lanes;
+	}
+
+
+	public final int getWrite_lane_queue_size() {
+		return write_lane_queue_size;
+	}
+
+
+	public final void setWrite_lane_queue_size(final int write_lane_queue_size) {
+		this.write_lane_queue_size = write_lane_queue_size;
+	}
+
+	public final long getCoalesce_interval() {
+		return coalesce_interval;
+	}
+
+
+	public final void setCoalesce_interval(final long coalesce_interval) {
+		this.coalesce_interval = coalesce_interval;
+	}
+
+
+	public final int getCoalesce_max_pending() {
+		return coalesce_max_pending;
+	}
+
+
+	public final void setCoalesce_max_pending(final int coalesce_max_pending) {
+		this.coalesce_max_pending = coalesce_max_pending;
+	}
+
+	public final boolean isHistory_log() {
+		return history_log;
+	}
+
+	public final void setHistory_log(final boolean history_log) {
+		this.history_log = history_log;
+	}
+
+	public final int getHistory_buffer_size() {
+		return history_buffer_size;
+	}
+
+	public final void setHistory_buffer_size(final int history_buffer_size) {
+		this.history_buffer_size = history_buffer_size;
+	}
+
+	public final int getHistory_batch_size() {
+		return history_batch_size;
+	}
+
+	public final void setHistory_batch_size(final int history_batch_size) {
+		this.history_batch_size = history_batch_size;
+	}
+
+	public final long getHistory_flush_interval() {
+		return history_flush_interval;
+	}
+
+	public final void setHistory_flush_interval(final long history_flush_interval) {
+		this.history_flush_interval = history_flush_interval;
+	}
+
+	public final String getHistory_spill_dir() {
+		return history_spill_dir;
+	}
+
+	public final void setHistory_spill_dir(final String history_spill_dir) {
+		this.history_spill_dir = history_spill_dir;
+	}
+
+	public final String getHistory_partition() {
+		return history_partition;
+	}
+
+	public final void setHistory_partition(final String history_partition) {
+		this.history_partition = history_partition;
+	}
+
+	public final int getHistory_partitions_ahead() {
+		return history_partitions_ahead;
+	}
+
+	public final void setHistory_partitions_ahead(final int history_partitions_ahead) {
+		this.history_partitions_ahead = history_partitions_ahead;
+	}
+
+	public final String getHistory_retention() {
+		return history_retention;
+	}
+
+	public final void setHistory_retention(final String history_retention) {
+		this.history_retention = history_retention;
+	}
+
+	public final String getHistory_retention_tables() {
+		return history_retention_tables;
+	}
+
+	public final void setHistory_retention_tables(final String history_retention_tables) {
+		this.history_retention_tables = history_retention_tables;
+	}
+
+	public final boolean isHistory_drop_expired() {
+		return history_drop_expired;
+	}
+
+	public final void setHistory_drop_expired(final boolean history_drop_expired) {
+		this.history_drop_expired = history_drop_expired;
+	}
+
+	public final boolean isMetrics_jmx() {
+		return metrics_jmx;
+	}
+
+	public final void setMetrics_jmx(final boolean metrics_jmx) {
+		this.metrics_jmx = metrics_jmx;
+	}
+
+	public final int getMetrics_http_port() {
+		return metrics_http_port;
+	}
+
+	public final void setMetrics_http_port(final int metrics_http_port) {
+		this.metrics_http_port = metrics_http_port;
+	}
+
+	public final boolean isMovement_filter() {
+		return movement_filter;
+	}
+
+	public final void setMovement_filter(final boolean movement_filter) {
+		this.movement_filter = movement_filter;
+	}
+
+	public final double getMovement_distance() {
+		return movement_distance;
+	}
+
+	public final void setMovement_distance(final double movement_distance) {
+		this.movement_distance = movement_distance;
+	}
+
+	public final String getMovement_attributes() {
+		return movement_attributes;
+	}
+
+	public final void setMovement_attributes(final String movement_attributes) {
+		this.movement_attributes = movement_attributes;
+	}
+
+	public final long getMovement_keepalive() {
+		return movement_keepalive;
+	}
+
+	public final void setMovement_keepalive(final long movement_keepalive) {
+		this.movement_keepalive = movement_keepalive;
+	}
+
+	public final int getMovement_filter_size() {
+		return movement_filter_size;
+	}
+
+	public final void setMovement_filter_size(final int movement_filter_size) {
+		this.movement_filter_size = movement_filter_size;
+	}
+
+	public final boolean isTable_pipelines() {
+		return table_pipelines;
+	}
+
+	public final void setTable_pipelines(final boolean table_pipelines) {
+		this.table_pipelines = table_pipelines;
+	}
+
+	public final int getTable_queue_size() {
+		return table_queue_size;
+	}
+
+	public final void setTable_queue_size(final int table_queue_size) {
+		this.table_queue_size = table_queue_size;
+	}
+
+	public final int getTable_batch_size() {
+		return table_batch_size;
+	}
+
+	public final void setTable_batch_size(final int table_batch_size) {
+		this.table_batch_size = table_batch_size;
+	}
+
+	public final long getTable_offer_timeout() {
+		return table_offer_timeout;
+	}
+
+	public final void setTable_offer_timeout(final long table_offer_timeout) {
+		this.table_offer_timeout = table_offer_timeout;
+	}
+
+	public final String getTable_pipeline_tables() {
+		return table_pipeline_tables;
+	}
+
+	public final void setTable_pipeline_tables(final String table_pipeline_tables) {
+		this.table_pipeline_tables = table_pipeline_tables;
+	}
+
+	public final int getPayload_log_limit() {
+		return payload_log_limit;
+	}
+
+
+	public final void setPayload_log_limit(final int payload_log_limit) {
+		this.payload_log_limit = payload_log_limit;
+	}
+
+	public final boolean isDb_upsert() {
+		return db_upsert;
+	}
+
+
+	public final void setDb_upsert(final boolean db_upsert) {
+		this.db_upsert = db_upsert;
+	}
+
+	public final int getPosition_cache_size() {
+		return position_cache_size;
+	}
+
+
+	public final void setPosition_cache_size(final int position_cache_size) {
+		this.position_cache_size = position_cache_size;
+	}
+
+
+	public final String getPosition_cache_tables() {
+		return position_cache_tables;
+	}
+
+
+	public final void setPosition_cache_tables(final String position_cache_tables) {
+		this.position_cache_tables = position_cache_tables;
+	}
+
     public String getTimestampPropertyName() {
 		return timestampPropertyName;
 	}
@@ -0,0 +1,461 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.nics.processor.gml.consumer;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Manages daily or hourly partitions of the track log tables, and routes history rows to them.
+ * 
+ * <p>Any &lt;table&gt;_log table in the current schema that is declared
+ * <code>PARTITION BY RANGE</code> on the timestamp column is managed. Its partitions are named
+ * &lt;table&gt;_log_pYYYYMMDD, or &lt;table&gt;_log_pYYYYMMDDHH when hourly, and are created
+ * ahead of time. Those entirely older than their table's retention are detached, and dropped if
+ * configured to. Partitions named any other way are left alone.</p>
+ * 
+ * <p>Boundaries are whole UTC days or hours of the stored value. For a timestamp column without
+ * time zone, that's the local time the track was written in.</p>
+ */
+public class HistoryPartitionManager implements TrackHistoryWriter.Router {
+
+	private static final Logger log = Logger.getLogger(HistoryPartitionManager.class.getSimpleName());
+
+	/**
+	 * Length of each partition
+	 */
+	public enum Interval {
+		DAILY(24 * 60 * 60 * 1000L, "yyyyMMdd"),
+		HOURLY(60 * 60 * 1000L, "yyyyMMddHH");
+
+		private final long millis;
+
+		private final String namePattern;
+
+		private Interval(long millis, String namePattern) {
+			this.millis = millis;
+			this.namePattern = namePattern;
+		}
+
+		public long getMillis() {
+			return millis;
+		}
+	}
+
+	private static final String log_table_suffix = "_log";
+
+	private static final String partition_infix = "_p";
+
+	/** Log tables in the current schema that are range partitioned */
+	private static final String partitioned_tables_sql = "SELECT c.relname, format_type(a.atttypid, a.atttypmod) "
+			+ "FROM pg_partitioned_table p "
+			+ "JOIN pg_class c ON c.oid = p.partrelid "
+			+ "JOIN pg_namespace n ON n.oid = c.relnamespace "
+			+ "JOIN pg_attribute a ON a.attrelid = c.oid AND a.attname = ? "
+			+ "WHERE n.nspname = current_schema() AND p.partstrat = 'r' AND c.relname LIKE '%\\_log'";
+
+	/** Partitions of a table */
+	private static final String partitions_sql = "SELECT c.relname FROM pg_inherits i "
+			+ "JOIN pg_class c ON c.oid = i.inhrelid "
+			+ "JOIN pg_class p ON p.oid = i.inhparent "
+			+ "JOIN pg_namespace n ON n.oid = p.relnamespace "
+			+ "WHERE n.nspname = current_schema() AND p.relname = ?";
+
+	private final DataSource dataSource;
+
+	/** Timestamp column the log tables are partitioned on */
+	private final String timestampColumn;
+
+	private final Interval interval;
+
+	/** Number of partitions kept created ahead of the current one */
+	private final int ahead;
+
+	/** Retention in milliseconds of tables without their own, 0 keeps partitions forever */
+	private final long defaultRetention;
+
+	/** Retention in milliseconds by feed table name */
+	private final Map<String, Long> retentions;
+
+	/** Drop expired partitions after detaching them */
+	private final boolean dropExpired;
+
+	/** Managed log tables by name */
+	private final ConcurrentMap<String, PartitionedTable> tables = new ConcurrentHashMap<String, PartitionedTable>();
+
+	/** Formats partition names and bounds, in UTC */
+	private final ThreadLocal<SimpleDateFormat[]> formats = new ThreadLocal<SimpleDateFormat[]>() {
+		@Override
+		protected SimpleDateFormat[] initialValue() {
+			final SimpleDateFormat name = new SimpleDateFormat(interval.namePattern);
+			final SimpleDateFormat bound = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+			name.setTimeZone(TimeZone.getTimeZone("UTC"));
+			bound.setTimeZone(TimeZone.getTimeZone("UTC"));
+			return new SimpleDateFormat[] { name, bound };
+		}
+	};
+
+	private final ScheduledExecutorService scheduler;
+
+	/**
+	 * @param dataSource source of connections for partition maintenance
+	 * @param timestampColumn timestamp column the log tables are partitioned on
+	 * @param interval length of each partition
+	 * @param ahead number of partitions to keep created ahead of the current one
+	 * @param defaultRetention retention in milliseconds of tables without their own, 0 to keep
+	 *        partitions forever
+	 * @param retentions retention in milliseconds by feed table name
+	 * @param dropExpired true to drop expired partitions, false to only detach them
+	 */
+	public HistoryPartitionManager(DataSource dataSource, String timestampColumn, Interval interval, int ahead, 
+			long defaultRetention, Map<String, Long> retentions, boolean dropExpired) {
+		this.dataSource = dataSource;
+		this.timestampColumn = timestampColumn;
+		this.interval = interval;
+		this.ahead = ahead;
+		this.defaultRetention = defaultRetention;
+		this.retentions = new HashMap<String, Long>(retentions);
+		this.dropExpired = dropExpired;
+		
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				final Thread thread = new Thread(runnable, "history-partitions");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Parses a retention such as 30d or 12h. A bare number is in days.
+	 * 
+	 * @return the retention in milliseconds
+	 * @throws IllegalArgumentException if the retention isn't a whole number of days or hours
+	 */
+	public static long parseRetention(String retention) {
+		final String value = retention.trim().toLowerCase();
+		long unit = Interval.DAILY.millis;
+		String number = value;
+		if(value.endsWith("h")) {
+			unit = Interval.HOURLY.millis;
+			number = value.substring(0, value.length() - 1);
+		} else if(value.endsWith("d")) {
+			number = value.substring(0, value.length() - 1);
+		}
+		
+		try {
+			final long count = Long.parseLong(number.trim());
+			if(count < 0) {
+				throw new IllegalArgumentException("Negative retention: " + retention);
+			}
+			return count * unit;
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid retention: " + retention);
+		}
+	}
+
+	/**
+	 * Runs maintenance once, then a few times per partition length, at least hourly
+	 */
+	public void start() {
+		maintain();
+		final long period = Math.min(interval.millis / 4, Interval.HOURLY.millis);
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				maintain();
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	public void shutdown() {
+		scheduler.shutdownNow();
+	}
+
+	/**
+	 * Finds the partitioned log tables, creates their upcoming partitions, and detaches or drops
+	 * their expired ones
+	 */
+	public void maintain() {
+		Connection connection = null;
+		try {
+			connection = dataSource.getConnection();
+			final Map<String, Boolean> found = findPartitionedTables(connection);
+			tables.keySet().retainAll(found.keySet());
+			
+			for(Map.Entry<String, Boolean> entry : found.entrySet()) {
+				PartitionedTable table = tables.get(entry.getKey());
+				if(table == null) {
+					table = new PartitionedTable(entry.getKey(), entry.getValue());
+					log.info("Managing " + interval.name().toLowerCase() + " partitions of " + table.name 
+							+ ", retention: " + (table.retention > 0 ? (table.retention / Interval.HOURLY.millis) + "h" : "forever"));
+				}
+				final List<String> partitions = findPartitions(connection, table.name);
+				table.partitions.retainAll(partitions);
+				table.partitions.addAll(partitions);
+				tables.put(table.name, table);
+				
+				final long current = floor(keyOf(table, System.currentTimeMillis()));
+				for(int i = 0; i <= ahead; i++) {
+					createPartition(connection, table, current + i * interval.millis);
+				}
+				if(table.retention > 0) {
+					expirePartitions(connection, table, current - table.retention);
+				}
+			}
+		} catch (Exception e) {
+			log.error("Exception maintaining history partitions: " + e.getMessage(), e);
+		} finally {
+			close(connection);
+		}
+	}
+
+	/**
+	 * Routes a row to the partition of its timestamp, creating it if it's missing and within the
+	 * retention and the partitions kept ahead. Rows of log tables that aren't managed go to the log
+	 * table itself.
+	 */
+	@Override
+	public String route(String logTable, long timestamp) {
+		final PartitionedTable table = tables.get(logTable);
+		if(table == null) {
+			return logTable;
+		}
+		
+		final long start = floor(keyOf(table, timestamp));
+		final String partition = partitionName(table, start);
+		if(table.partitions.contains(partition)) {
+			return partition;
+		}
+		
+		final long current = floor(keyOf(table, System.currentTimeMillis()));
+		if(start > current + ahead * interval.millis || (table.retention > 0 && start < current - table.retention)) {
+			return null;
+		}
+		
+		Connection connection = null;
+		try {
+			connection = dataSource.getConnection();
+			createPartition(connection, table, start);
+			return partition;
+		} catch (SQLException e) {
+			log.error("Exception creating partition " + partition + ": " + e.getMessage());
+			return null;
+		} finally {
+			close(connection);
+		}
+	}
+
+	/**
+	 * @return the range partitioned log tables, and whether their timestamp column has a time zone
+	 */
+	private Map<String, Boolean> findPartitionedTables(Connection connection) throws SQLException {
+		final Map<String, Boolean> found = new HashMap<String, Boolean>();
+		final PreparedStatement ps = connection.prepareStatement(partitioned_tables_sql);
+		try {
+			ps.setString(1, timestampColumn);
+			final ResultSet rs = ps.executeQuery();
+			while(rs.next()) {
+				found.put(rs.getString(1), rs.getString(2).contains("with time zone"));
+			}
+			rs.close();
+		} finally {
+			ps.close();
+		}
+		return found;
+	}
+
+	/**
+	 * @return the names of the table's partitions that follow the naming of managed ones
+	 */
+	private List<String> findPartitions(Connection connection, String table) throws SQLException {
+		final List<String> partitions = new ArrayList<String>();
+		final PreparedStatement ps = connection.prepareStatement(partitions_sql);
+		try {
+			ps.setString(1, table);
+			final ResultSet rs = ps.executeQuery();
+			while(rs.next()) {
+				final String name = rs.getString(1);
+				if(partitionStart(table, name) != null) {
+					partitions.add(name);
+				}
+			}
+			rs.close();
+		} finally {
+			ps.close();
+		}
+		return partitions;
+	}
+
+	private void createPartition(Connection connection, PartitionedTable table, long start) throws SQLException {
+		final String partition = partitionName(table, start);
+		if(table.partitions.contains(partition)) {
+			return;
+		}
+		
+		synchronized(table) {
+			if(table.partitions.contains(partition)) {
+				return;
+			}
+			execute(connection, "CREATE TABLE IF NOT EXISTS " + quote(partition) + " PARTITION OF " + quote(table.name) 
+					+ " FOR VALUES FROM (" + bound(table, start) + ") TO (" + bound(table, start + interval.millis) + ")");
+			table.partitions.add(partition);
+		}
+		log.info("Created history partition " + partition);
+	}
+
+	/**
+	 * Detaches, and drops if configured to, the partitions that end at or before the cutoff
+	 */
+	private void expirePartitions(Connection connection, PartitionedTable table, long cutoff) throws SQLException {
+		for(String partition : new ArrayList<String>(table.partitions)) {
+			final Long start = partitionStart(table.name, partition);
+			if(start == null || start + interval.millis > cutoff) {
+				continue;
+			}
+			
+			synchronized(table) {
+				execute(connection, "ALTER TABLE " + quote(table.name) + " DETACH PARTITION " + quote(partition));
+				table.partitions.remove(partition);
+			}
+			if(dropExpired) {
+				execute(connection, "DROP TABLE " + quote(partition));
+				log.info("Dropped expired history partition " + partition);
+			} else {
+				log.info("Detached expired history partition " + partition);
+			}
+		}
+	}
+
+	/**
+	 * Maps a timestamp to the value it's stored as, as milliseconds of a UTC clock. A column without
+	 * a time zone stores the local time.
+	 */
+	private long keyOf(PartitionedTable table, long timestamp) {
+		return table.withTimeZone ? timestamp : timestamp + TimeZone.getDefault().getOffset(timestamp);
+	}
+
+	private long floor(long key) {
+		return key - ((key % interval.millis) + interval.millis) % interval.millis;
+	}
+
+	private String partitionName(PartitionedTable table, long start) {
+		return table.name + partition_infix + formats.get()[0].format(new java.util.Date(start));
+	}
+
+	/**
+	 * @return the start of a managed partition, or null if the name isn't one of a managed partition
+	 */
+	private Long partitionStart(String table, String partition) {
+		final String prefix = table + partition_infix;
+		if(!partition.startsWith(prefix) || partition.length() != prefix.length() + interval.namePattern.length()) {
+			return null;
+		}
+		
+		try {
+			return formats.get()[0].parse(partition.substring(prefix.length())).getTime();
+		} catch (java.text.ParseException e) {
+			return null;
+		}
+	}
+
+	private String bound(PartitionedTable table, long key) {
+		return "'" + formats.get()[1].format(new java.util.Date(key)) + (table.withTimeZone ? "+00" : "") + "'";
+	}
+
+	private static void execute(Connection connection, String sql) throws SQLException {
+		final Statement statement = connection.createStatement();
+		try {
+			statement.execute(sql);
+		} finally {
+			statement.close();
+		}
+	}
+
+	private static void close(Connection connection) {
+		if(connection != null) {
+			try {
+				connection.close();
+			} catch (SQLException e) {
+				log.debug("Exception closing connection: " + e.getMessage());
+			}
+		}
+	}
+
+	private static String quote(String identifier) {
+		return "\"" + identifier.replace("\"", "\"\"") + "\"";
+	}
+
+	/**
+	 * A managed log table and its known partitions
+	 */
+	private class PartitionedTable {
+
+		private final String name;
+
+		/** Whether the timestamp column is a timestamp with time zone */
+		private final boolean withTimeZone;
+
+		/** Retention in milliseconds, 0 keeps partitions forever */
+		private final long retention;
+
+		private final Set<String> partitions = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+		private PartitionedTable(String name, boolean withTimeZone) {
+			this.name = name;
+			this.withTimeZone = withTimeZone;
+			
+			final Long own = retentions.get(name.substring(0, name.length() - log_table_suffix.length()));
+			this.retention = own != null ? own : defaultRetention;
+		}
+	}
+}
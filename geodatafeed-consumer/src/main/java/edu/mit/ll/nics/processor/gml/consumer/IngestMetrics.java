@@ -0,0 +1,483 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.nics.processor.gml.consumer;
+
+import java.beans.ConstructorProperties;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Metrics of the GML ingest: message counts, tracks written per table, rejections by reason,
+ * latency histograms of each stage, and gauges of the components in use. Exposed over JMX once
+ * {@link #register(String)} is called, and over HTTP by the {@link MetricsHttpServer}.
+ */
+public class IngestMetrics implements IngestMetricsMXBean {
+
+	private static final Logger log = Logger.getLogger(IngestMetrics.class.getSimpleName());
+
+	/**
+	 * Why a track was rejected
+	 */
+	public enum RejectReason {
+		EMPTY_MESSAGE,
+		INVALID_ATTRIBUTES,
+		MULTIPLE_FEATURES,
+		MISSING_ID,
+		BAD_TIMESTAMP,
+		OLD_TIMESTAMP,
+		FUTURE_TIMESTAMP,
+		BAD_CRS,
+		INVALID_COORDINATES,
+		ZERO_ZERO,
+		OUT_OF_RANGE,
+		DUPLICATE_ID,
+		NOT_NEWER,
+		DB_ERROR,
+		TABLE_BACKLOG;
+
+		/**
+		 * @return the reason for a failed coordinate check
+		 */
+		public static RejectReason of(CoordinateValidator.Rejection rejection) {
+			switch(rejection) {
+			case ZERO_ZERO:
+				return ZERO_ZERO;
+			case OUT_OF_RANGE:
+				return OUT_OF_RANGE;
+			default:
+				return INVALID_COORDINATES;
+			}
+		}
+	}
+
+	/**
+	 * Stages of ingest that are timed
+	 */
+	public enum Stage {
+		DECODE,
+		VALIDATE,
+		TRANSFORM,
+		DB
+	}
+
+	/**
+	 * Supplies the current values of the gauges of other components
+	 */
+	public interface GaugeSource {
+		void collect(Map<String, Long> gauges);
+
+		/**
+		 * @param tableGauges the gauges that have a value per table, such as queue depths, to add
+		 *        to by gauge name and table
+		 */
+		void collectTables(Map<String, Map<String, Long>> tableGauges);
+	}
+
+	/**
+	 * A snapshot of a stage's latency histogram, in milliseconds
+	 */
+	public static class Latency {
+
+		private final long count;
+
+		private final double mean;
+
+		private final double p50;
+
+		private final double p90;
+
+		private final double p99;
+
+		private final double max;
+
+		@ConstructorProperties({"count", "mean", "p50", "p90", "p99", "max"})
+		public Latency(long count, double mean, double p50, double p90, double p99, double max) {
+			this.count = count;
+			this.mean = mean;
+			this.p50 = p50;
+			this.p90 = p90;
+			this.p99 = p99;
+			this.max = max;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public double getMean() {
+			return mean;
+		}
+
+		public double getP50() {
+			return p50;
+		}
+
+		public double getP90() {
+			return p90;
+		}
+
+		public double getP99() {
+			return p99;
+		}
+
+		public double getMax() {
+			return max;
+		}
+	}
+
+	private final AtomicLong messagesStarted = new AtomicLong();
+
+	private final AtomicLong messagesRejected = new AtomicLong();
+
+	private final AtomicLong messagesFailed = new AtomicLong();
+
+	private final ConcurrentMap<String, AtomicLong> tracksWritten = new ConcurrentHashMap<String, AtomicLong>();
+
+	private final ConcurrentMap<String, AtomicLong> tracksSuppressed = new ConcurrentHashMap<String, AtomicLong>();
+
+	/** Write transactions rolled back, by table */
+	private final ConcurrentMap<String, AtomicLong> rollbacks = new ConcurrentHashMap<String, AtomicLong>();
+
+	private final Map<RejectReason, AtomicLong> rejections = new EnumMap<RejectReason, AtomicLong>(RejectReason.class);
+
+	private final Map<Stage, LatencyHistogram> latencies = new EnumMap<Stage, LatencyHistogram>(Stage.class);
+
+	/** Latency of the database writes, by table */
+	private final ConcurrentMap<String, LatencyHistogram> tableLatencies = new ConcurrentHashMap<String, LatencyHistogram>();
+
+	/** Counters of events that aren't tied to a message, such as reconnects */
+	private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+
+	private volatile GaugeSource gaugeSource;
+
+	private ObjectName objectName;
+
+	public IngestMetrics() {
+		// Both maps are filled up front, and only read after
+		for(RejectReason reason : RejectReason.values()) {
+			rejections.put(reason, new AtomicLong());
+		}
+		for(Stage stage : Stage.values()) {
+			latencies.put(stage, new LatencyHistogram());
+		}
+	}
+
+	/**
+	 * Registers the metrics with the platform MBean server
+	 * 
+	 * @param name the object name to register under
+	 */
+	public synchronized void register(String name) {
+		try {
+			final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			objectName = new ObjectName(name);
+			if(server.isRegistered(objectName)) {
+				server.unregisterMBean(objectName);
+			}
+			server.registerMBean(this, objectName);
+			log.info("Registered ingest metrics as JMX bean: " + name);
+		} catch (Exception e) {
+			log.error("Could not register ingest metrics as JMX bean " + name + ": " + e.getMessage(), e);
+			objectName = null;
+		}
+	}
+
+	/**
+	 * Unregisters the metrics from the platform MBean server, if registered
+	 */
+	public synchronized void unregister() {
+		if(objectName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			} catch (Exception e) {
+				log.debug("Exception unregistering ingest metrics: " + e.getMessage());
+			}
+			objectName = null;
+		}
+	}
+
+	public void setGaugeSource(GaugeSource gaugeSource) {
+		this.gaugeSource = gaugeSource;
+	}
+
+	/**
+	 * @return the number of messages started, after counting these
+	 */
+	public long started(int messages) {
+		return messagesStarted.addAndGet(messages);
+	}
+
+	/**
+	 * Counts a message rejected by a check
+	 */
+	public void rejected(RejectReason reason) {
+		messagesRejected.incrementAndGet();
+		rejections.get(reason).incrementAndGet();
+	}
+
+	/**
+	 * Counts messages that failed unexpectedly
+	 */
+	public void failed(int messages) {
+		messagesFailed.addAndGet(messages);
+	}
+
+	/**
+	 * Counts tracks written to a table
+	 */
+	public void written(String table, int tracks) {
+		counter(tracksWritten, table).addAndGet(tracks);
+	}
+
+	/**
+	 * Counts tracks not written to a table because their unit hadn't moved
+	 */
+	public void suppressed(String table, int tracks) {
+		counter(tracksSuppressed, table).addAndGet(tracks);
+	}
+
+	/**
+	 * Counts a write transaction to a table that failed, and was rolled back
+	 */
+	public void rolledBack(String table) {
+		counter(rollbacks, table).incrementAndGet();
+	}
+
+	/**
+	 * Records the time a stage took
+	 * 
+	 * @param stage the stage
+	 * @param startNanos the {@link System#nanoTime()} the stage started at
+	 */
+	public void time(Stage stage, long startNanos) {
+		latencies.get(stage).record(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * Records the time a database write to a table took, both for the table and the DB stage
+	 * 
+	 * @param table the table written to
+	 * @param startNanos the {@link System#nanoTime()} the write started at
+	 */
+	public void timeTable(String table, long startNanos) {
+		final long nanos = System.nanoTime() - startNanos;
+		latencies.get(Stage.DB).record(nanos);
+		
+		LatencyHistogram histogram = tableLatencies.get(table);
+		if(histogram == null) {
+			final LatencyHistogram created = new LatencyHistogram();
+			histogram = tableLatencies.putIfAbsent(table, created);
+			if(histogram == null) {
+				histogram = created;
+			}
+		}
+		histogram.record(nanos);
+	}
+
+	/**
+	 * Increments a named counter
+	 */
+	public void increment(String counter) {
+		counter(counters, counter).incrementAndGet();
+	}
+
+	private static AtomicLong counter(ConcurrentMap<String, AtomicLong> counters, String name) {
+		AtomicLong counter = counters.get(name);
+		if(counter == null) {
+			final AtomicLong created = new AtomicLong();
+			counter = counters.putIfAbsent(name, created);
+			if(counter == null) {
+				counter = created;
+			}
+		}
+		return counter;
+	}
+
+	private static Map<String, Long> snapshot(ConcurrentMap<String, AtomicLong> counters) {
+		final Map<String, Long> values = new TreeMap<String, Long>();
+		for(Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+			values.put(entry.getKey(), entry.getValue().get());
+		}
+		return values;
+	}
+
+	@Override
+	public long getMessagesStarted() {
+		return messagesStarted.get();
+	}
+
+	@Override
+	public long getMessagesRejected() {
+		return messagesRejected.get();
+	}
+
+	@Override
+	public long getMessagesFailed() {
+		return messagesFailed.get();
+	}
+
+	@Override
+	public Map<String, Long> getTracksWritten() {
+		return snapshot(tracksWritten);
+	}
+
+	@Override
+	public Map<String, Long> getTracksSuppressed() {
+		return snapshot(tracksSuppressed);
+	}
+
+	@Override
+	public Map<String, Long> getRollbacks() {
+		return snapshot(rollbacks);
+	}
+
+	@Override
+	public Map<String, Long> getRejections() {
+		final Map<String, Long> counts = new TreeMap<String, Long>();
+		for(Map.Entry<RejectReason, AtomicLong> entry : rejections.entrySet()) {
+			counts.put(entry.getKey().name().toLowerCase(), entry.getValue().get());
+		}
+		return counts;
+	}
+
+	@Override
+	public Map<String, Latency> getLatencies() {
+		final Map<String, Latency> snapshots = new TreeMap<String, Latency>();
+		for(Map.Entry<Stage, LatencyHistogram> entry : latencies.entrySet()) {
+			snapshots.put(entry.getKey().name().toLowerCase(), snapshot(entry.getValue()));
+		}
+		return snapshots;
+	}
+
+	@Override
+	public Map<String, Latency> getTableLatencies() {
+		final Map<String, Latency> snapshots = new TreeMap<String, Latency>();
+		for(Map.Entry<String, LatencyHistogram> entry : tableLatencies.entrySet()) {
+			snapshots.put(entry.getKey(), snapshot(entry.getValue()));
+		}
+		return snapshots;
+	}
+
+	private static Latency snapshot(LatencyHistogram histogram) {
+		return new Latency(histogram.getCount(), histogram.getMeanMillis(), histogram.getPercentileMillis(50), 
+				histogram.getPercentileMillis(90), histogram.getPercentileMillis(99), histogram.getMaxMillis());
+	}
+
+	@Override
+	public Map<String, Long> getGauges() {
+		final Map<String, Long> gauges = snapshot(counters);
+		
+		final GaugeSource source = gaugeSource;
+		if(source != null) {
+			try {
+				source.collect(gauges);
+			} catch (Exception e) {
+				log.debug("Exception collecting gauges: " + e.getMessage());
+			}
+		}
+		return gauges;
+	}
+
+	@Override
+	public Map<String, Map<String, Long>> getTableGauges() {
+		final Map<String, Map<String, Long>> gauges = new TreeMap<String, Map<String, Long>>();
+		final GaugeSource source = gaugeSource;
+		if(source != null) {
+			try {
+				source.collectTables(gauges);
+			} catch (Exception e) {
+				log.debug("Exception collecting table gauges: " + e.getMessage());
+			}
+		}
+		return gauges;
+	}
+
+	/**
+	 * @return the metrics in the Prometheus text format, served by the {@link MetricsHttpServer}
+	 */
+	public String toText() {
+		final StringBuilder text = new StringBuilder();
+		text.append("gdfc_messages_started ").append(getMessagesStarted()).append('\n');
+		text.append("gdfc_messages_rejected ").append(getMessagesRejected()).append('\n');
+		text.append("gdfc_messages_failed ").append(getMessagesFailed()).append('\n');
+		
+		for(Map.Entry<String, Long> entry : getTracksWritten().entrySet()) {
+			text.append("gdfc_tracks_written{table=\"").append(entry.getKey()).append("\"} ")
+					.append(entry.getValue()).append('\n');
+		}
+		for(Map.Entry<String, Long> entry : getTracksSuppressed().entrySet()) {
+			text.append("gdfc_tracks_suppressed{table=\"").append(entry.getKey()).append("\"} ")
+					.append(entry.getValue()).append('\n');
+		}
+		for(Map.Entry<String, Long> entry : getRollbacks().entrySet()) {
+			text.append("gdfc_transaction_rollbacks{table=\"").append(entry.getKey()).append("\"} ")
+					.append(entry.getValue()).append('\n');
+		}
+		for(Map.Entry<String, Long> entry : getRejections().entrySet()) {
+			text.append("gdfc_rejections{reason=\"").append(entry.getKey()).append("\"} ")
+					.append(entry.getValue()).append('\n');
+		}
+		for(Map.Entry<String, Latency> entry : getLatencies().entrySet()) {
+			appendLatency(text, "gdfc_latency", "stage=\"" + entry.getKey() + "\"", entry.getValue());
+		}
+		for(Map.Entry<String, Latency> entry : getTableLatencies().entrySet()) {
+			appendLatency(text, "gdfc_table_latency", "table=\"" + entry.getKey() + "\"", entry.getValue());
+		}
+		for(Map.Entry<String, Long> entry : getGauges().entrySet()) {
+			text.append("gdfc_").append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+		}
+		for(Map.Entry<String, Map<String, Long>> gauge : getTableGauges().entrySet()) {
+			for(Map.Entry<String, Long> entry : gauge.getValue().entrySet()) {
+				text.append("gdfc_").append(gauge.getKey()).append("{table=\"").append(entry.getKey()).append("\"} ")
+						.append(entry.getValue()).append('\n');
+			}
+		}
+		return text.toString();
+	}
+
+	private static void appendLatency(StringBuilder text, String name, String label, Latency latency) {
+		text.append(name).append("_ms{").append(label).append(",quantile=\"0.5\"} ").append(latency.getP50()).append('\n');
+		text.append(name).append("_ms{").append(label).append(",quantile=\"0.9\"} ").append(latency.getP90()).append('\n');
+		text.append(name).append("_ms{").append(label).append(",quantile=\"0.99\"} ").append(latency.getP99()).append('\n');
+		text.append(name).append("_ms_max{").append(label).append("} ").append(latency.getMax()).append('\n');
+		text.append(name).append("_ms_mean{").append(label).append("} ").append(latency.getMean()).append('\n');
+		text.append(name).append("_count{").append(label).append("} ").append(latency.getCount()).append('\n');
+	}
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.nics.processor.gml.consumer;
+
+import java.util.Map;
+
+/**
+ * Management interface of the {@link IngestMetrics}
+ */
+public interface IngestMetricsMXBean {
+
+	/**
+	 * @return number of messages received
+	 */
+	long getMessagesStarted();
+
+	/**
+	 * @return number of messages rejected by a check
+	 */
+	long getMessagesRejected();
+
+	/**
+	 * @return number of messages that failed unexpectedly
+	 */
+	long getMessagesFailed();
+
+	/**
+	 * @return number of tracks written, by table
+	 */
+	Map<String, Long> getTracksWritten();
+
+	/**
+	 * @return number of tracks not written because their unit hadn't moved, by table
+	 */
+	Map<String, Long> getTracksSuppressed();
+
+	/**
+	 * @return number of write transactions rolled back, by table
+	 */
+	Map<String, Long> getRollbacks();
+
+	/**
+	 * @return number of rejected tracks, by reason
+	 */
+	Map<String, Long> getRejections();
+
+	/**
+	 * @return latency of each stage of ingest
+	 */
+	Map<String, IngestMetrics.Latency> getLatencies();
+
+	/**
+	 * @return latency of the database writes, by table
+	 */
+	Map<String, IngestMetrics.Latency> getTableLatencies();
+
+	/**
+	 * @return counters and gauges of the components in use, such as retries, queue depths, the
+	 *         connection pool and the caches
+	 */
+	Map<String, Long> getGauges();
+
+	/**
+	 * @return the gauges that have a value per table, such as queue depths, by gauge name and table
+	 */
+	Map<String, Map<String, Long>> getTableGauges();
+}
@@ -0,0 +1,158 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.nics.processor.gml.consumer;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded, per-table cache of the last accepted timestamp for each track id. Used to drop
+ * out-of-order and duplicate reports without querying the database.
+ * 
+ * <p>Each table holds at most maxEntries ids, evicting the least recently used. Entries older
+ * than the time to live are treated as missing, since any report new enough to pass the
+ * old feature threshold is newer than them anyway.</p>
+ */
+public class LastPositionCache {
+
+	/** Maximum number of ids kept per table */
+	private final int maxEntries;
+
+	/** Time in milliseconds after which a cached timestamp is no longer useful */
+	private final long ttl;
+
+	/** table name -> (id -> last accepted timestamp in epoch milliseconds) */
+	private final Map<String, Map<String, Long>> tables = new HashMap<String, Map<String, Long>>();
+
+	private long hits = 0;
+
+	private long misses = 0;
+
+	public LastPositionCache(int maxEntries, long ttl) {
+		this.maxEntries = maxEntries;
+		this.ttl = ttl;
+	}
+
+	/**
+	 * Looks up the last accepted timestamp of a track, counting a hit or a miss
+	 * 
+	 * @return the timestamp in epoch milliseconds, or null if the id isn't cached
+	 */
+	public synchronized Long get(String table, String id) {
+		final Long timestamp = lookup(table, id);
+		if(timestamp == null) {
+			misses++;
+		} else {
+			hits++;
+		}
+		return timestamp;
+	}
+
+	/**
+	 * Same as {@link #get(String, String)}, without counting a hit or a miss
+	 * 
+	 * @return true if the id has a cached timestamp
+	 */
+	public synchronized boolean contains(String table, String id) {
+		return lookup(table, id) != null;
+	}
+
+	/**
+	 * Records the timestamp for the id, unless a newer one is already cached
+	 */
+	public synchronized void put(String table, String id, long timestamp) {
+		final Map<String, Long> ids = getTable(table);
+		final Long current = ids.get(id);
+		if(current == null || current < timestamp) {
+			ids.put(id, timestamp);
+		}
+	}
+
+	/**
+	 * @return true if the table has been seen, and so warmed, before
+	 */
+	public synchronized boolean hasTable(String table) {
+		return tables.containsKey(table);
+	}
+
+	/**
+	 * Makes sure the table is known to the cache, so it won't be warmed again
+	 */
+	public synchronized void addTable(String table) {
+		getTable(table);
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized int size() {
+		int size = 0;
+		for(Map<String, Long> ids : tables.values()) {
+			size += ids.size();
+		}
+		return size;
+	}
+
+	private Long lookup(String table, String id) {
+		final Map<String, Long> ids = tables.get(table);
+		if(ids == null) {
+			return null;
+		}
+
+		final Long timestamp = ids.get(id);
+		if(timestamp != null && timestamp < System.currentTimeMillis() - ttl) {
+			ids.remove(id);
+			return null;
+		}
+		return timestamp;
+	}
+
+	private Map<String, Long> getTable(String table) {
+		Map<String, Long> ids = tables.get(table);
+		if(ids == null) {
+			ids = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+					return size() > maxEntries;
+				}
+			};
+			tables.put(table, ids);
+		}
+		return ids;
+	}
+}
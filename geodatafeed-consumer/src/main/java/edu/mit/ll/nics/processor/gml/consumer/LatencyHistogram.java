@@ -0,0 +1,113 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.nics.processor.gml.consumer;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free histogram of latencies, in buckets of powers of two microseconds. Percentiles are
+ * reported as the upper bound of their bucket, so they're at most twice the real value.
+ */
+public class LatencyHistogram {
+
+	/** Bucket i holds latencies under 2^i microseconds, the last one everything above */
+	private static final int bucket_count = 32;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(bucket_count);
+
+	private final AtomicLong count = new AtomicLong();
+
+	/** Sum of all latencies, in nanoseconds */
+	private final AtomicLong total = new AtomicLong();
+
+	/** Largest latency, in nanoseconds */
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * @param nanos latency to record, in nanoseconds
+	 */
+	public void record(long nanos) {
+		if(nanos < 0) {
+			nanos = 0;
+		}
+		
+		final long micros = nanos / 1000;
+		final int bucket = Math.min(bucket_count - 1, 64 - Long.numberOfLeadingZeros(micros));
+		buckets.incrementAndGet(bucket);
+		count.incrementAndGet();
+		total.addAndGet(nanos);
+		
+		long current = max.get();
+		while(nanos > current && !max.compareAndSet(current, nanos)) {
+			current = max.get();
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * @return the mean latency in milliseconds
+	 */
+	public double getMeanMillis() {
+		final long n = count.get();
+		return n == 0 ? 0 : total.get() / (n * 1e6);
+	}
+
+	/**
+	 * @return the largest latency in milliseconds
+	 */
+	public double getMaxMillis() {
+		return max.get() / 1e6;
+	}
+
+	/**
+	 * @param percentile the percentile, between 0 and 100
+	 * @return the upper bound in milliseconds of the bucket holding the percentile
+	 */
+	public double getPercentileMillis(double percentile) {
+		final long n = count.get();
+		if(n == 0) {
+			return 0;
+		}
+		
+		final long rank = (long) Math.ceil(n * percentile / 100);
+		long seen = 0;
+		for(int i = 0; i < bucket_count - 1; i++) {
+			seen += buckets.get(i);
+			if(seen >= rank) {
+				return Math.min((1L << i) / 1000.0, getMaxMillis());
+			}
+		}
+		return getMaxMillis();
+	}
+}
@@ -0,0 +1,225 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.nics.processor.gml.consumer;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.vividsolutions.jts.geom.Point;
+
+/**
+ * Suppresses the writes of units that haven't moved. Keeps the position and attributes of the
+ * last track written for each id, and lets a newer report through only if it moved more than the
+ * minimum distance, changed one of the compared attributes, or the keep alive interval has passed
+ * since the written report's timestamp.
+ * 
+ * <p>Distances are measured in the units of the table CRS, which the tracks are already
+ * transformed into. For the usual EPSG:3857 those are meters stretched by 1/cos(latitude), so
+ * a threshold of 10 is about 8.3 true meters at 34 degrees.</p>
+ * 
+ * <p>Each table holds at most maxEntries ids, evicting the least recently used. Reports of an id
+ * that isn't held, or that are older than the written report, are always let through, and left
+ * to the out of order checks.</p>
+ */
+public class MovementFilter {
+
+	/** Position, attributes and timestamp of the last written track of an id */
+	private static class Written {
+		private final double x;
+		private final double y;
+		private final Object[] attributes;
+		private final long timestamp;
+
+		private Written(double x, double y, Object[] attributes, long timestamp) {
+			this.x = x;
+			this.y = y;
+			this.attributes = attributes;
+			this.timestamp = timestamp;
+		}
+	}
+
+	/** Minimum distance moved, in table CRS units, for a report to be written */
+	private final double minDistance;
+
+	/** Milliseconds after which a report is written, even if the unit is stationary */
+	private final long keepAlive;
+
+	/** Attributes that are written whenever they change */
+	private final String[] attributes;
+
+	/** Maximum number of ids kept per table */
+	private final int maxEntries;
+
+	/** table name -> (id -> last written track) */
+	private final Map<String, Map<String, Written>> tables = new HashMap<String, Map<String, Written>>();
+
+	private long suppressed = 0;
+
+	private long moved = 0;
+
+	private long changed = 0;
+
+	private long keptAlive = 0;
+
+	private long unknown = 0;
+
+	public MovementFilter(double minDistance, long keepAlive, String[] attributes, int maxEntries) {
+		this.minDistance = minDistance;
+		this.keepAlive = keepAlive;
+		this.attributes = attributes;
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * Checks a track against the last written track of its id, counting why it was let through
+	 * 
+	 * @return true if the track shouldn't be written
+	 */
+	public synchronized boolean suppress(Track track) {
+		final Map<String, Written> ids = tables.get(track.getTableName());
+		final Written last = ids == null ? null : ids.get(track.getId());
+		final long timestamp = track.getTimestamp().getTime();
+		if(last == null || timestamp < last.timestamp) {
+			unknown++;
+			return false;
+		}
+		
+		if(timestamp - last.timestamp >= keepAlive) {
+			keptAlive++;
+			return false;
+		}
+		
+		final Point point = (Point) track.getFeature().getDefaultGeometry();
+		final double dx = point.getX() - last.x;
+		final double dy = point.getY() - last.y;
+		if(dx * dx + dy * dy > minDistance * minDistance) {
+			moved++;
+			return false;
+		}
+		
+		for(int i = 0; i < attributes.length; i++) {
+			final Object value = track.getFeature().getAttribute(attributes[i]);
+			if(value == null ? last.attributes[i] != null : !value.equals(last.attributes[i])) {
+				changed++;
+				return false;
+			}
+		}
+		
+		suppressed++;
+		return true;
+	}
+
+	/**
+	 * Records a committed track as the last written of its id, unless a newer one already is
+	 */
+	public synchronized void written(Track track) {
+		final Map<String, Written> ids = getTable(track.getTableName());
+		final Written last = ids.get(track.getId());
+		final long timestamp = track.getTimestamp().getTime();
+		if(last != null && last.timestamp > timestamp) {
+			return;
+		}
+		
+		final Point point = (Point) track.getFeature().getDefaultGeometry();
+		final Object[] values = new Object[attributes.length];
+		for(int i = 0; i < attributes.length; i++) {
+			values[i] = track.getFeature().getAttribute(attributes[i]);
+		}
+		ids.put(track.getId(), new Written(point.getX(), point.getY(), values, timestamp));
+	}
+
+	/**
+	 * @return number of reports suppressed
+	 */
+	public synchronized long getSuppressed() {
+		return suppressed;
+	}
+
+	/**
+	 * @return number of reports let through because the unit moved
+	 */
+	public synchronized long getMoved() {
+		return moved;
+	}
+
+	/**
+	 * @return number of reports let through because an attribute changed
+	 */
+	public synchronized long getChanged() {
+		return changed;
+	}
+
+	/**
+	 * @return number of reports let through because the keep alive interval passed
+	 */
+	public synchronized long getKeptAlive() {
+		return keptAlive;
+	}
+
+	/**
+	 * @return number of reports let through with no written report to compare to
+	 */
+	public synchronized long getUnknown() {
+		return unknown;
+	}
+
+	public synchronized int size() {
+		int size = 0;
+		for(Map<String, Written> ids : tables.values()) {
+			size += ids.size();
+		}
+		return size;
+	}
+
+	/**
+	 * @return the counters, for logging
+	 */
+	public synchronized String getStatistics() {
+		return "movement filter suppressed: " + suppressed + "   moved: " + moved + "   changed: " + changed 
+				+ "   kept alive: " + keptAlive + "   unknown: " + unknown + "   size: " + size();
+	}
+
+	private Map<String, Written> getTable(String table) {
+		Map<String, Written> ids = tables.get(table);
+		if(ids == null) {
+			ids = new LinkedHashMap<String, Written>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, Written> eldest) {
+					return size() > maxEntries;
+				}
+			};
+			tables.put(table, ids);
+		}
+		return ids;
+	}
+}
@@ -0,0 +1,161 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.nics.processor.gml.consumer;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Runs track writes on a fixed number of single threaded lanes. Each track id always hashes to
+ * the same lane, so the reports of one unit are written in the order they were submitted, while
+ * different units are written in parallel.
+ * 
+ * <p>Each lane has a bounded queue. When it is full, submitting blocks until the lane catches up,
+ * which holds up the consumer thread, and so the broker, instead of buffering without limit.</p>
+ */
+public class PartitionedTrackExecutor {
+
+	private static final Logger log = Logger.getLogger(PartitionedTrackExecutor.class.getSimpleName());
+
+	/** Time in seconds to wait for queued writes to finish on shutdown */
+	private static final long shutdown_timeout = 30;
+
+	private final ThreadPoolExecutor[] lanes;
+
+	/**
+	 * @param laneCount number of lanes, each with its own thread
+	 * @param queueSize maximum number of pending tasks per lane
+	 */
+	public PartitionedTrackExecutor(int laneCount, int queueSize) {
+		lanes = new ThreadPoolExecutor[laneCount];
+		for(int i = 0; i < laneCount; i++) {
+			lanes[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, 
+					new ArrayBlockingQueue<Runnable>(queueSize), new LaneThreadFactory(i), new BlockingPolicy());
+		}
+	}
+
+	/**
+	 * @return the number of lanes
+	 */
+	public int getLaneCount() {
+		return lanes.length;
+	}
+
+	/**
+	 * @param id a track id
+	 * @return the lane the id's tracks are written on
+	 */
+	public int laneOf(String id) {
+		return (id.hashCode() & Integer.MAX_VALUE) % lanes.length;
+	}
+
+	/**
+	 * Queues a task on a lane, blocking while the lane's queue is full
+	 * 
+	 * @param lane the lane, from {@link #laneOf(String)}
+	 * @param task the task to run
+	 * @return the task's result, once it has run
+	 * @throws RejectedExecutionException if the executor is shut down, or the wait is interrupted
+	 */
+	public <T> Future<T> submit(int lane, Callable<T> task) {
+		return lanes[lane].submit(task);
+	}
+
+	/**
+	 * @return the number of tasks waiting on all the lanes
+	 */
+	public int getQueueDepth() {
+		int depth = 0;
+		for(ThreadPoolExecutor lane : lanes) {
+			depth += lane.getQueue().size();
+		}
+		return depth;
+	}
+
+	/**
+	 * Stops accepting tasks, and waits for the queued ones to finish
+	 */
+	public void shutdown() {
+		for(ThreadPoolExecutor lane : lanes) {
+			lane.shutdown();
+		}
+		try {
+			for(ThreadPoolExecutor lane : lanes) {
+				if(!lane.awaitTermination(shutdown_timeout, TimeUnit.SECONDS)) {
+					log.warn("Writes still pending after " + shutdown_timeout + " seconds, abandoning them");
+					lane.shutdownNow();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Blocks the submitting thread until there's room in the lane's queue
+	 */
+	private static class BlockingPolicy implements RejectedExecutionHandler {
+		@Override
+		public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+			if(executor.isShutdown()) {
+				throw new RejectedExecutionException("Track executor is shut down");
+			}
+			try {
+				executor.getQueue().put(task);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RejectedExecutionException("Interrupted waiting for a free track lane", e);
+			}
+		}
+	}
+
+	private static class LaneThreadFactory implements ThreadFactory {
+		private final int lane;
+
+		private LaneThreadFactory(int lane) {
+			this.lane = lane;
+		}
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			final Thread thread = new Thread(runnable, "track-lane-" + lane);
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,254 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.nics.processor.gml.consumer;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.dbcp.BasicDataSource;
+import org.apache.log4j.Logger;
+
+/**
+ * The PostGIS connection pool shared by the GeoTools datastore and the {@link PostgisUpsertWriter}.
+ * 
+ * <p>Connections are validated on borrow and while idle, so broken ones are evicted and replaced
+ * instead of failing a write. When the database can't be connected to at all, borrowing retries
+ * with an exponential backoff before giving up. A pool with no free connection left after maxWait
+ * fails at once, since retrying would only hold up the write longer, as do errors retrying won't
+ * fix, such as a failed login or a missing database.</p>
+ * 
+ * <p>Keeps the time spent waiting for a connection, so the pool can be sized from the statistics
+ * logged by the {@link GMLToDBProcessor}.</p>
+ */
+public class PooledDataSource extends BasicDataSource {
+
+	private static final Logger log = Logger.getLogger(PooledDataSource.class.getSimpleName());
+
+	/** Query run to validate a connection */
+	private static final String validation_query = "SELECT 1";
+
+	/** Time in milliseconds between runs of the idle connection evictor */
+	private static final long evictor_interval = 30 * 1000;
+
+	/** First delay in milliseconds before retrying a failed connect, doubled on each retry */
+	private static final long initial_backoff = 500;
+
+	/** Longest delay in milliseconds between connect retries */
+	private static final long max_backoff = 30 * 1000;
+
+	/** Number of times a failed connect is retried before the failure is thrown */
+	private final int connectRetries;
+
+	/** Number of connections borrowed */
+	private final AtomicLong borrowed = new AtomicLong();
+
+	/** Number of attempts to borrow a connection, failed or not */
+	private final AtomicLong attempts = new AtomicLong();
+
+	/** Total time in nanoseconds spent waiting for connections, including failed attempts */
+	private final AtomicLong waitNanos = new AtomicLong();
+
+	/** Longest time in nanoseconds spent waiting for a connection */
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+
+	/** Number of failed attempts to borrow a connection */
+	private final AtomicLong failures = new AtomicLong();
+
+	/** Number of borrows that failed because the pool had no free connection */
+	private final AtomicLong exhausted = new AtomicLong();
+
+	/**
+	 * @param host database host
+	 * @param port database port
+	 * @param database database name
+	 * @param user username used to access the database
+	 * @param password password used to access the database
+	 * @param maxActive maximum number of connections open at once
+	 * @param minIdle number of idle connections kept open
+	 * @param maxWait time in milliseconds to wait for a free connection before failing
+	 * @param idleTimeout time in milliseconds after which an idle connection is evicted
+	 * @param connectRetries number of times a failed connect is retried
+	 */
+	public PooledDataSource(String host, int port, String database, String user, String password,
+			int maxActive, int minIdle, long maxWait, long idleTimeout, int connectRetries) {
+		this.connectRetries = connectRetries;
+		
+		setDriverClassName("org.postgresql.Driver");
+		setUrl("jdbc:postgresql://" + host + ":" + port + "/" + database);
+		setUsername(user);
+		setPassword(password);
+		
+		setMaxActive(maxActive);
+		setMaxIdle(maxActive);
+		setMinIdle(minIdle);
+		setMaxWait(maxWait);
+		
+		setValidationQuery(validation_query);
+		setTestOnBorrow(true);
+		setTestWhileIdle(true);
+		setTimeBetweenEvictionRunsMillis(evictor_interval);
+		setMinEvictableIdleTimeMillis(idleTimeout);
+		setNumTestsPerEvictionRun(maxActive);
+		
+		// Both the datastore and the upsert writer prepare the same statements over and over
+		setPoolPreparedStatements(true);
+		setMaxOpenPreparedStatements(100);
+	}
+
+	/**
+	 * Borrows a connection from the pool, retrying with a backoff if the database can't be reached.
+	 * Running out of free connections, and any other error, is thrown at once.
+	 */
+	@Override
+	public Connection getConnection() throws SQLException {
+		long backoff = initial_backoff;
+		for(int attempt = 0; ; attempt++) {
+			final long start = System.nanoTime();
+			try {
+				final Connection connection = super.getConnection();
+				recordWait(System.nanoTime() - start);
+				borrowed.incrementAndGet();
+				return connection;
+				
+			} catch (SQLException e) {
+				recordWait(System.nanoTime() - start);
+				if(!isConnectFailure(e)) {
+					if(isExhausted(e)) {
+						exhausted.incrementAndGet();
+					}
+					throw e;
+				}
+				
+				failures.incrementAndGet();
+				if(attempt >= connectRetries) {
+					throw e;
+				}
+				
+				log.warn("Could not get a connection to " + getUrl() + " (" + e.getMessage() + "), retrying in " 
+						+ backoff + "ms");
+				try {
+					Thread.sleep(backoff);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw e;
+				}
+				backoff = Math.min(backoff * 2, max_backoff);
+			}
+		}
+	}
+
+	/**
+	 * Tells a failure to reach the database, SQLState class 08, from errors retrying won't fix,
+	 * such as a failed login (28) or a missing database (3D000)
+	 * 
+	 * @return true if the database couldn't be connected to
+	 */
+	private static boolean isConnectFailure(SQLException e) {
+		for(Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if(cause instanceof SQLException) {
+				final String state = ((SQLException) cause).getSQLState();
+				if(state != null && state.startsWith("08")) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if the pool ran out of free connections, which dbcp reports with a
+	 *         NoSuchElementException as the cause
+	 */
+	private static boolean isExhausted(SQLException e) {
+		for(Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if(cause instanceof NoSuchElementException) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void recordWait(long nanos) {
+		attempts.incrementAndGet();
+		waitNanos.addAndGet(nanos);
+		
+		long max = maxWaitNanos.get();
+		while(nanos > max && !maxWaitNanos.compareAndSet(max, nanos)) {
+			max = maxWaitNanos.get();
+		}
+	}
+
+	/**
+	 * @return number of connections borrowed
+	 */
+	public long getBorrowed() {
+		return borrowed.get();
+	}
+
+	/**
+	 * @return average time in milliseconds spent waiting for a connection, failed or not
+	 */
+	public double getAverageWaitMillis() {
+		final long count = attempts.get();
+		return count == 0 ? 0 : waitNanos.get() / 1e6 / count;
+	}
+
+	/**
+	 * @return longest time in milliseconds spent waiting for a connection
+	 */
+	public double getMaxWaitMillis() {
+		return maxWaitNanos.get() / 1e6;
+	}
+
+	/**
+	 * @return number of failed attempts to connect to the database
+	 */
+	public long getFailures() {
+		return failures.get();
+	}
+
+	/**
+	 * @return number of borrows that failed because the pool had no free connection
+	 */
+	public long getExhausted() {
+		return exhausted.get();
+	}
+
+	/**
+	 * @return the pool statistics, for logging
+	 */
+	public String getStatistics() {
+		return String.format("db pool active: %d   idle: %d   max: %d   borrowed: %d   avg wait: %.2fms"
+				+ "   max wait: %.2fms   connect failures: %d   exhausted: %d", getNumActive(), getNumIdle(), 
+				getMaxActive(), getBorrowed(), getAverageWaitMillis(), getMaxWaitMillis(), getFailures(), getExhausted());
+	}
+}
@@ -0,0 +1,268 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.nics.processor.gml.consumer;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.sql.DataSource;
+
+import org.apache.log4j.Logger;
+import org.geotools.util.Converters;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.GeometryDescriptor;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Writes tracks with a single native PostGIS statement per track:
+ * <pre>
+ * INSERT INTO table (...) VALUES (...)
+ *   ON CONFLICT (id) DO UPDATE SET ... WHERE EXCLUDED.timestamp &gt; table.timestamp
+ * </pre>
+ * so the "strictly newer timestamp wins" rule is applied atomically by the database, without reading
+ * the stored feature first or deleting it.
+ * 
+ * <p>Requires PostgreSQL 9.5 or newer, and a unique index or constraint on the id column
+ * of every table written to.</p>
+ * 
+ * <p>Each write borrows a connection from the pool, which also pools the prepared statements.
+ * The writer only caches the upsert and column layout of each table, and is thread safe.</p>
+ */
+public class PostgisUpsertWriter {
+
+	private static final Logger log = Logger.getLogger(PostgisUpsertWriter.class.getSimpleName());
+
+	/** Pool the writer borrows its connections from */
+	private final DataSource dataSource;
+
+	/** SRID of the geometry columns, the tracks are already transformed into it */
+	private final int srid;
+
+	/** Unique identifier column, the conflict target of the upsert */
+	private final String idColumn;
+
+	/** Timestamp column compared to decide whether the incoming track is newer */
+	private final String timestampColumn;
+
+	/** Upsert statement and its column layout, per table */
+	private final ConcurrentMap<String, TableStatement> statements = new ConcurrentHashMap<String, TableStatement>();
+
+	public PostgisUpsertWriter(DataSource dataSource, int srid, String idColumn, String timestampColumn) {
+		this.dataSource = dataSource;
+		this.srid = srid;
+		this.idColumn = idColumn;
+		this.timestampColumn = timestampColumn;
+	}
+
+	/**
+	 * Upserts the tracks into the table in one transaction
+	 * 
+	 * @param tableName the table to write to
+	 * @param schema the table's feature type, as reported by the datastore
+	 * @param tracks the tracks to write
+	 * @return for each track, true if it was written, false if the table already held the same or
+	 * 		   a newer timestamp for its id
+	 * @throws SQLException if the transaction failed, in which case nothing was written
+	 */
+	public boolean[] write(String tableName, SimpleFeatureType schema, List<Track> tracks) throws SQLException {
+		final boolean[] written = new boolean[tracks.size()];
+		final TableStatement statement = getStatement(tableName, schema);
+
+		final Connection connection = dataSource.getConnection();
+		PreparedStatement ps = null;
+		try {
+			connection.setAutoCommit(false);
+			ps = connection.prepareStatement(statement.sql);
+			
+			for(Track track : tracks) {
+				statement.bind(ps, track);
+				ps.addBatch();
+			}
+			
+			final int[] counts = ps.executeBatch();
+			connection.commit();
+			
+			for(int i = 0; i < counts.length; i++) {
+				written[i] = counts[i] > 0 || counts[i] == Statement.SUCCESS_NO_INFO;
+			}
+			
+		} catch (SQLException e) {
+			try {
+				connection.rollback();
+			} catch (SQLException rex) {
+				log.debug("Exception rolling back upsert: " + rex.getMessage());
+			}
+			throw e;
+			
+		} finally {
+			if(ps != null) {
+				try {
+					ps.close();
+				} catch (SQLException e) {
+					log.debug("Exception closing upsert statement: " + e.getMessage());
+				}
+			}
+			try {
+				connection.setAutoCommit(true);
+			} catch (SQLException e) {
+				log.debug("Exception restoring auto commit: " + e.getMessage());
+			}
+			connection.close();
+		}
+
+		return written;
+	}
+
+	/**
+	 * Gets the cached statement for the table, building it if needed
+	 */
+	private TableStatement getStatement(String tableName, SimpleFeatureType schema) {
+		TableStatement statement = statements.get(tableName);
+		if(statement == null) {
+			statement = new TableStatement(tableName, schema);
+			final TableStatement existing = statements.putIfAbsent(tableName, statement);
+			if(existing != null) {
+				statement = existing;
+			}
+		}
+		return statement;
+	}
+
+	private static String quote(String identifier) {
+		return "\"" + identifier.replace("\"", "\"\"") + "\"";
+	}
+
+	/**
+	 * The upsert for one table, along with the attribute each parameter is bound from
+	 */
+	private class TableStatement {
+
+		private final String sql;
+
+		private final List<AttributeDescriptor> columns = new ArrayList<AttributeDescriptor>();
+
+		/** 
+		 * True when the id column is the table's primary key, which the datastore leaves out of
+		 * the feature type. It is then bound as the first parameter. 
+		 */
+		private final boolean idIsKey;
+
+		private TableStatement(String tableName, SimpleFeatureType schema) {
+			final String table = quote(tableName);
+			final StringBuilder names = new StringBuilder();
+			final StringBuilder values = new StringBuilder();
+			final StringBuilder updates = new StringBuilder();
+
+			idIsKey = schema.getDescriptor(idColumn) == null;
+			if(idIsKey) {
+				names.append(quote(idColumn));
+				values.append("?");
+			}
+
+			for(AttributeDescriptor descriptor : schema.getAttributeDescriptors()) {
+				final String column = quote(descriptor.getLocalName());
+				columns.add(descriptor);
+
+				if(names.length() > 0) {
+					names.append(", ");
+					values.append(", ");
+				}
+				names.append(column);
+				values.append(descriptor instanceof GeometryDescriptor ? "ST_GeomFromText(?, " + srid + ")" : "?");
+
+				if(!descriptor.getLocalName().equals(idColumn)) {
+					if(updates.length() > 0) {
+						updates.append(", ");
+					}
+					updates.append(column).append(" = EXCLUDED.").append(column);
+				}
+			}
+
+			sql = "INSERT INTO " + table + " (" + names + ") VALUES (" + values + ")"
+					+ " ON CONFLICT (" + quote(idColumn) + ") DO UPDATE SET " + updates
+					+ " WHERE EXCLUDED." + quote(timestampColumn) + " > " + table + "." + quote(timestampColumn);
+
+			log.info("Built upsert for table " + tableName + ": " + sql);
+		}
+
+		/**
+		 * Sets the statement parameters from the track's feature, converting each value to
+		 * the binding of the table's column
+		 */
+		private void bind(PreparedStatement ps, Track track) throws SQLException {
+			final int offset = idIsKey ? 1 : 0;
+			if(idIsKey) {
+				ps.setString(1, track.getId());
+			}
+
+			for(int i = 0; i < columns.size(); i++) {
+				final AttributeDescriptor descriptor = columns.get(i);
+				final String name = descriptor.getLocalName();
+				final int index = i + 1 + offset;
+
+				if(descriptor instanceof GeometryDescriptor) {
+					final Geometry geometry = (Geometry) track.getFeature().getDefaultGeometry();
+					ps.setString(index, geometry == null ? null : geometry.toText());
+					continue;
+				}
+
+				Object value;
+				if(name.equals(timestampColumn)) {
+					value = track.getTimestamp();
+				} else {
+					value = track.getFeature().getAttribute(name);
+					Class<?> binding = descriptor.getType().getBinding();
+					if(java.util.Date.class.isAssignableFrom(binding)) {
+						binding = Timestamp.class;
+					}
+					if(value != null && !binding.isInstance(value)) {
+						value = Converters.convert(value, binding);
+					}
+				}
+
+				if(value == null) {
+					ps.setNull(index, Types.OTHER);
+				} else {
+					ps.setObject(index, value);
+				}
+			}
+		}
+	}
+}
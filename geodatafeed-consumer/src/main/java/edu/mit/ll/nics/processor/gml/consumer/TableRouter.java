@@ -0,0 +1,363 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.nics.processor.gml.consumer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Routes tracks to a pipeline per table, each with its own bounded queue and writer thread, so a
+ * slow or locked table only backs up its own queue while the other tables keep being written.
+ * 
+ * <p>A pipeline's thread takes up to its batch size of queued tracks at a time, keeps the newest
+ * per id, and hands them to the {@link Writer}. Being the only writer of its table, it also has
+ * the table's cached feature store to itself. Pipelines are started the first time a track for
+ * their table arrives.</p>
+ * 
+ * <p>When a table's queue is full, {@link #offer(Collection)} waits for room for at most the offer
+ * timeout over the whole batch, then gives up on the tracks that don't fit, rather than holding
+ * up the tracks of the other tables.</p>
+ */
+public class TableRouter {
+
+	private static final Logger log = Logger.getLogger(TableRouter.class.getSimpleName());
+
+	/** Time in seconds to wait for queued tracks to be written on shutdown */
+	private static final long shutdown_timeout = 30;
+
+	/**
+	 * Writes the tracks of one table
+	 */
+	public interface Writer {
+		/**
+		 * @param table the table to write to
+		 * @param tracks the tracks to write, at most one per id
+		 */
+		void write(String table, List<Track> tracks);
+
+		/**
+		 * @param track a report that won't be written, since a newer one for its id was queued
+		 */
+		void discarded(Track track);
+
+		/**
+		 * @param table the table the tracks were for
+		 * @param tracks tracks that weren't written, since write threw
+		 */
+		void failed(String table, List<Track> tracks);
+	}
+
+	/**
+	 * Queue and batch size of a pipeline
+	 */
+	public static class Settings {
+		private final int queueSize;
+		private final int batchSize;
+
+		public Settings(int queueSize, int batchSize) {
+			this.queueSize = queueSize;
+			this.batchSize = batchSize;
+		}
+
+		public int getQueueSize() {
+			return queueSize;
+		}
+
+		public int getBatchSize() {
+			return batchSize;
+		}
+
+		@Override
+		public String toString() {
+			return "queue=" + queueSize + ":batch=" + batchSize;
+		}
+	}
+
+	private final Writer writer;
+
+	private final Settings defaults;
+
+	/** Settings of the tables that don't use the defaults */
+	private final Map<String, Settings> tableSettings;
+
+	/** Milliseconds to wait for room in full queues per batch, 0 waits as long as it takes */
+	private final long offerTimeout;
+
+	private final ConcurrentMap<String, Pipeline> pipelines = new ConcurrentHashMap<String, Pipeline>();
+
+	private volatile boolean running = true;
+
+	/**
+	 * @param writer writes each pipeline's batches
+	 * @param defaults queue and batch size of the pipelines not in tableSettings
+	 * @param tableSettings queue and batch size by table name
+	 * @param offerTimeout milliseconds to wait for room in full queues per batch, 0 to wait as long
+	 *        as it takes
+	 */
+	public TableRouter(Writer writer, Settings defaults, Map<String, Settings> tableSettings, long offerTimeout) {
+		this.writer = writer;
+		this.defaults = defaults;
+		this.tableSettings = new HashMap<String, Settings>(tableSettings);
+		this.offerTimeout = offerTimeout;
+	}
+
+	/**
+	 * Parses a comma delimited list of per table settings, such as
+	 * avlxriair:queue=20000:batch=500,ca_corona:batch=100. Settings left out take the default.
+	 * 
+	 * @return the settings by table name
+	 * @throws IllegalArgumentException if an entry can't be parsed
+	 */
+	public static Map<String, Settings> parseSettings(String spec, Settings defaults) {
+		final Map<String, Settings> settings = new HashMap<String, Settings>();
+		if(spec == null) {
+			return settings;
+		}
+		
+		for(String entry : spec.split(",")) {
+			if(entry.trim().isEmpty()) {
+				continue;
+			}
+			
+			final String[] parts = entry.trim().split(":");
+			int queueSize = defaults.queueSize;
+			int batchSize = defaults.batchSize;
+			for(int i = 1; i < parts.length; i++) {
+				final int equals = parts[i].indexOf('=');
+				if(equals < 0) {
+					throw new IllegalArgumentException("Expected key=value, got: " + parts[i] + " in " + entry.trim());
+				}
+				final String key = parts[i].substring(0, equals).trim();
+				final int value;
+				try {
+					value = Integer.parseInt(parts[i].substring(equals + 1).trim());
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException("Invalid number: " + parts[i] + " in " + entry.trim());
+				}
+				if(value <= 0) {
+					throw new IllegalArgumentException("Expected a positive number: " + parts[i] + " in " + entry.trim());
+				}
+				
+				if("queue".equals(key)) {
+					queueSize = value;
+				} else if("batch".equals(key)) {
+					batchSize = value;
+				} else {
+					throw new IllegalArgumentException("Unknown setting: " + key + " in " + entry.trim());
+				}
+			}
+			settings.put(parts[0].trim(), new Settings(queueSize, batchSize));
+		}
+		return settings;
+	}
+
+	/**
+	 * Queues a batch of tracks on their tables' pipelines. Waiting for room in full queues shares
+	 * one offer timeout over the whole batch, so once it has run out, the tracks of full queues
+	 * are given up on at once.
+	 * 
+	 * @return the tracks that weren't queued, because their queue stayed full or the router is
+	 *         shut down
+	 */
+	public List<Track> offer(Collection<Track> tracks) {
+		final List<Track> rejected = new ArrayList<Track>();
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(offerTimeout);
+		for(Track track : tracks) {
+			if(!running) {
+				rejected.add(track);
+				continue;
+			}
+			
+			final Pipeline pipeline = getPipeline(track.getTableName());
+			try {
+				if(offerTimeout <= 0) {
+					pipeline.queue.put(track);
+				} else if(!pipeline.queue.offer(track, Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+					rejected.add(track);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				rejected.add(track);
+			}
+		}
+		return rejected;
+	}
+
+	/**
+	 * Stops accepting tracks, and waits for every pipeline to write what it has queued
+	 */
+	public void shutdown() {
+		running = false;
+		for(Pipeline pipeline : pipelines.values()) {
+			try {
+				pipeline.thread.join(TimeUnit.SECONDS.toMillis(shutdown_timeout));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			if(pipeline.thread.isAlive()) {
+				log.warn("Gave up waiting for the " + pipeline.table + " pipeline, with " 
+						+ pipeline.queue.size() + " tracks queued");
+			}
+		}
+	}
+
+	/**
+	 * @return number of queued tracks, by table
+	 */
+	public Map<String, Long> getQueueDepths() {
+		final Map<String, Long> depths = new TreeMap<String, Long>();
+		for(Pipeline pipeline : pipelines.values()) {
+			depths.put(pipeline.table, (long) pipeline.queue.size());
+		}
+		return depths;
+	}
+
+	/**
+	 * @return number of queued tracks replaced by a newer one from the same batch, by table
+	 */
+	public Map<String, Long> getCoalesced() {
+		final Map<String, Long> coalesced = new TreeMap<String, Long>();
+		for(Pipeline pipeline : pipelines.values()) {
+			coalesced.put(pipeline.table, pipeline.coalesced.get());
+		}
+		return coalesced;
+	}
+
+	/**
+	 * @return the pipelines' queue depths, for logging
+	 */
+	public String getStatistics() {
+		return "table pipelines queued: " + getQueueDepths() + "   coalesced: " + getCoalesced();
+	}
+
+	private Pipeline getPipeline(String table) {
+		Pipeline pipeline = pipelines.get(table);
+		if(pipeline == null) {
+			synchronized(pipelines) {
+				pipeline = pipelines.get(table);
+				if(pipeline == null) {
+					final Settings settings = tableSettings.containsKey(table) ? tableSettings.get(table) : defaults;
+					pipeline = new Pipeline(table, settings);
+					pipelines.put(table, pipeline);
+					pipeline.thread.start();
+					log.info("Started the pipeline for table " + table + ", " + settings);
+				}
+			}
+		}
+		return pipeline;
+	}
+
+	/**
+	 * The queue and writer thread of one table
+	 */
+	private class Pipeline implements Runnable {
+		private final String table;
+		private final int batchSize;
+		private final BlockingQueue<Track> queue;
+		private final Thread thread;
+		private final AtomicLong coalesced = new AtomicLong();
+
+		private Pipeline(String table, Settings settings) {
+			this.table = table;
+			this.batchSize = settings.batchSize;
+			this.queue = new ArrayBlockingQueue<Track>(settings.queueSize);
+			this.thread = new Thread(this, "table-" + table);
+			this.thread.setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			final List<Track> drained = new ArrayList<Track>(batchSize);
+			while(running || !queue.isEmpty()) {
+				// Waits are short, so the thread sees a shutdown without being interrupted mid write
+				final Track first;
+				try {
+					first = queue.poll(1, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					continue;
+				}
+				if(first == null) {
+					continue;
+				}
+				
+				drained.add(first);
+				queue.drainTo(drained, batchSize - 1);
+				write(drained);
+				drained.clear();
+			}
+		}
+
+		/**
+		 * Keeps the newest track per id, and writes them. The others are handed to the writer as
+		 * discarded, and the tracks of a write that throws as failed
+		 */
+		private void write(List<Track> tracks) {
+			final Map<String, Track> newest = new LinkedHashMap<String, Track>();
+			for(Track track : tracks) {
+				final Track previous = newest.get(track.getId());
+				if(previous == null) {
+					newest.put(track.getId(), track);
+					continue;
+				}
+				
+				coalesced.incrementAndGet();
+				if(track.getTimestamp().before(previous.getTimestamp())) {
+					writer.discarded(track);
+				} else {
+					newest.put(track.getId(), track);
+					writer.discarded(previous);
+				}
+			}
+			
+			final List<Track> batch = new ArrayList<Track>(newest.values());
+			try {
+				writer.write(table, batch);
+			} catch (Exception e) {
+				log.error("Caught unhandled exception writing " + batch.size() + " tracks to " + table + ": " 
+						+ e.getMessage(), e);
+				writer.failed(table, batch);
+			}
+		}
+	}
+}
@@ -0,0 +1,87 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.nics.processor.gml.consumer;
+
+import java.sql.Timestamp;
+
+import org.opengis.feature.simple.SimpleFeature;
+
+/**
+ * A single decoded, validated and reprojected track, ready to be written to
+ * the PostGIS table named by its feature type.
+ */
+public class Track {
+
+	/** Value of the unique identifier attribute of the feature */
+	private final String id;
+
+	/** Name of the PostGIS table the track belongs to */
+	private final String tableName;
+
+	/** The feature, with its geometry already transformed to the table CRS */
+	private final SimpleFeature feature;
+
+	/** Parsed value of the feature's timestamp property */
+	private final Timestamp timestamp;
+
+	/**
+	 * The original message, kept for logging: the GML as received, or the {@link TrackReport}
+	 * handed over in process, which is only formatted if the track is rejected
+	 */
+	private final Object message;
+
+	public Track(String id, String tableName, SimpleFeature feature, Timestamp timestamp, Object message) {
+		this.id = id;
+		this.tableName = tableName;
+		this.feature = feature;
+		this.timestamp = timestamp;
+		this.message = message;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getTableName() {
+		return tableName;
+	}
+
+	public SimpleFeature getFeature() {
+		return feature;
+	}
+
+	public Timestamp getTimestamp() {
+		return timestamp;
+	}
+
+	public Object getMessage() {
+		return message;
+	}
+}
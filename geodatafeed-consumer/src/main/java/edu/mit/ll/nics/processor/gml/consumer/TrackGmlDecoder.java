@@ -0,0 +1,461 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.nics.processor.gml.consumer;
+
+import java.io.InputStream;
+import java.io.StringReader;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.log4j.Logger;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.referencing.CRS;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Point;
+
+/**
+ * Streaming decoder for the GML track documents produced by JSONPLIEntry.toXML and the
+ * gst2gml XSLTs: a wfs:FeatureCollection of gml:featureMembers, each holding one feature
+ * made of scalar elements and a single gml:Point.
+ * 
+ * <p>Unlike the GeoTools GML parser, no schemas are resolved. Scalar attributes are
+ * decoded as Strings, empty ones as null, and the point's user data is set to the CRS named by its srsName, the
+ * same way the GeoTools parser sets it. Feature types are cached by type name and attribute
+ * layout.</p>
+ * 
+ * <p>{@link #decode(String)} returns null for any document it doesn't handle, in which case
+ * the caller should fall back to the GeoTools parser.</p>
+ * 
+ * <p>{@link #decode(TrackReport)} builds the same feature from a report handed over in process,
+ * with typed attributes in place of Strings.</p>
+ */
+public class TrackGmlDecoder {
+
+	private static final Logger log = Logger.getLogger(TrackGmlDecoder.class.getSimpleName());
+
+	private static final String GML_NS = "http://www.opengis.net/gml";
+
+	/** srsName prefix the GeoTools parser decodes with longitude first */
+	private static final String EPSG_XML_PREFIX = "http://www.opengis.net/gml/srs/epsg.xml#";
+
+	private final XMLInputFactory factory;
+
+	private final GeometryFactory geometryFactory = new GeometryFactory();
+
+	/** Feature types, keyed by namespace, type name and attribute layout */
+	private final ConcurrentMap<String, SimpleFeatureType> featureTypes = 
+			new ConcurrentHashMap<String, SimpleFeatureType>();
+
+	/** Feature types of in process reports, keyed by type name */
+	private final ConcurrentMap<String, SimpleFeatureType> reportTypes = 
+			new ConcurrentHashMap<String, SimpleFeatureType>();
+
+	/** Decoded CRS per srsName */
+	private final ConcurrentMap<String, CoordinateReferenceSystem> crsBySrsName = 
+			new ConcurrentHashMap<String, CoordinateReferenceSystem>();
+
+	private final AtomicLong decoded = new AtomicLong();
+
+	private final AtomicLong fallbacks = new AtomicLong();
+
+	/** Name of the id attribute of report features */
+	private final String idAttribute;
+
+	/** Name of the timestamp attribute of report features */
+	private final String timestampAttribute;
+
+	/**
+	 * @param idAttribute name of the id attribute of report features
+	 * @param timestampAttribute name of the timestamp attribute of report features
+	 */
+	public TrackGmlDecoder(String idAttribute, String timestampAttribute) {
+		this.idAttribute = idAttribute;
+		this.timestampAttribute = timestampAttribute;
+		factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+	}
+
+	/**
+	 * Decodes a GML track document
+	 * 
+	 * @param gml the GML document
+	 * @return the decoded features, or null if the document isn't of the supported shape
+	 */
+	public SimpleFeatureCollection decode(String gml) {
+		try {
+			return decode(factory.createXMLStreamReader(new StringReader(gml)));
+		} catch (XMLStreamException e) {
+			log.debug("Falling back to GeoTools GML parser: " + e.getMessage());
+			fallbacks.incrementAndGet();
+			return null;
+		}
+	}
+
+	/**
+	 * Decodes a GML track document, taking the encoding from its XML declaration. The stream
+	 * is left open, so it can be reset and given to the fallback parser.
+	 * 
+	 * @param gml the GML document
+	 * @return the decoded features, or null if the document isn't of the supported shape
+	 */
+	public SimpleFeatureCollection decode(InputStream gml) {
+		try {
+			return decode(factory.createXMLStreamReader(gml));
+		} catch (XMLStreamException e) {
+			log.debug("Falling back to GeoTools GML parser: " + e.getMessage());
+			fallbacks.incrementAndGet();
+			return null;
+		}
+	}
+
+	private SimpleFeatureCollection decode(XMLStreamReader reader) {
+		try {
+			final SimpleFeatureCollection features = readFeatureCollection(reader);
+			if(features != null) {
+				decoded.incrementAndGet();
+				return features;
+			}
+		} catch (Exception e) {
+			log.debug("Falling back to GeoTools GML parser: " + e.getMessage());
+		} finally {
+			try {
+				reader.close();
+			} catch (XMLStreamException e) {
+				log.debug("Exception closing reader: " + e.getMessage());
+			}
+		}
+
+		fallbacks.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Builds the feature of a report handed over in process, with the attributes of the GML
+	 * JSONPLIEntry.toXML writes: id, name, description, geom, speed, course, extended, timestamp
+	 * and version, with the id and timestamp named as configured. The point's user data is the CRS named by the srsName, or null if there is none.
+	 * 
+	 * @param report the report
+	 * @return the feature, of a type named after the report's type name
+	 * @throws FactoryException if the srsName can't be decoded
+	 */
+	public SimpleFeature decode(TrackReport report) throws FactoryException {
+		final Point point = geometryFactory.createPoint(new Coordinate(report.getX(), report.getY()));
+		if(report.getSrsName() != null) {
+			point.setUserData(getCrs(report.getSrsName()));
+		}
+		
+		final Timestamp timestamp = report.getTimestamp() == null ? null : new Timestamp(report.getTimestamp().getTime());
+		return SimpleFeatureBuilder.build(getReportType(report.getTypeName()), new Object[] {
+				report.getId(), report.getName(), report.getDescription(), point, report.getSpeed(), 
+				report.getCourse(), report.getExtended(), timestamp, report.getVersion() }, null);
+	}
+
+	/**
+	 * @return number of documents decoded by this decoder
+	 */
+	public long getDecoded() {
+		return decoded.get();
+	}
+
+	/**
+	 * @return number of documents left to the GeoTools parser
+	 */
+	public long getFallbacks() {
+		return fallbacks.get();
+	}
+
+	private SimpleFeatureCollection readFeatureCollection(XMLStreamReader reader) 
+			throws XMLStreamException, FactoryException {
+		reader.nextTag();
+		if(!"FeatureCollection".equals(reader.getLocalName())) {
+			return null;
+		}
+
+		final List<SimpleFeature> features = new ArrayList<SimpleFeature>();
+		SimpleFeatureType featureType = null;
+
+		while(reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			if(!GML_NS.equals(reader.getNamespaceURI())) {
+				return null;
+			}
+
+			if("boundedBy".equals(reader.getLocalName())) {
+				skipElement(reader);
+				continue;
+			} else if(!"featureMember".equals(reader.getLocalName())) {
+				return null;
+			}
+
+			reader.nextTag();
+			final SimpleFeature feature = readFeature(reader);
+			if(feature == null || (featureType != null && featureType != feature.getFeatureType())) {
+				return null;
+			}
+			featureType = feature.getFeatureType();
+			features.add(feature);
+
+			// end of the featureMember
+			if(reader.nextTag() != XMLStreamConstants.END_ELEMENT) {
+				return null;
+			}
+		}
+
+		if(features.isEmpty()) {
+			return null;
+		}
+		return new ListFeatureCollection(featureType, features);
+	}
+
+	/**
+	 * Reads a feature, starting at its element, and ending at the end of it
+	 */
+	private SimpleFeature readFeature(XMLStreamReader reader) throws XMLStreamException, FactoryException {
+		final String namespace = reader.getNamespaceURI();
+		final String typeName = reader.getLocalName();
+		String fid = reader.getAttributeValue(null, "fid");
+		if(fid == null) {
+			fid = reader.getAttributeValue(GML_NS, "id");
+		}
+
+		final List<String> names = new ArrayList<String>();
+		final List<Object> values = new ArrayList<Object>();
+		String geometryName = null;
+
+		while(reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			final String name = reader.getLocalName();
+			if(names.contains(name)) {
+				return null;
+			}
+
+			final StringBuilder text = new StringBuilder();
+			Point point = null;
+
+			int event;
+			while((event = reader.next()) != XMLStreamConstants.END_ELEMENT) {
+				switch(event) {
+					case XMLStreamConstants.CHARACTERS:
+					case XMLStreamConstants.CDATA:
+					case XMLStreamConstants.SPACE:
+						text.append(reader.getText());
+						break;
+					case XMLStreamConstants.COMMENT:
+					case XMLStreamConstants.PROCESSING_INSTRUCTION:
+						break;
+					case XMLStreamConstants.START_ELEMENT:
+						if(point != null || geometryName != null || !GML_NS.equals(reader.getNamespaceURI()) 
+								|| !"Point".equals(reader.getLocalName())) {
+							return null;
+						}
+						point = readPoint(reader);
+						if(point == null) {
+							return null;
+						}
+						break;
+					default:
+						return null;
+				}
+			}
+
+			names.add(name);
+			if(point != null) {
+				if(text.toString().trim().length() > 0) {
+					return null;
+				}
+				geometryName = name;
+				values.add(point);
+			} else {
+				// An empty element is a missing value
+				final String value = text.toString().trim();
+				values.add(value.length() > 0 ? value : null);
+			}
+		}
+
+		if(geometryName == null) {
+			return null;
+		}
+
+		return SimpleFeatureBuilder.build(getFeatureType(namespace, typeName, names, geometryName), 
+				values.toArray(), fid);
+	}
+
+	/**
+	 * Reads a gml:Point with either gml:coordinates or gml:pos, starting at the gml:Point
+	 * element, and ending at the end of it
+	 */
+	private Point readPoint(XMLStreamReader reader) throws XMLStreamException, FactoryException {
+		final String srsName = reader.getAttributeValue(null, "srsName");
+		if(srsName == null) {
+			return null;
+		}
+
+		Coordinate coordinate = null;
+		while(reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			if(coordinate != null || !GML_NS.equals(reader.getNamespaceURI())) {
+				return null;
+			}
+
+			if("coordinates".equals(reader.getLocalName())) {
+				coordinate = parseCoordinate(reader.getElementText().trim().split(","));
+			} else if("pos".equals(reader.getLocalName())) {
+				coordinate = parseCoordinate(reader.getElementText().trim().split("\\s+"));
+			} else {
+				return null;
+			}
+
+			if(coordinate == null) {
+				return null;
+			}
+		}
+
+		if(coordinate == null) {
+			return null;
+		}
+
+		final Point point = geometryFactory.createPoint(coordinate);
+		point.setUserData(getCrs(srsName));
+		return point;
+	}
+
+	/**
+	 * Parses a single 2 or 3 dimensional tuple, returning null for anything else
+	 */
+	private Coordinate parseCoordinate(String[] ordinates) {
+		if(ordinates.length < 2 || ordinates.length > 3) {
+			return null;
+		}
+
+		final double x = Double.parseDouble(ordinates[0].trim());
+		final double y = Double.parseDouble(ordinates[1].trim());
+		if(ordinates.length == 3) {
+			return new Coordinate(x, y, Double.parseDouble(ordinates[2].trim()));
+		}
+		return new Coordinate(x, y);
+	}
+
+	/**
+	 * Decodes the srsName the same way the GeoTools GML2 parser does
+	 */
+	private CoordinateReferenceSystem getCrs(String srsName) throws FactoryException {
+		CoordinateReferenceSystem crs = crsBySrsName.get(srsName);
+		if(crs == null) {
+			if(srsName.startsWith(EPSG_XML_PREFIX)) {
+				crs = CRS.decode("EPSG:" + srsName.substring(EPSG_XML_PREFIX.length()), true);
+			} else {
+				crs = CRS.decode(srsName);
+			}
+			crsBySrsName.putIfAbsent(srsName, crs);
+		}
+		return crs;
+	}
+
+	private SimpleFeatureType getFeatureType(String namespace, String typeName, List<String> names, 
+			String geometryName) {
+		final StringBuilder key = new StringBuilder();
+		key.append(namespace).append('|').append(typeName).append('|').append(geometryName);
+		for(String name : names) {
+			key.append('|').append(name);
+		}
+
+		SimpleFeatureType featureType = featureTypes.get(key.toString());
+		if(featureType == null) {
+			final SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+			builder.setName(typeName);
+			builder.setNamespaceURI(namespace);
+			for(String name : names) {
+				builder.add(name, name.equals(geometryName) ? Point.class : String.class);
+			}
+			builder.setDefaultGeometry(geometryName);
+			featureType = builder.buildFeatureType();
+
+			final SimpleFeatureType existing = featureTypes.putIfAbsent(key.toString(), featureType);
+			if(existing != null) {
+				featureType = existing;
+			}
+		}
+		return featureType;
+	}
+
+	private SimpleFeatureType getReportType(String typeName) {
+		SimpleFeatureType featureType = reportTypes.get(typeName);
+		if(featureType == null) {
+			final SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+			builder.setName(typeName);
+			builder.add(idAttribute, String.class);
+			builder.add("name", String.class);
+			builder.add("description", String.class);
+			builder.add("geom", Point.class);
+			builder.add("speed", Double.class);
+			builder.add("course", Double.class);
+			builder.add("extended", String.class);
+			builder.add(timestampAttribute, Timestamp.class);
+			builder.add("version", String.class);
+			builder.setDefaultGeometry("geom");
+			featureType = builder.buildFeatureType();
+
+			final SimpleFeatureType existing = reportTypes.putIfAbsent(typeName, featureType);
+			if(existing != null) {
+				featureType = existing;
+			}
+		}
+		return featureType;
+	}
+
+	private void skipElement(XMLStreamReader reader) throws XMLStreamException {
+		int depth = 1;
+		while(depth > 0) {
+			final int event = reader.next();
+			if(event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+			} else if(event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+		}
+	}
+}
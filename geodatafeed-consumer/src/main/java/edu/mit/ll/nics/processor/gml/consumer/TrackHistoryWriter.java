@@ -0,0 +1,767 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.nics.processor.gml.consumer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.postgresql.PGConnection;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Writes the history of accepted tracks to the &lt;table&gt;_log table of each feed table, off
+ * the live write path.
+ * 
+ * <p>Tracks are queued in a bounded buffer, and a single writer thread bulk loads them with
+ * PostgreSQL COPY in CSV format, one COPY per log table per batch. Offering a track never
+ * blocks and does no I/O. When the buffer is full, the track is handed to the writer thread
+ * through a second bounded queue, and dropped if that is full too. The writer appends those
+ * tracks, and the rows of any failed COPY, to a CSV spill file per log table and column layout
+ * if a spill directory is set, and drops them otherwise. Each spill file starts with its column
+ * list. Spill files are loaded whenever the writer is idle, including after a restart.</p>
+ * 
+ * <p>An optional {@link Router} sends each row to a partition of its log table instead, and
+ * drops rows that have none. Spilled rows are loaded back into the log table itself.</p>
+ * 
+ * <p>The log tables must have the columns of their feed table. Each COPY only names the columns
+ * the tracks' features provide, along with the geometry and timestamp, so the other columns of
+ * the log table, such as a serial key or a NOT NULL DEFAULT now() column, get their default.
+ * Tracks of different feature types are loaded with a COPY each.</p>
+ */
+public class TrackHistoryWriter {
+
+	private static final Logger log = Logger.getLogger(TrackHistoryWriter.class.getSimpleName());
+
+	/**
+	 * Looks up the feature type of a log table
+	 */
+	public interface SchemaSource {
+		SimpleFeatureType getSchema(String tableName) throws IOException;
+	}
+
+	/**
+	 * Picks the table a track's history row is loaded into, such as a partition of its log table
+	 */
+	public interface Router {
+		/**
+		 * @param logTable the log table of the track's feed table
+		 * @param timestamp the track's timestamp, in epoch milliseconds
+		 * @return the table to load the row into, or null to drop it
+		 */
+		String route(String logTable, long timestamp);
+	}
+
+	/** Suffix of the log table of a feed table */
+	private static final String log_table_suffix = "_log";
+
+	/** Suffix of a spill file, named after its log table and column layout */
+	private static final String spill_suffix = ".csv";
+
+	/** Separates the log table from the column layout in the name of a spill file */
+	private static final char layout_separator = '@';
+
+	/** Suffix a spill file is renamed to while it's being loaded */
+	private static final String loading_suffix = ".loading";
+
+	private static final Charset utf8 = Charset.forName("UTF-8");
+
+	/** JDBC url of the database */
+	private final String url;
+
+	/** Username used to access the database */
+	private final String user;
+
+	/** Password used to access the database */
+	private final String password;
+
+	/** SRID of the tracks' geometries, written as EWKT */
+	private final int srid;
+
+	/** Timestamp column, written from the track's parsed timestamp */
+	private final String timestampColumn;
+
+	private final SchemaSource schemas;
+
+	/** Routes rows to the table they're loaded into, or null to load them into the log table */
+	private final Router router;
+
+	private final BlockingQueue<Track> buffer;
+
+	/** Tracks that didn't fit in the buffer, for the writer thread to spill */
+	private final BlockingQueue<Track> overflow;
+
+	/** Maximum number of tracks written per batch */
+	private final int batchSize;
+
+	/** Time in milliseconds to wait for tracks before loading spill files */
+	private final long flushInterval;
+
+	/** Directory of the spill files, or null to drop rows that can't be written */
+	private final File spillDir;
+
+	/** Guards the spill files */
+	private final Object spillLock = new Object();
+
+	/** Columns and column layouts, per log table */
+	private final ConcurrentMap<String, LogTable> tables = new ConcurrentHashMap<String, LogTable>();
+
+	/** Timestamps are written in local time with its offset, as the JDBC driver binds them */
+	private final ThreadLocal<SimpleDateFormat> dateFormat = new ThreadLocal<SimpleDateFormat>() {
+		@Override
+		protected SimpleDateFormat initialValue() {
+			return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSSZ");
+		}
+	};
+
+	private final Thread writer;
+
+	private volatile boolean running = false;
+
+	/** The writer thread's connection, opened on first use and after a failure */
+	private Connection connection;
+
+	/** Number of tracks written to a log table */
+	private final AtomicLong written = new AtomicLong();
+
+	/** Number of tracks spilled to disk */
+	private final AtomicLong spilled = new AtomicLong();
+
+	/** Number of tracks dropped */
+	private final AtomicLong dropped = new AtomicLong();
+
+	/** Number of failed COPYs */
+	private final AtomicLong failures = new AtomicLong();
+
+	/**
+	 * @param host database host
+	 * @param port database port
+	 * @param database database name
+	 * @param user username used to access the database
+	 * @param password password used to access the database
+	 * @param srid SRID of the tracks' geometries
+	 * @param timestampColumn name of the timestamp column
+	 * @param schemas looks up the columns of the log tables
+	 * @param router routes rows to the table they're loaded into, or null to load every row into
+	 *        its log table
+	 * @param bufferSize maximum number of tracks waiting to be written
+	 * @param batchSize maximum number of tracks written at once
+	 * @param flushInterval time in milliseconds to wait for tracks before loading spill files
+	 * @param spillDir directory to spill rows to, or null to drop them
+	 */
+	public TrackHistoryWriter(String host, int port, String database, String user, String password, 
+			int srid, String timestampColumn, SchemaSource schemas, Router router, int bufferSize, int batchSize, 
+			long flushInterval, File spillDir) {
+		this.url = "jdbc:postgresql://" + host + ":" + port + "/" + database;
+		this.user = user;
+		this.password = password;
+		this.srid = srid;
+		this.timestampColumn = timestampColumn;
+		this.schemas = schemas;
+		this.router = router;
+		this.buffer = new ArrayBlockingQueue<Track>(bufferSize);
+		this.overflow = new ArrayBlockingQueue<Track>(bufferSize);
+		this.batchSize = batchSize;
+		this.flushInterval = flushInterval;
+		this.spillDir = spillDir;
+		
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				runWriter();
+			}
+		}, "track-history-writer");
+		writer.setDaemon(true);
+	}
+
+	/**
+	 * Starts the writer thread
+	 */
+	public void start() {
+		if(spillDir != null && !spillDir.isDirectory() && !spillDir.mkdirs()) {
+			log.error("Could not create history spill directory " + spillDir + ", rows will be dropped instead");
+		}
+		running = true;
+		writer.start();
+	}
+
+	/**
+	 * Queues an accepted track to be written to its table's log table. Never blocks, and leaves
+	 * spilling to the writer thread.
+	 * 
+	 * @param track the track, as written to its feed table
+	 */
+	public void offer(Track track) {
+		if(!running) {
+			dropped.incrementAndGet();
+			return;
+		}
+		
+		if(buffer.offer(track)) {
+			return;
+		}
+		
+		if(spillDir == null || !overflow.offer(track)) {
+			dropped.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Stops accepting tracks, and writes or spills whatever is still buffered
+	 */
+	public void shutdown() {
+		running = false;
+		writer.interrupt();
+		try {
+			writer.join(30 * 1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void runWriter() {
+		final List<Track> batch = new ArrayList<Track>(batchSize);
+		while(running) {
+			try {
+				spillOverflow();
+				final Track first = buffer.poll(flushInterval, TimeUnit.MILLISECONDS);
+				if(first == null) {
+					loadSpillFiles();
+					continue;
+				}
+				batch.add(first);
+				buffer.drainTo(batch, batchSize - 1);
+				write(batch);
+			} catch (InterruptedException e) {
+				// shutdown() interrupts, running is already false
+			} catch (Exception e) {
+				log.error("Caught unhandled exception writing track history: " + e.getMessage(), e);
+			}
+			batch.clear();
+		}
+		
+		// Flush on shutdown
+		while(buffer.drainTo(batch, batchSize) > 0) {
+			write(batch);
+			batch.clear();
+		}
+		spillOverflow();
+		closeConnection();
+		log.info(getStatistics());
+	}
+
+	/**
+	 * Writes a batch with one COPY per target table, spilling the rows of any that fail
+	 */
+	private void write(List<Track> batch) {
+		final Map<String, List<Track>> byTarget = new LinkedHashMap<String, List<Track>>();
+		for(Track track : batch) {
+			final String logTable = track.getTableName() + log_table_suffix;
+			final String target = route(logTable, track);
+			if(target == null) {
+				continue;
+			}
+			
+			final String key = logTable + '\n' + target;
+			List<Track> tracks = byTarget.get(key);
+			if(tracks == null) {
+				tracks = new ArrayList<Track>();
+				byTarget.put(key, tracks);
+			}
+			tracks.add(track);
+		}
+		
+		for(Map.Entry<String, List<Track>> entry : byTarget.entrySet()) {
+			final String logTable = entry.getKey().substring(0, entry.getKey().indexOf('\n'));
+			final String target = entry.getKey().substring(logTable.length() + 1);
+			final List<Track> tracks = entry.getValue();
+			final LogTable table;
+			try {
+				table = getTable(logTable);
+			} catch (IOException e) {
+				log.error("No log table " + logTable + ", dropping " + tracks.size() + " history rows: " 
+						+ e.getMessage());
+				dropped.addAndGet(tracks.size());
+				continue;
+			}
+			
+			for(Map.Entry<Layout, List<Track>> layout : table.byLayout(tracks).entrySet()) {
+				final StringBuilder csv = new StringBuilder();
+				for(Track track : layout.getValue()) {
+					layout.getKey().appendRow(csv, track);
+				}
+				
+				try {
+					copy(layout.getKey().copySql(target), new StringReader(csv.toString()));
+					written.addAndGet(layout.getValue().size());
+				} catch (Exception e) {
+					log.error("COPY into " + target + " failed: " + e.getMessage());
+					failures.incrementAndGet();
+					closeConnection();
+					spillRows(table.name, layout.getKey(), csv, layout.getValue().size());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Routes a track's row, counting it as dropped if there's no table for it
+	 * 
+	 * @return the table to load the row into, or null
+	 */
+	private String route(String logTable, Track track) {
+		if(router == null) {
+			return logTable;
+		}
+		
+		final String target = router.route(logTable, track.getTimestamp().getTime());
+		if(target == null) {
+			log.debug("No table for history row of " + track.getId() + " at " + track.getTimestamp() + ", dropping it");
+			dropped.incrementAndGet();
+		}
+		return target;
+	}
+
+	private long copy(String copySql, Reader rows) throws SQLException, IOException {
+		if(connection == null) {
+			connection = DriverManager.getConnection(url, user, password);
+			log.info("Opened history connection to: " + url);
+		}
+		return ((PGConnection) connection).getCopyAPI().copyIn(copySql, rows);
+	}
+
+	private void closeConnection() {
+		if(connection != null) {
+			try {
+				connection.close();
+			} catch (SQLException e) {
+				log.debug("Exception closing history connection: " + e.getMessage());
+			}
+			connection = null;
+		}
+	}
+
+	/**
+	 * Gets the cached layout of a log table, looking it up if needed
+	 */
+	private LogTable getTable(String logTable) throws IOException {
+		LogTable table = tables.get(logTable);
+		if(table == null) {
+			table = new LogTable(logTable, schemas.getSchema(logTable));
+			final LogTable existing = tables.putIfAbsent(logTable, table);
+			if(existing != null) {
+				table = existing;
+			}
+		}
+		return table;
+	}
+
+	/**
+	 * Spills the tracks that didn't fit in the buffer, one spill file append per log table
+	 */
+	private void spillOverflow() {
+		final List<Track> tracks = new ArrayList<Track>();
+		if(overflow.drainTo(tracks) == 0) {
+			return;
+		}
+		
+		final Map<String, List<Track>> byLogTable = new LinkedHashMap<String, List<Track>>();
+		for(Track track : tracks) {
+			final String logTable = track.getTableName() + log_table_suffix;
+			List<Track> logTracks = byLogTable.get(logTable);
+			if(logTracks == null) {
+				logTracks = new ArrayList<Track>();
+				byLogTable.put(logTable, logTracks);
+			}
+			logTracks.add(track);
+		}
+		
+		for(Map.Entry<String, List<Track>> entry : byLogTable.entrySet()) {
+			spill(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Formats tracks that couldn't be buffered, and spills them. Only called on the writer thread.
+	 */
+	private void spill(String logTable, List<Track> tracks) {
+		if(spillDir == null) {
+			dropped.addAndGet(tracks.size());
+			return;
+		}
+		
+		try {
+			final LogTable table = getTable(logTable);
+			
+			// Rows are loaded back into the log table, so only spill those that have a table
+			final List<Track> routed = new ArrayList<Track>(tracks.size());
+			for(Track track : tracks) {
+				if(route(logTable, track) != null) {
+					routed.add(track);
+				}
+			}
+			
+			for(Map.Entry<Layout, List<Track>> layout : table.byLayout(routed).entrySet()) {
+				final StringBuilder csv = new StringBuilder();
+				for(Track track : layout.getValue()) {
+					layout.getKey().appendRow(csv, track);
+				}
+				spillRows(logTable, layout.getKey(), csv, layout.getValue().size());
+			}
+		} catch (IOException e) {
+			log.error("No log table " + logTable + ", dropping " + tracks.size() + " history rows: " + e.getMessage());
+			dropped.addAndGet(tracks.size());
+		}
+	}
+
+	/**
+	 * Appends CSV rows to the spill file of the log table and column layout, starting a new file
+	 * with the column list, or drops them if spilling is disabled
+	 */
+	private void spillRows(String logTable, Layout layout, CharSequence csv, int count) {
+		if(spillDir == null) {
+			dropped.addAndGet(count);
+			return;
+		}
+		
+		synchronized(spillLock) {
+			Writer out = null;
+			try {
+				final File file = new File(spillDir, logTable + layout_separator + layout.id + spill_suffix);
+				final boolean started = file.length() > 0;
+				out = new OutputStreamWriter(new FileOutputStream(file, true), utf8);
+				if(!started) {
+					out.append(layout.columnList).append('\n');
+				}
+				out.append(csv);
+				spilled.addAndGet(count);
+			} catch (IOException e) {
+				log.error("Could not spill " + count + " history rows for " + logTable + ", dropping them: " + e.getMessage());
+				dropped.addAndGet(count);
+			} finally {
+				if(out != null) {
+					try {
+						out.close();
+					} catch (IOException e) {
+						log.debug("Exception closing spill file: " + e.getMessage());
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Loads the spill files into their log tables, naming the columns listed on a file's first
+	 * line. A file is renamed while it's loaded, so rows spilled in the meantime go to a new one,
+	 * and deleted once loaded.
+	 */
+	private void loadSpillFiles() {
+		if(spillDir == null) {
+			return;
+		}
+		
+		final File[] files = spillDir.listFiles();
+		if(files == null) {
+			return;
+		}
+		
+		for(File file : files) {
+			final String name = file.getName();
+			final File loading;
+			if(name.endsWith(spill_suffix + loading_suffix)) {
+				// Left over from a failed load
+				loading = file;
+			} else if(name.endsWith(spill_suffix)) {
+				loading = new File(spillDir, name + loading_suffix);
+				synchronized(spillLock) {
+					if(loading.exists() || !file.renameTo(loading)) {
+						continue;
+					}
+				}
+			} else {
+				continue;
+			}
+			
+			final String loadingName = loading.getName();
+			final int separator = loadingName.lastIndexOf(layout_separator);
+			if(separator < 0) {
+				log.error("Spill file " + loading + " has no column layout in its name, leaving it");
+				continue;
+			}
+			final String logTable = loadingName.substring(0, separator);
+			
+			BufferedReader rows = null;
+			try {
+				rows = new BufferedReader(new InputStreamReader(new FileInputStream(loading), utf8));
+				final String columnList = rows.readLine();
+				final long count = columnList == null ? 0 
+						: copy("COPY " + quote(logTable) + " (" + columnList + ") FROM STDIN WITH CSV", rows);
+				written.addAndGet(count);
+				rows.close();
+				rows = null;
+				if(!loading.delete()) {
+					log.error("Could not delete loaded spill file " + loading);
+				}
+				log.info("Loaded " + count + " spilled history rows into " + logTable);
+			} catch (Exception e) {
+				log.error("Loading spill file " + loading + " failed, retrying later: " + e.getMessage());
+				failures.incrementAndGet();
+				closeConnection();
+				// The database is still unavailable, try the other files next time too
+				return;
+			} finally {
+				if(rows != null) {
+					try {
+						rows.close();
+					} catch (IOException e) {
+						log.debug("Exception closing spill file: " + e.getMessage());
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return number of tracks written to a log table
+	 */
+	public long getWritten() {
+		return written.get();
+	}
+
+	/**
+	 * @return number of tracks spilled to disk
+	 */
+	public long getSpilled() {
+		return spilled.get();
+	}
+
+	/**
+	 * @return number of tracks dropped
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return number of failed COPYs
+	 */
+	public long getFailures() {
+		return failures.get();
+	}
+
+	/**
+	 * @return number of tracks waiting to be written
+	 */
+	public int getQueueDepth() {
+		return buffer.size() + overflow.size();
+	}
+
+	/**
+	 * @return the history statistics, for logging
+	 */
+	public String getStatistics() {
+		return "history rows written: " + getWritten() + "   spilled: " + getSpilled() + "   dropped: " 
+				+ getDropped() + "   failed copies: " + getFailures() + "   queued: " + getQueueDepth();
+	}
+
+	private static String quote(String identifier) {
+		return "\"" + identifier.replace("\"", "\"\"") + "\"";
+	}
+
+	/**
+	 * The columns of one log table, and the layouts of them the tracks' feature types provide
+	 */
+	private class LogTable {
+
+		private final String name;
+
+		private final List<AttributeDescriptor> columns;
+
+		/** feature type -> the log table columns its features provide */
+		private final ConcurrentMap<SimpleFeatureType, Layout> layouts = new ConcurrentHashMap<SimpleFeatureType, Layout>();
+
+		private LogTable(String name, SimpleFeatureType schema) {
+			this.name = name;
+			this.columns = new ArrayList<AttributeDescriptor>(schema.getAttributeDescriptors());
+		}
+
+		/**
+		 * Groups tracks by the column layout of their feature type
+		 */
+		private Map<Layout, List<Track>> byLayout(List<Track> tracks) {
+			final Map<Layout, List<Track>> grouped = new LinkedHashMap<Layout, List<Track>>();
+			for(Track track : tracks) {
+				final Layout layout = layout(track.getFeature().getFeatureType());
+				List<Track> layoutTracks = grouped.get(layout);
+				if(layoutTracks == null) {
+					layoutTracks = new ArrayList<Track>();
+					grouped.put(layout, layoutTracks);
+				}
+				layoutTracks.add(track);
+			}
+			return grouped;
+		}
+
+		/**
+		 * @return the columns the features of the type provide: the geometry, the timestamp, and
+		 *         the columns the type has an attribute for
+		 */
+		private Layout layout(SimpleFeatureType featureType) {
+			Layout layout = layouts.get(featureType);
+			if(layout == null) {
+				final List<AttributeDescriptor> provided = new ArrayList<AttributeDescriptor>();
+				for(AttributeDescriptor descriptor : columns) {
+					final String column = descriptor.getLocalName();
+					if(descriptor instanceof GeometryDescriptor || column.equals(timestampColumn) 
+							|| featureType.getDescriptor(column) != null) {
+						provided.add(descriptor);
+					}
+				}
+				layout = new Layout(provided);
+				final Layout existing = layouts.putIfAbsent(featureType, layout);
+				if(existing != null) {
+					layout = existing;
+				}
+			}
+			return layout;
+		}
+	}
+
+	/**
+	 * The columns of a log table a COPY loads, along with the attribute each is written from
+	 */
+	private class Layout {
+
+		/** Quoted, comma separated column names */
+		private final String columnList;
+
+		/** Names the spill file of this layout */
+		private final String id;
+
+		private final List<AttributeDescriptor> columns;
+
+		private Layout(List<AttributeDescriptor> columns) {
+			this.columns = columns;
+			
+			final StringBuilder names = new StringBuilder();
+			for(AttributeDescriptor descriptor : columns) {
+				if(names.length() > 0) {
+					names.append(", ");
+				}
+				names.append(quote(descriptor.getLocalName()));
+			}
+			columnList = names.toString();
+			id = Integer.toHexString(columnList.hashCode());
+		}
+
+		/**
+		 * @param target the log table, or one of its partitions
+		 * @return the COPY statement loading CSV rows of this layout's columns into target
+		 */
+		private String copySql(String target) {
+			return "COPY " + quote(target) + " (" + columnList + ") FROM STDIN WITH CSV";
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			return other instanceof Layout && columnList.equals(((Layout) other).columnList);
+		}
+
+		@Override
+		public int hashCode() {
+			return columnList.hashCode();
+		}
+
+		/**
+		 * Appends the track as a CSV row. Nulls are left empty and unquoted, everything else
+		 * is quoted.
+		 */
+		private void appendRow(StringBuilder csv, Track track) {
+			for(int i = 0; i < columns.size(); i++) {
+				final AttributeDescriptor descriptor = columns.get(i);
+				final String column = descriptor.getLocalName();
+				if(i > 0) {
+					csv.append(',');
+				}
+				
+				final Object value;
+				if(descriptor instanceof GeometryDescriptor) {
+					value = track.getFeature().getDefaultGeometry();
+				} else if(column.equals(timestampColumn)) {
+					value = track.getTimestamp();
+				} else {
+					value = track.getFeature().getAttribute(column);
+				}
+				
+				if(value == null) {
+					continue;
+				}
+				
+				final String text;
+				if(value instanceof Geometry) {
+					text = "SRID=" + srid + ";" + ((Geometry) value).toText();
+				} else if(value instanceof java.util.Date) {
+					text = dateFormat.get().format((java.util.Date) value);
+				} else {
+					text = value.toString();
+				}
+				csv.append('"').append(text.replace("\"", "\"\"")).append('"');
+			}
+			csv.append('\n');
+		}
+	}
+}
@@ -0,0 +1,212 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.nics.processor.gml.consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.geotools.GML;
+import org.geotools.GML.Version;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.referencing.CRS;
+import org.geotools.referencing.CRS.AxisOrder;
+import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import com.vividsolutions.jts.geom.Point;
+
+/**
+ * Checks the {@link TrackGmlDecoder} decodes track GML into the same features as the GeoTools
+ * GML2 parser it stands in front of: the same attribute values, with empty elements as null,
+ * the same point, and the same CRS and axis order for each form of srsName.
+ */
+public class TrackGmlDecoderTest {
+
+	private static final String ONE_MEMBER = "/ex.xml";
+
+	/** Three tracks of one type, with both forms of srsName and some empty elements */
+	private static final String THREE_MEMBERS = "<?xml version='1.0' encoding='UTF-8'?>"
+			+ "<wfs:FeatureCollection xmlns:wfs=\"http://www.opengis.net/wfs\" "
+			+ "xmlns:gml=\"http://www.opengis.net/gml\" xmlns:NICS=\"http://mapserver.nics.ll.mit.edu/NICS\">"
+			+ member("avl.1", "E4362", "E4362", "EPSG:4326", "36.9600316666666667,-119.447061", "0.0345233835", "2012-04-18T18:57:47Z")
+			+ member("avl.2", "ME5312", "", "http://www.opengis.net/gml/srs/epsg.xml#4326", "-121.6526345,36.6994311666666667", "", "2012-05-08T16:41:04-07:00")
+			+ member("avl.3", "info:us.ca.calfire/fku:E17", "", "EPSG:3857", "-13296871.6,4426318.2", "12.5", "2016-03-01T12:34:56.789")
+			+ "</wfs:FeatureCollection>";
+
+	private final TrackGmlDecoder decoder = new TrackGmlDecoder("id", "timestamp");
+
+	@Test
+	public void singleMember() throws Exception {
+		final List<SimpleFeature> features = assertSameAsGeoTools(readResource(ONE_MEMBER));
+		assertEquals(1, features.size());
+		
+		final SimpleFeature feature = features.get(0);
+		assertEquals("avlfeed3", feature.getFeatureType().getTypeName());
+		assertEquals("info:us.ca.calfire/fku:E4362", feature.getAttribute("id"));
+		assertEquals("2012-04-18T18:57:47Z", feature.getAttribute("timestamp"));
+		assertEquals("0.0345233835", feature.getAttribute("speed"));
+		
+		// EPSG:4326 is decoded latitude first, as the coordinates are written
+		final Point point = (Point) feature.getDefaultGeometry();
+		assertEquals(36.9600316666666667, point.getX(), 0);
+		assertEquals(-119.447061, point.getY(), 0);
+		assertEquals(AxisOrder.NORTH_EAST, CRS.getAxisOrder((CoordinateReferenceSystem) point.getUserData()));
+	}
+
+	@Test
+	public void multipleMembers() throws Exception {
+		final List<SimpleFeature> features = assertSameAsGeoTools(THREE_MEMBERS.getBytes("UTF-8"));
+		assertEquals(3, features.size());
+		
+		assertEquals("avl.1", features.get(0).getID());
+		assertEquals("avl.2", features.get(1).getID());
+		assertEquals("avl.3", features.get(2).getID());
+		assertEquals("ME5312", features.get(1).getAttribute("id"));
+		assertEquals("2012-05-08T16:41:04-07:00", features.get(1).getAttribute("timestamp"));
+		assertEquals("2016-03-01T12:34:56.789", features.get(2).getAttribute("timestamp"));
+		
+		// Empty elements are missing values
+		assertNull(features.get(1).getAttribute("name"));
+		assertNull(features.get(1).getAttribute("speed"));
+		assertNull(features.get(2).getAttribute("name"));
+		
+		// The epsg.xml form of srsName is decoded longitude first
+		assertEquals(AxisOrder.NORTH_EAST, axisOrder(features.get(0)));
+		assertEquals(AxisOrder.EAST_NORTH, axisOrder(features.get(1)));
+		assertEquals(AxisOrder.EAST_NORTH, axisOrder(features.get(2)));
+		assertEquals(-121.6526345, ((Point) features.get(1).getDefaultGeometry()).getX(), 0);
+	}
+
+	@Test
+	public void unsupportedDocumentFallsBack() throws Exception {
+		final long fallbacks = decoder.getFallbacks();
+		assertNull(decoder.decode("<wfs:FeatureCollection xmlns:wfs=\"http://www.opengis.net/wfs\"/>"));
+		assertNull(decoder.decode("<track><id>E4362</id></track>"));
+		assertNull(decoder.decode("not xml"));
+		assertEquals(fallbacks + 3, decoder.getFallbacks());
+	}
+
+	/**
+	 * Decodes the document with both parsers, and checks every feature the decoder returns
+	 * matches the GeoTools parser's in attribute values, point and CRS
+	 * 
+	 * @return the decoder's features
+	 */
+	private List<SimpleFeature> assertSameAsGeoTools(byte[] gml) throws Exception {
+		final SimpleFeatureCollection decoded = decoder.decode(new ByteArrayInputStream(gml));
+		assertNotNull("Left to the GeoTools parser", decoded);
+		final List<SimpleFeature> actual = toList(decoded);
+		final List<SimpleFeature> expected = toList(new GML(Version.GML2).decodeFeatureCollection(
+				new ByteArrayInputStream(gml)));
+		assertEquals(expected.size(), actual.size());
+		
+		for(int i = 0; i < expected.size(); i++) {
+			final SimpleFeature e = expected.get(i);
+			final SimpleFeature a = actual.get(i);
+			assertEquals(e.getFeatureType().getTypeName(), a.getFeatureType().getTypeName());
+			for(AttributeDescriptor descriptor : a.getFeatureType().getAttributeDescriptors()) {
+				final String name = descriptor.getLocalName();
+				if(!(a.getAttribute(name) instanceof Point)) {
+					assertEquals(a.getID() + " " + name, e.getAttribute(name), a.getAttribute(name));
+				}
+			}
+			
+			final Point ePoint = (Point) e.getDefaultGeometry();
+			final Point aPoint = (Point) a.getDefaultGeometry();
+			assertTrue(a.getID() + " " + aPoint, ePoint.equalsExact(aPoint));
+			assertTrue(a.getID() + " CRS", CRS.equalsIgnoreMetadata(ePoint.getUserData(), aPoint.getUserData()));
+			assertEquals(axisOrder(e), axisOrder(a));
+		}
+		return actual;
+	}
+
+	private static AxisOrder axisOrder(SimpleFeature feature) {
+		return CRS.getAxisOrder((CoordinateReferenceSystem) ((Point) feature.getDefaultGeometry()).getUserData());
+	}
+
+	private static List<SimpleFeature> toList(SimpleFeatureCollection collection) {
+		final List<SimpleFeature> features = new ArrayList<SimpleFeature>();
+		final SimpleFeatureIterator it = collection.features();
+		try {
+			while(it.hasNext()) {
+				features.add(it.next());
+			}
+		} finally {
+			it.close();
+		}
+		return features;
+	}
+
+	private static String member(String fid, String id, String name, String srsName, String coordinates, 
+			String speed, String timestamp) {
+		return "<gml:featureMember><NICS:avlfeed3 fid=\"" + fid + "\">"
+				+ "<NICS:id>" + id + "</NICS:id>"
+				+ "<NICS:name>" + name + "</NICS:name>"
+				+ "<NICS:geom><gml:Point srsName=\"" + srsName + "\"><gml:coordinates>" + coordinates 
+				+ "</gml:coordinates></gml:Point></NICS:geom>"
+				+ "<NICS:speed>" + speed + "</NICS:speed>"
+				+ "<NICS:course>0.0</NICS:course>"
+				+ "<NICS:timestamp>" + timestamp + "</NICS:timestamp>"
+				+ "</NICS:avlfeed3></gml:featureMember>";
+	}
+
+	/**
+	 * Reads a test resource, without its xsi:schemaLocation, which the GeoTools parser would
+	 * otherwise try to fetch from the server that wrote it. The decoder ignores it either way
+	 */
+	private static byte[] readResource(String name) throws IOException {
+		final InputStream in = TrackGmlDecoderTest.class.getResourceAsStream(name);
+		assertNotNull(name, in);
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			final byte[] buffer = new byte[4096];
+			int read;
+			while((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+		} finally {
+			in.close();
+		}
+		return new String(out.toByteArray(), "UTF-8").replaceFirst("xsi:schemaLocation=\"[^\"]*\"", "")
+				.getBytes("UTF-8");
+	}
+}
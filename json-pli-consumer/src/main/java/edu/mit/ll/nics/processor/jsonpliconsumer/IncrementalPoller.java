@@ -0,0 +1,337 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.nics.processor.jsonpliconsumer;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.Processor;
+import org.apache.log4j.Logger;
+
+import edu.mit.ll.nics.processor.gml.consumer.IsoTimestampParser;
+
+/**
+ * Remembers what earlier polls of each PLI source returned, so a poll that brings nothing new is
+ * cut short, and only the units that reported since are forwarded:
+ * <ul>
+ * <li>As the processor before the source endpoint in the route, it starts the poll, and sends the
+ * ETag and Last-Modified of the source's last response back as If-None-Match and
+ * If-Modified-Since</li>
+ * <li>{@link #skipPoll(Exchange)} takes those of each response, and skips a 304 Not Modified</li>
+ * <li>{@link #advanced(Exchange, String, String)} passes only reports newer than the last one
+ * forwarded for their unit</li>
+ * </ul>
+ * What a poll takes is only kept once {@link #pollCompleted(Exchange, boolean)} reports it was
+ * processed, so a poll that fails is fetched and forwarded in full again. The state is kept per
+ * source, named by the route's {@link PollScheduler}, or by the route itself, and holds at most
+ * maxUnits units per source, dropping the least recently reported.
+ * 
+ * <p>Does nothing unless enabled, so it can stay in the route either way.</p>
+ */
+public class IncrementalPoller implements Processor {
+
+	/** Exchange property holding the poll in progress */
+	public static final String EXCHANGE_PROPERTY = "IncrementalPoll";
+	
+	private static final Logger log = Logger.getLogger(IncrementalPoller.class);
+	
+	private static final int NOT_MODIFIED = 304;
+	
+	private boolean enabled;
+	
+	/** Maximum number of units remembered per source */
+	private int maxUnits = 10000;
+	
+	/** source name -> what its completed polls returned */
+	private final Map<String, Source> sources = new HashMap<String, Source>();
+	
+	private long unchangedPolls;
+	private long forwarded;
+	private long skipped;
+	private long discardedPolls;
+	
+	/**
+	 * What the completed polls of a source returned
+	 */
+	private class Source {
+		
+		/** Validators of the last response that had them, null until then */
+		private String etag;
+		private String lastModified;
+		
+		/** unit id -> timestamp of the last forwarded report, in ms since the epoch */
+		private final Map<String, Long> units = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+				return size() > maxUnits;
+			}
+		};
+	}
+	
+	/**
+	 * What a poll in progress has taken so far
+	 */
+	private static class Poll {
+		
+		private final Source source;
+		
+		private String etag;
+		private String lastModified;
+		
+		/** unit id -> timestamp of the report forwarded in this poll */
+		private final Map<String, Long> units = new HashMap<String, Long>();
+		
+		private boolean failed;
+		
+		private Poll(Source source) {
+			this.source = source;
+		}
+	}
+	
+	/**
+	 * Starts the poll, adding the conditional request headers when an earlier response of the
+	 * source gave validators
+	 */
+	@Override
+	public void process(Exchange exchange) {
+		if(!enabled) {
+			return;
+		}
+		
+		final Poll poll = new Poll(getSource(exchange));
+		exchange.setProperty(EXCHANGE_PROPERTY, poll);
+		
+		final Message in = exchange.getIn();
+		synchronized(this) {
+			if(poll.source.etag != null) {
+				in.setHeader("If-None-Match", poll.source.etag);
+			}
+			if(poll.source.lastModified != null) {
+				in.setHeader("If-Modified-Since", poll.source.lastModified);
+			}
+		}
+	}
+	
+	/**
+	 * Takes the validators of a response, and tells whether there's nothing in it to process:
+	 * a 304 Not Modified, or any other status that isn't a success. The source endpoint only hands
+	 * those over with throwExceptionOnFailure=false, otherwise the poll fails before this.
+	 * 
+	 * @param exchange the exchange holding the response
+	 * @return true if the rest of the poll should be skipped
+	 */
+	public boolean skipPoll(Exchange exchange) {
+		if(!enabled) {
+			return false;
+		}
+		
+		final Message in = exchange.getIn();
+		final Integer code = in.getHeader(Exchange.HTTP_RESPONSE_CODE, Integer.class);
+		if(code != null && code == NOT_MODIFIED) {
+			synchronized(this) {
+				unchangedPolls++;
+			}
+			log.debug("PLI source not modified since the last poll, skipping it");
+			return true;
+		}
+		if(code != null && (code < 200 || code >= 300)) {
+			log.warn("PLI source answered with HTTP " + code + ", skipping poll");
+			return true;
+		}
+		
+		final Poll poll = getPoll(exchange);
+		poll.etag = in.getHeader("ETag", String.class);
+		poll.lastModified = in.getHeader("Last-Modified", String.class);
+		return false;
+	}
+	
+	/**
+	 * Tells whether a unit's report is newer than the last one forwarded for it, and if so takes
+	 * its timestamp for the poll. Reports without an id or a parseable timestamp are always
+	 * forwarded.
+	 * 
+	 * @param exchange the exchange of the poll
+	 * @param id the unit id
+	 * @param timestamp the report's ISO 8601 timestamp
+	 * @return true if the report should be forwarded
+	 */
+	public boolean advanced(Exchange exchange, String id, String timestamp) {
+		if(!enabled || id == null || timestamp == null) {
+			return true;
+		}
+		
+		final long millis;
+		try {
+			millis = IsoTimestampParser.parseMillis(timestamp);
+		} catch(IllegalArgumentException e) {
+			return true;
+		}
+		
+		final Poll poll = getPoll(exchange);
+		synchronized(this) {
+			Long last = poll.units.get(id);
+			if(last == null) {
+				last = poll.source.units.get(id);
+			}
+			if(last != null && millis <= last) {
+				skipped++;
+				return false;
+			}
+			
+			poll.units.put(id, millis);
+			forwarded++;
+			return true;
+		}
+	}
+	
+	/**
+	 * Marks the poll as failed, e.g. when the response was cut short, so nothing it took is kept
+	 * 
+	 * @param exchange the exchange of the poll
+	 */
+	public void pollFailed(Exchange exchange) {
+		if(enabled) {
+			getPoll(exchange).failed = true;
+		}
+	}
+	
+	/**
+	 * Ends the poll, keeping the validators and unit timestamps it took if it succeeded
+	 * 
+	 * @param exchange the exchange of the poll
+	 * @param succeeded false if processing the response failed
+	 */
+	public void pollCompleted(Exchange exchange, boolean succeeded) {
+		if(!enabled) {
+			return;
+		}
+		
+		final Poll poll = exchange.getProperty(EXCHANGE_PROPERTY, Poll.class);
+		if(poll == null) {
+			return;
+		}
+		exchange.removeProperty(EXCHANGE_PROPERTY);
+		
+		synchronized(this) {
+			if(!succeeded || poll.failed) {
+				discardedPolls++;
+				return;
+			}
+			
+			if(poll.etag != null) {
+				poll.source.etag = poll.etag;
+			}
+			if(poll.lastModified != null) {
+				poll.source.lastModified = poll.lastModified;
+			}
+			poll.source.units.putAll(poll.units);
+		}
+	}
+	
+	/**
+	 * Gets the poll in progress, starting one if the route didn't
+	 */
+	private Poll getPoll(Exchange exchange) {
+		Poll poll = exchange.getProperty(EXCHANGE_PROPERTY, Poll.class);
+		if(poll == null) {
+			poll = new Poll(getSource(exchange));
+			exchange.setProperty(EXCHANGE_PROPERTY, poll);
+		}
+		return poll;
+	}
+	
+	/**
+	 * Gets the state of the source the exchange polls, named after its scheduler or its route
+	 */
+	private synchronized Source getSource(Exchange exchange) {
+		final PollScheduler scheduler = PollScheduler.forExchange(exchange);
+		String name = scheduler != null ? scheduler.getSource() : exchange.getFromRouteId();
+		if(name == null) {
+			name = "";
+		}
+		
+		Source source = sources.get(name);
+		if(source == null) {
+			source = new Source();
+			sources.put(name, source);
+		}
+		return source;
+	}
+	
+	/**
+	 * @return the counters, for logging
+	 */
+	public synchronized String getStatistics() {
+		int units = 0;
+		for(Source source : sources.values()) {
+			units += source.units.size();
+		}
+		return "incremental polling unchanged polls: " + unchangedPolls + "   forwarded reports: " + forwarded 
+				+ "   skipped reports: " + skipped + "   discarded polls: " + discardedPolls 
+				+ "   sources: " + sources.size() + "   units: " + units;
+	}
+	
+	public boolean isEnabled() {
+		return enabled;
+	}
+	
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+	
+	public int getMaxUnits() {
+		return maxUnits;
+	}
+	
+	public void setMaxUnits(int maxUnits) {
+		this.maxUnits = maxUnits;
+	}
+	
+	public synchronized long getUnchangedPolls() {
+		return unchangedPolls;
+	}
+	
+	public synchronized long getForwarded() {
+		return forwarded;
+	}
+	
+	public synchronized long getSkipped() {
+		return skipped;
+	}
+	
+	public synchronized long getDiscardedPolls() {
+		return discardedPolls;
+	}
+}
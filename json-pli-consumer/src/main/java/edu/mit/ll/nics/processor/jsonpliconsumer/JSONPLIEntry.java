@@ -36,7 +36,12 @@ import org.apache.log4j.Logger;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import edu.mit.ll.nics.processor.gml.consumer.IsoTimestampParser;
+import edu.mit.ll.nics.processor.gml.consumer.TrackReport;
+
+import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
 
 /**
  * a single json feed entry to GML.
@@ -103,20 +108,46 @@ public class JSONPLIEntry {
 	 * @return
 	 */
 	public String toXML(String includeFields, boolean format) {
-		final String TAB = format ? "\t" : "";
 		final String BR = format ? "\n" : "";
 
-        final String lt = TAB + "<";
-        final String ltc = "</";
-        final String ltn = TAB + "<NICS:";
-        final String ltnc = "</NICS:";
-		final String gt = ">";
-		final String gtc = ">" + BR;
-        final String b = "&lt;b&gt;";
-        final String bc = "&lt;/b&gt;";
-        final String br = "&lt;br/&gt;";
+		StringBuilder stringBuilder = new StringBuilder();
+		appendHeader(stringBuilder, format);
+		appendFeatureMember(stringBuilder, format);
+        stringBuilder.append("</wfs:FeatureCollection>" + BR);
+
+        LOG.info("\nGML: \n" + stringBuilder.toString() + "\n");
+
+		return stringBuilder.toString();
+	}
+	
+	/**
+	 * Converts entries to one wfs:FeatureCollection, with a gml:featureMember per entry, so they
+	 * can be sent and decoded as one message. The schema locations are taken from the first entry
+	 * 
+	 * @param entries the entries, at least one
+	 * @param format Set to true to enable formatting
+	 * 
+	 * @return
+	 */
+	public static String toCollectionXML(List<JSONPLIEntry> entries, boolean format) {
+		final String BR = format ? "\n" : "";
 
 		StringBuilder stringBuilder = new StringBuilder();
+		entries.get(0).appendHeader(stringBuilder, format);
+		for(JSONPLIEntry entry : entries) {
+			entry.appendFeatureMember(stringBuilder, format);
+		}
+        stringBuilder.append("</wfs:FeatureCollection>" + BR);
+
+		return stringBuilder.toString();
+	}
+	
+	/**
+	 * Appends the XML declaration and the opening wfs:FeatureCollection tag
+	 */
+	private void appendHeader(StringBuilder stringBuilder, boolean format) {
+		final String BR = format ? "\n" : "";
+
         stringBuilder.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + BR);
         stringBuilder.append("<wfs:FeatureCollection xsi:schemaLocation=\"");
         stringBuilder.append(nicsSchemaLocationURI.replaceAll("&", "&amp;") + " ");
@@ -125,6 +156,24 @@ public class JSONPLIEntry {
         stringBuilder.append("xmlns:gml=\"http://www.opengis.net/gml\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" ");
         stringBuilder.append("xmlns:NICS=\"" + nicsSchemaLocationURI + "\" xmlns:wfs=\"http://www.opengis.net/wfs\">");
         LOG.debug("amp== "+wfsServiceURI);
+	}
+	
+	/**
+	 * Appends this entry as a gml:featureMember
+	 */
+	private void appendFeatureMember(StringBuilder stringBuilder, boolean format) {
+		final String TAB = format ? "\t" : "";
+		final String BR = format ? "\n" : "";
+
+        final String lt = TAB + "<";
+        final String ltc = "</";
+        final String ltn = TAB + "<NICS:";
+        final String ltnc = "</NICS:";
+		final String gt = ">";
+		final String gtc = ">" + BR;
+        final String b = "&lt;b&gt;";
+        final String bc = "&lt;/b&gt;";
+        final String br = "&lt;br/&gt;";
 
         stringBuilder.append("<gml:featureMember>");
         stringBuilder.append(ltn + typeName);
@@ -187,11 +236,76 @@ public class JSONPLIEntry {
         stringBuilder.append(ltnc + "version" + gtc);
         stringBuilder.append(ltnc + typeName + gtc);
         stringBuilder.append(ltc + "gml:featureMember" + gtc);
-        stringBuilder.append(ltc + "wfs:FeatureCollection" + gtc);
-
-        LOG.info("\nGML: \n" + stringBuilder.toString() + "\n");
+	}
 
-		return stringBuilder.toString();
+	/**
+	 * Converts to a report for a geodatafeed-consumer running in the same JVM. Holds what the
+	 * consumer would decode from {@link #toXML(boolean)}, with the extended fields appended to
+	 * the description the same way, but typed, and without writing any XML.
+	 * 
+	 * @return the report. Values that can't be parsed are left out, for the consumer to reject
+	 */
+	public TrackReport toReport() {
+		TrackReport report = new TrackReport();
+		report.setTypeName(typeName);
+		report.setId(id);
+		report.setName(name);
+		report.setSrsName(srsName);
+		report.setExtended(extended);
+		report.setVersion(version);
+		
+		StringBuilder fullDescription = new StringBuilder(description != null ? description : "");
+		if (extended != null && !extended.equals("")) {
+			fullDescription.append("<br/>");
+			try {
+				JSONObject jsonObject = new JSONObject(extended);
+				Iterator itr = jsonObject.keys();
+				while(itr.hasNext()) {
+					String key = (String)itr.next();
+					fullDescription.append(key + ": " + jsonObject.getString(key) + "<br/>");
+				}
+			} catch (JSONException e) {
+				LOG.error("extended string can't be a JSON string: " + extended);
+			}
+		}
+		report.setDescription(fullDescription.toString());
+		
+		if(coordinates != null) {
+			String[] ordinates = coordinates.split(",");
+			if(ordinates.length == 2) {
+				try {
+					report.setX(Double.parseDouble(ordinates[0].trim()));
+					report.setY(Double.parseDouble(ordinates[1].trim()));
+				} catch (NumberFormatException e) {
+					LOG.debug("Unparseable coordinates: " + coordinates);
+				}
+			}
+		}
+		
+		report.setSpeed(parseDouble(speed));
+		report.setCourse(parseDouble(course));
+		
+		if(timestamp != null) {
+			try {
+				report.setTimestamp(new Date(IsoTimestampParser.parseMillis(timestamp)));
+			} catch (IllegalArgumentException e) {
+				LOG.debug("Unparseable timestamp: " + timestamp);
+			}
+		}
+		
+		return report;
+	}
+	
+	private static Double parseDouble(String value) {
+		if(value == null || value.trim().isEmpty()) {
+			return null;
+		}
+		try {
+			return Double.valueOf(value.trim());
+		} catch (NumberFormatException e) {
+			LOG.debug("Unparseable number: " + value);
+			return null;
+		}
 	}
 
 	@Override
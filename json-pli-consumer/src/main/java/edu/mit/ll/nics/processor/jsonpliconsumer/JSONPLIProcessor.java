@@ -103,6 +103,17 @@ public class JSONPLIProcessor implements Processor {
     
     private OCFAProcessor ocfaProcessor;
     
+    /**
+     * Whether to send each entry to a geodatafeed-consumer in the same JVM as a TrackReport,
+     * rather than as a GML document
+     */
+    private boolean inProcess;
+    
+    /**
+     * Skips unchanged polls and reports that aren't newer than the last one of their unit, when enabled
+     */
+    private IncrementalPoller incrementalPoller;
+    
     private boolean valid = false;
 
     /**
@@ -137,10 +148,31 @@ public class JSONPLIProcessor implements Processor {
     }
 
     /**
-     * Processes incoming PLI message from Ventura County CA Fire Dept.
+     * Processes incoming PLI message from Ventura County CA Fire Dept., reporting how the poll went
+     * to its {@link PollScheduler}, if the route has one, and to the incremental poller
      */
     @Override
     public void process(Exchange exchange) throws Exception {
+    	final PollScheduler scheduler = PollScheduler.forExchange(exchange);
+    	if(scheduler != null) {
+    		scheduler.responseReceived(exchange);
+    	}
+    	
+    	boolean succeeded = false;
+    	try {
+    		processPoll(exchange);
+    		succeeded = true;
+    	} finally {
+    		if(scheduler != null) {
+    			scheduler.pollCompleted(succeeded);
+    		}
+    		if(incrementalPoller != null) {
+    			incrementalPoller.pollCompleted(exchange, succeeded);
+    		}
+    	}
+    }
+    
+    private void processPoll(Exchange exchange) throws Exception {
     	LOG.info("\n\nVALID?: " + valid);
     	if(!valid) {
     		LOG.fatal("Invalid/missing properties!");
@@ -149,6 +181,10 @@ public class JSONPLIProcessor implements Processor {
     	
         LOG.debug("In process!");
         
+        if(incrementalPoller != null && incrementalPoller.skipPoll(exchange)) {
+        	return;
+        }
+        
         if(processorClass.equals(OCFA_PROCESSOR)) {
         	ocfaProcessor.process(exchange);
         	return;
@@ -326,19 +362,45 @@ public class JSONPLIProcessor implements Processor {
             pliEntry.setWfsServiceURI(wfsServiceURI);
             pliEntry.setWfsSchemasURI(wfsSchemasURI);
             
-            if(!invalidData) {
+            final PollScheduler scheduler = PollScheduler.forExchange(exchange);
+            if(!invalidData && scheduler != null) {
+            	scheduler.unitReported(pliEntry.getId(), pliEntry.getCoordinates());
+            }
+            
+            if(!invalidData && incrementalPoller != null 
+            		&& !incrementalPoller.advanced(exchange, pliEntry.getId(), pliEntry.getTimestamp())) {
+            	LOG.debug("Not sending track " + pliEntry.getId() + ", it's no newer than the last one sent");
+            } else if(!invalidData && inProcess) {
+                sent(exchange, sendToEndpoint(geodatafeedConsumer, pliEntry.toReport()));
+            } else if(!invalidData) {
                 String gmlString = pliEntry.toXML(false);
                 LOG.debug("\n\n!!!Sending GML: \n" + gmlString + "\n\n");
-                sendToEndpoint(geodatafeedConsumer, pliEntry.toXML(false));
+                sent(exchange, sendToEndpoint(geodatafeedConsumer, pliEntry.toXML(false)));
             } else {
             	LOG.warn("\nNOT sending track due to invalid data being included: " + invalidDataInfo);
             }            
 
         } catch (Exception e) {
             LOG.error("Caught unhandled exception in process(): " + e.getMessage(), e);
+            if(incrementalPoller != null) {
+            	incrementalPoller.pollFailed(exchange);
+            }
         }
     }
 
+    /**
+     * Fails the poll if the track couldn't be sent, so the incremental poller doesn't keep its
+     * timestamp, and it is sent again with the next poll
+     * 
+     * @param exchange the exchange of the poll
+     * @param success whether the track was sent
+     */
+    private void sent(Exchange exchange, boolean success) {
+    	if(!success && incrementalPoller != null) {
+    		incrementalPoller.pollFailed(exchange);
+    	}
+    }
+
     /**
      * Processes the ORG out of the ID string, and prepends it to the name if
      * the name field doesn't already have the ORG prepended
@@ -423,7 +485,7 @@ public class JSONPLIProcessor implements Processor {
      * @param message
      * @return
      */
-    private boolean sendToEndpoint(String endpoint, String message) {
+    private boolean sendToEndpoint(String endpoint, Object message) {
         boolean success = false;
 
         LOG.debug("Sending below message to endpoint: " + endpoint
@@ -564,4 +626,20 @@ public class JSONPLIProcessor implements Processor {
 	public void setOcfaProcessor(OCFAProcessor ocfaProcessor) {
 		this.ocfaProcessor = ocfaProcessor;
 	}
+
+	public boolean isInProcess() {
+		return inProcess;
+	}
+
+	public void setInProcess(boolean inProcess) {
+		this.inProcess = inProcess;
+	}
+
+	public IncrementalPoller getIncrementalPoller() {
+		return incrementalPoller;
+	}
+
+	public void setIncrementalPoller(IncrementalPoller incrementalPoller) {
+		this.incrementalPoller = incrementalPoller;
+	}
 }
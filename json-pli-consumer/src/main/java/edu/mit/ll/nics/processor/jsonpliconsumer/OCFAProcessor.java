@@ -29,8 +29,12 @@
  */
 package edu.mit.ll.nics.processor.jsonpliconsumer;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.TimeZone;
 
 import org.apache.camel.CamelContext;
@@ -42,6 +46,12 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import edu.mit.ll.nics.processor.gml.consumer.TrackReport;
+
 /**
  * Processes OCFA AVL Feed
  * 
@@ -77,6 +87,11 @@ public class OCFAProcessor implements Processor {
 	
 	private static Logger log;
 	
+	/**
+	 * Creates the parsers for {@link #streaming} mode, thread safe once configured
+	 */
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+	
 	/**
      * Producer for sending messages to an endpoint
      */
@@ -93,6 +108,35 @@ public class OCFAProcessor implements Processor {
     private String timezoneString;
     private boolean prependOrgToName;
     private String orgName;
+    
+    /**
+     * Whether to send the entries to a geodatafeed-consumer in the same JVM as one list of
+     * TrackReports per poll, rather than as a GML document each
+     */
+    private boolean inProcess;
+    
+    /**
+     * Whether to read the feed one entry at a time from the response stream, sending each track
+     * as soon as it is read, rather than reading the whole array into memory first
+     */
+    private boolean streaming;
+    
+    /**
+     * When streaming in process, how many reports are sent to the consumer at a time
+     */
+    private int streamingBatchSize = 100;
+    
+    /**
+     * How many entries are sent as GML in one wfs:FeatureCollection. 1 sends a document per
+     * entry, and 0 sends the whole poll as one collection. The geodatafeed-consumer's
+     * gml.max_features has to allow collections this size
+     */
+    private int gmlBatchSize = 1;
+    
+    /**
+     * Drops entries that aren't newer than the last one of their unit, when enabled
+     */
+    private IncrementalPoller incrementalPoller;
 	
 	
 	/**
@@ -105,6 +149,11 @@ public class OCFAProcessor implements Processor {
 	@Override
 	public void process(Exchange exchange) throws Exception {
 		
+		if(streaming) {
+			processStream(exchange);
+			return;
+		}
+		
 		String strJson = exchange.getIn().getBody(String.class);
 		
 		if(strJson == null) {
@@ -122,100 +171,311 @@ public class OCFAProcessor implements Processor {
 			//jsonObj = jsonArr.getJSONObject(0);
 		} catch(JSONException e) {
 			log.error("Exception reading in JSON", e);
+			pollFailed(exchange);
 			return;
 		}
 		
 		JSONPLIEntry pliEntry = null;
+		final List<JSONPLIEntry> pending = new ArrayList<JSONPLIEntry>();
+		
+		if (producer == null) {
+            initProducer(exchange.getContext());
+        }
+		
+		// In process, the whole poll goes to the consumer as one batch
+		final int batchSize = inProcess ? 0 : gmlBatchSize;
+		final PollScheduler scheduler = PollScheduler.forExchange(exchange);
 		
 		for(int i = 0; i < jsonArr.length(); i++) {
 		
 			jsonObj = jsonArr.getJSONObject(i);
-			pliEntry = new JSONPLIEntry();
-			
-			int heading = jsonObj.optInt(HEADING);		
-			pliEntry.setCourse(heading+"");
-			
-			double lat = jsonObj.optDouble(LATITUDE);
-			double lon = jsonObj.optDouble(LONGITUDE);
-						
-			pliEntry.setCoordinates(lat + "," + lon); // TODO: Make order configurable?
-			
-			String id = jsonObj.optString(FLEET_ID, null);
-			
-			if(id == null || id.isEmpty()) {
-				// TODO: No ID... drop track?
-				log.error("No ID was specified");
+			pliEntry = toEntry(jsonObj);
+			if(scheduler != null) {
+				scheduler.unitReported(pliEntry.getId(), pliEntry.getCoordinates());
 			}
-			// TODO: chance to add configurable ORG to prepend
-			pliEntry.setId(id);
-			
-			if(prependOrgToName && orgName != null && orgName != "") {
-				pliEntry.setName(orgName + "-" + id);
-			} else {
-				pliEntry.setName(id);
+			send(exchange, pliEntry, pending, batchSize);
+		
+		}
+		
+		flush(exchange, pending);
+		logPollStatistics();
+	}
+	
+	/**
+	 * Reads the feed from the response stream one entry at a time, so only the current entry is
+	 * held in memory, and the first tracks are sent while the rest of the array is still arriving.
+	 * For that the endpoint has to hand over the stream as it is read, rather than caching the
+	 * whole response first, e.g. with disableStreamCache=true on an http endpoint.
+	 * Entries missing a required key are logged and skipped.
+	 * 
+	 * @param exchange the exchange holding the response
+	 * @throws Exception if an entry can't be sent
+	 */
+	private void processStream(Exchange exchange) throws Exception {
+		
+		InputStream in = exchange.getIn().getBody(InputStream.class);
+		
+		if(in == null) {
+			return;
+		}
+		
+		if (producer == null) {
+            initProducer(exchange.getContext());
+        }
+		
+		final List<JSONPLIEntry> pending = new ArrayList<JSONPLIEntry>();
+		final int batchSize = inProcess ? streamingBatchSize : gmlBatchSize;
+		final PollScheduler scheduler = PollScheduler.forExchange(exchange);
+		JSONPLIEntry pliEntry = null;
+		int count = 0;
+		int skipped = 0;
+		
+		JsonParser parser = JSON_FACTORY.createParser(in);
+		try {
+			if(parser.nextToken() != JsonToken.START_ARRAY) {
+				log.error("Expected a JSON array, but the feed started with " + parser.getCurrentToken());
+				pollFailed(exchange);
+				return;
 			}
 			
-			pliEntry.setSpeed(jsonObj.optInt(SPEED)+"");
-			
-			SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-			SimpleDateFormat sdfUtc = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
-			sdfUtc.setTimeZone(TimeZone.getTimeZone("UTC"));
-			sdf.setTimeZone(TimeZone.getTimeZone("America/Los_Angeles"));
-			Date date = null;
-			try {
-				date = sdf.parse(jsonObj.optString(TIME_STRING));
-				pliEntry.setTimestamp(sdfUtc.format(date));
-			} catch(Exception e) {
-				log.error("Exception parsing timestamp for ID " + 
-						pliEntry.getId() + ": " + e.getMessage(), e);
+			while(parser.nextToken() == JsonToken.START_OBJECT) {
+				
+				// readObject always reads up to the closing brace, so a bad entry can be skipped
+				final JSONObject jsonObj = readObject(parser);
+				try {
+					pliEntry = toEntry(jsonObj);
+				} catch(JSONException e) {
+					log.error("Skipping entry " + count + " of the stream: " + e.getMessage());
+					skipped++;
+					count++;
+					continue;
+				}
+				if(scheduler != null) {
+					scheduler.unitReported(pliEntry.getId(), pliEntry.getCoordinates());
+				}
+				send(exchange, pliEntry, pending, batchSize);
+				count++;
 			}
+		} catch(IOException e) {
+			log.error("Exception reading in JSON after " + count + " entries", e);
+			pollFailed(exchange);
+		} catch(JSONException e) {
+			log.error("Exception reading in JSON after " + count + " entries", e);
+			pollFailed(exchange);
+		} finally {
+			parser.close();
+		}
+		
+		// Whatever was read before the end, or an error, still goes out
+		flush(exchange, pending);
+		
+		log.info("Read " + count + " entries from the stream, skipped " + skipped);
+		logPollStatistics();
+	}
+	
+	/**
+	 * Tells the incremental poller, if any, that the response couldn't be read in full
+	 */
+	private void pollFailed(Exchange exchange) {
+		if(incrementalPoller != null) {
+			incrementalPoller.pollFailed(exchange);
+		}
+	}
+	
+	/**
+	 * Logs the incremental polling counters, when enabled
+	 */
+	private void logPollStatistics() {
+		if(incrementalPoller != null && incrementalPoller.isEnabled()) {
+			log.info(incrementalPoller.getStatistics());
+		}
+	}
+	
+	/**
+	 * Reads the fields of the object the parser is at, up to its closing brace. Only the scalar
+	 * values are kept, the feed doesn't nest anything that {@link #toEntry(JSONObject)} uses.
+	 * 
+	 * @param parser a parser positioned at the START_OBJECT of an entry
+	 * @return the entry, as toEntry expects it
+	 * @throws IOException if the stream can't be read or isn't valid JSON
+	 * @throws JSONException if a value can't be stored
+	 */
+	private static JSONObject readObject(JsonParser parser) throws IOException, JSONException {
+		JSONObject jsonObj = new JSONObject();
+		
+		while(parser.nextToken() == JsonToken.FIELD_NAME) {
+			String key = parser.getCurrentName();
 			
-			String description = jsonObj.optString(DESCRIPTION, "<br/>");
+			switch(parser.nextToken()) {
+			case VALUE_STRING:
+				jsonObj.put(key, parser.getText());
+				break;
+			case VALUE_NUMBER_INT:
+			case VALUE_NUMBER_FLOAT:
+				jsonObj.put(key, parser.getNumberValue());
+				break;
+			case VALUE_TRUE:
+			case VALUE_FALSE:
+				jsonObj.put(key, parser.getBooleanValue());
+				break;
+			case VALUE_NULL:
+				jsonObj.put(key, JSONObject.NULL);
+				break;
+			default:
+				parser.skipChildren();
+			}
+		}
+		
+		return jsonObj;
+	}
+	
+	/**
+	 * Sends an entry as its own GML document, or adds it to the batch, sending the batch once
+	 * it's full. Entries no newer than the unit's last one are dropped when polling incrementally
+	 * 
+	 * @param exchange the exchange of the poll
+	 * @param pliEntry the entry
+	 * @param pending the entries not yet sent
+	 * @param batchSize how many entries to send at a time, 0 for no limit
+	 */
+	private void send(Exchange exchange, JSONPLIEntry pliEntry, List<JSONPLIEntry> pending, int batchSize) {
+		
+		if(incrementalPoller != null && !incrementalPoller.advanced(exchange, pliEntry.getId(), pliEntry.getTimestamp())) {
+			return;
+		}
+		
+		if(!inProcess && gmlBatchSize == 1) {
+			log.info("\n====\n" + pliEntry.toXML(true) + "\n====\n");
 			
-			StringBuilder sb = new StringBuilder();
-			sb.append( description  );
-			sb.append("<br/>");
+			if(!sendToEndpoint(geodatafeedConsumer, pliEntry.toXML(false))) {
+				pollFailed(exchange);
+			}
+			return;
+		}
+		
+		pending.add(pliEntry);
+		if(batchSize > 0 && pending.size() >= batchSize) {
+			flush(exchange, pending);
+		}
+	}
+	
+	/**
+	 * Sends the batch, as a list of TrackReports in process, or else as one GML collection. A
+	 * batch that can't be sent fails the poll, so its units' timestamps aren't kept
+	 * 
+	 * @param exchange the exchange of the poll
+	 * @param pending the entries not yet sent, cleared once they are
+	 */
+	private void flush(Exchange exchange, List<JSONPLIEntry> pending) {
+		
+		if(pending.isEmpty()) {
+			return;
+		}
+		
+		final boolean sent;
+		if(inProcess) {
+			final List<TrackReport> reports = new ArrayList<TrackReport>(pending.size());
+			for(JSONPLIEntry pliEntry : pending) {
+				reports.add(pliEntry.toReport());
+			}
+			sent = sendToEndpoint(geodatafeedConsumer, reports);
+		} else {
+			log.info("Sending " + pending.size() + " entries in one collection");
+			sent = sendToEndpoint(geodatafeedConsumer, JSONPLIEntry.toCollectionXML(pending, false));
+		}
+		if(!sent) {
+			pollFailed(exchange);
+		}
+		
+		pending.clear();
+	}
+	
+	/**
+	 * Converts a single entry of the OCFA AVL feed
+	 * 
+	 * @param jsonObj the entry
+	 * @return the entry, ready to be written as GML with {@link JSONPLIEntry#toXML(boolean)}
+	 * @throws JSONException if a required key is missing
+	 */
+	public JSONPLIEntry toEntry(JSONObject jsonObj) throws JSONException {
+		JSONPLIEntry pliEntry = new JSONPLIEntry();
+		
+		int heading = jsonObj.optInt(HEADING);		
+		pliEntry.setCourse(heading+"");
+		
+		double lat = jsonObj.optDouble(LATITUDE);
+		double lon = jsonObj.optDouble(LONGITUDE);
+					
+		pliEntry.setCoordinates(lat + "," + lon); // TODO: Make order configurable?
+		
+		String id = jsonObj.optString(FLEET_ID, null);
+		
+		if(id == null || id.isEmpty()) {
+			// TODO: No ID... drop track?
+			log.error("No ID was specified");
+		}
+		// TODO: chance to add configurable ORG to prepend
+		pliEntry.setId(id);
+		
+		if(prependOrgToName && orgName != null && orgName != "") {
+			pliEntry.setName(orgName + "-" + id);
+		} else {
+			pliEntry.setName(id);
+		}
+		
+		pliEntry.setSpeed(jsonObj.optInt(SPEED)+"");
+		
+		SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+		SimpleDateFormat sdfUtc = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+		sdfUtc.setTimeZone(TimeZone.getTimeZone("UTC"));
+		sdf.setTimeZone(TimeZone.getTimeZone("America/Los_Angeles"));
+		Date date = null;
+		try {
+			date = sdf.parse(jsonObj.optString(TIME_STRING));
+			pliEntry.setTimestamp(sdfUtc.format(date));
+		} catch(Exception e) {
+			log.error("Exception parsing timestamp for ID " + 
+					pliEntry.getId() + ": " + e.getMessage(), e);
+		}
+		
+		String description = jsonObj.optString(DESCRIPTION, "<br/>");
+		
+		StringBuilder sb = new StringBuilder();
+		sb.append( description  );
+		sb.append("<br/>");
+		
+		JSONObject jsonExtended = new JSONObject();
+		
+		Object objKeyVal = null;
+		String strKeyVal = null;
+		for(String key : extended) {
 			
-			JSONObject jsonExtended = new JSONObject();
+			objKeyVal = jsonObj.get(key);
+			log.debug("Extended: " + key + ":" + objKeyVal);
 			
-			Object objKeyVal = null;
-			String strKeyVal = null;
-			for(String key : extended) {
-				
-				objKeyVal = jsonObj.get(key);
-				log.debug("Extended: " + key + ":" + objKeyVal);
+			if(objKeyVal == null) {
+				strKeyVal = "";
+			} else {
 				
-				if(objKeyVal == null) {
+				strKeyVal = objKeyVal + "";
+				if(strKeyVal.contains("null")) {
 					strKeyVal = "";
-				} else {
-					
-					strKeyVal = objKeyVal + "";
-					if(strKeyVal.contains("null")) {
-						strKeyVal = "";
-					}
 				}
-				//jsonExtended.append(key, strKeyVal);
-				jsonExtended.put(key, strKeyVal);
 			}
-			log.debug("Setting extended to:\n" + jsonExtended.toString());
-			pliEntry.setExtended(jsonExtended.toString());
-			
-			pliEntry.setSrsName(srsName);
-			pliEntry.setVersion("0.0.1");        
-	        pliEntry.setTypeName(typeName);
-	        pliEntry.setNicsSchemaLocationURI(nicsSchemaLocationURI);
-	        pliEntry.setWfsServiceURI(wfsServiceURI);
-	        pliEntry.setWfsSchemasURI(wfsSchemasURI);
-			
-			log.info("\n====\n" + pliEntry.toXML(true) + "\n====\n");
-			
-			if (producer == null) {
-	            initProducer(exchange.getContext());
-	        }
-			
-			sendToEndpoint(geodatafeedConsumer, pliEntry.toXML(false));
-		
+			//jsonExtended.append(key, strKeyVal);
+			jsonExtended.put(key, strKeyVal);
 		}
+		log.debug("Setting extended to:\n" + jsonExtended.toString());
+		pliEntry.setExtended(jsonExtended.toString());
+		
+		pliEntry.setSrsName(srsName);
+		pliEntry.setVersion("0.0.1");        
+        pliEntry.setTypeName(typeName);
+        pliEntry.setNicsSchemaLocationURI(nicsSchemaLocationURI);
+        pliEntry.setWfsServiceURI(wfsServiceURI);
+        pliEntry.setWfsSchemasURI(wfsSchemasURI);
+		
+		return pliEntry;
 	}
 	
     /**
@@ -243,7 +503,7 @@ public class OCFAProcessor implements Processor {
      * @param message
      * @return
      */
-    private boolean sendToEndpoint(String endpoint, String message) {
+    private boolean sendToEndpoint(String endpoint, Object message) {
         boolean success = false;
 
         log.debug("Sending below message to endpoint: " + endpoint
@@ -348,4 +608,44 @@ public class OCFAProcessor implements Processor {
 		this.orgName = orgName;
 	}
 
+	public boolean isInProcess() {
+		return inProcess;
+	}
+
+	public void setInProcess(boolean inProcess) {
+		this.inProcess = inProcess;
+	}
+
+	public boolean isStreaming() {
+		return streaming;
+	}
+
+	public void setStreaming(boolean streaming) {
+		this.streaming = streaming;
+	}
+
+	public int getStreamingBatchSize() {
+		return streamingBatchSize;
+	}
+
+	public void setStreamingBatchSize(int streamingBatchSize) {
+		this.streamingBatchSize = streamingBatchSize;
+	}
+
+	public int getGmlBatchSize() {
+		return gmlBatchSize;
+	}
+
+	public void setGmlBatchSize(int gmlBatchSize) {
+		this.gmlBatchSize = gmlBatchSize;
+	}
+
+	public IncrementalPoller getIncrementalPoller() {
+		return incrementalPoller;
+	}
+
+	public void setIncrementalPoller(IncrementalPoller incrementalPoller) {
+		this.incrementalPoller = incrementalPoller;
+	}
+
 }
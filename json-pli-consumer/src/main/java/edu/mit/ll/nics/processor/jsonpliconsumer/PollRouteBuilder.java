@@ -0,0 +1,125 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.nics.processor.jsonpliconsumer;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.camel.Processor;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.log4j.Logger;
+
+/**
+ * Builds a polling route for each configured PLI source, each with its own {@link PollScheduler},
+ * so every source keeps its own interval, and its own incremental polling state. A route ticks
+ * every second, and when its scheduler says the poll is due, fetches the source and hands the
+ * response to the processor.
+ * 
+ * <p>The schedulers are made from the scheduler given, which only holds the settings, and are
+ * named after their source. The route of a source is named &lt;source&gt;PollRoute.</p>
+ */
+public class PollRouteBuilder extends RouteBuilder {
+
+	private static final Logger log = Logger.getLogger(PollRouteBuilder.class);
+	
+	/** source name -> URI of the source endpoint */
+	private Map<String, String> sources = new LinkedHashMap<String, String>();
+	
+	private PollScheduler scheduler;
+	private Processor incrementalPoller;
+	private Processor processor;
+	
+	private final List<PollScheduler> schedulers = new ArrayList<PollScheduler>();
+	
+	@Override
+	public void configure() throws Exception {
+		for(Map.Entry<String, String> source : sources.entrySet()) {
+			final PollScheduler sourceScheduler = scheduler.forSource(source.getKey());
+			sourceScheduler.init();
+			synchronized(schedulers) {
+				schedulers.add(sourceScheduler);
+			}
+			
+			from("timer://" + source.getKey() + "Poll?period=1s").routeId(source.getKey() + "PollRoute")
+				.filter(method(sourceScheduler, "isDue"))
+					.process(incrementalPoller) // conditional request headers, if enabled
+					.to(source.getValue())
+					.process(processor);
+			
+			log.info("Polling " + source.getKey() + " from " + source.getValue());
+		}
+	}
+	
+	/**
+	 * Called by Spring on shutdown, unregisters the schedulers
+	 */
+	public void destroy() {
+		synchronized(schedulers) {
+			for(PollScheduler sourceScheduler : schedulers) {
+				sourceScheduler.destroy();
+			}
+			schedulers.clear();
+		}
+	}
+	
+	public Map<String, String> getSources() {
+		return sources;
+	}
+	
+	public void setSources(Map<String, String> sources) {
+		this.sources = sources;
+	}
+	
+	public PollScheduler getScheduler() {
+		return scheduler;
+	}
+	
+	public void setScheduler(PollScheduler scheduler) {
+		this.scheduler = scheduler;
+	}
+	
+	public Processor getIncrementalPoller() {
+		return incrementalPoller;
+	}
+	
+	public void setIncrementalPoller(Processor incrementalPoller) {
+		this.incrementalPoller = incrementalPoller;
+	}
+	
+	public Processor getProcessor() {
+		return processor;
+	}
+	
+	public void setProcessor(Processor processor) {
+		this.processor = processor;
+	}
+}
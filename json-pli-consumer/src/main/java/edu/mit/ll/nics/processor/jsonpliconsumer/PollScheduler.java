@@ -0,0 +1,336 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.nics.processor.jsonpliconsumer;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.camel.Exchange;
+import org.apache.log4j.Logger;
+
+/**
+ * Decides when a PLI source is polled. The route ticks often, and only goes on to fetch the
+ * source when {@link #isDue(Exchange)}. When adaptive, the interval between polls is halved
+ * while a busyRatio share of the units move between polls, and doubled while the feed is
+ * quiet, unchanged or failing, within minInterval and maxInterval. Otherwise it stays at
+ * interval.
+ * 
+ * <p>The scheduler rides along on the exchange, so the processors report to the schedule of the
+ * source they're processing. {@link PollRouteBuilder} gives each source its own, with
+ * {@link #forSource(String)}. The interval, change ratio and fetch latency are registered as a
+ * JMX bean named after the source.</p>
+ */
+public class PollScheduler implements PollSchedulerMXBean {
+
+	/** Exchange property holding the scheduler of the poll */
+	public static final String EXCHANGE_PROPERTY = "PollScheduler";
+	
+	private static final Logger log = Logger.getLogger(PollScheduler.class);
+	
+	private String source = "pli";
+	private boolean adaptive;
+	private long interval = 60000;
+	private long minInterval = 15000;
+	private long maxInterval = 300000;
+	private double busyRatio = 0.25;
+	private double quietRatio = 0.05;
+	
+	private ObjectName objectName;
+	
+	/** unit id -> coordinates in the last poll it was in */
+	private final Map<String, String> positions = new HashMap<String, String>();
+	
+	/** Start of the last poll, 0 before the first */
+	private long pollStart;
+	
+	/** Whether the last poll started hasn't reported how it ended yet */
+	private boolean polling;
+	
+	/** Of the poll in progress */
+	private boolean failed;
+	private int units;
+	private int known;
+	private int moved;
+	
+	private double changeRatio;
+	private long fetchLatency;
+	private long polls;
+	private long failedPolls;
+	
+	/**
+	 * @param source the name of a source
+	 * @return a new scheduler of the source, with this one's settings. Its init() isn't called yet
+	 */
+	public synchronized PollScheduler forSource(String source) {
+		final PollScheduler scheduler = new PollScheduler();
+		scheduler.setSource(source);
+		scheduler.setAdaptive(adaptive);
+		scheduler.setInterval(interval);
+		scheduler.setMinInterval(minInterval);
+		scheduler.setMaxInterval(maxInterval);
+		scheduler.setBusyRatio(busyRatio);
+		scheduler.setQuietRatio(quietRatio);
+		return scheduler;
+	}
+	
+	/**
+	 * Called once properties have been set
+	 */
+	public synchronized void init() {
+		if(adaptive) {
+			interval = Math.max(minInterval, Math.min(maxInterval, interval));
+		}
+		
+		try {
+			final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			objectName = new ObjectName("edu.mit.ll.nics.processor:type=PollScheduler,name=" + ObjectName.quote(source));
+			if(server.isRegistered(objectName)) {
+				server.unregisterMBean(objectName);
+			}
+			server.registerMBean(this, objectName);
+		} catch (Exception e) {
+			log.error("Could not register poll scheduler of " + source + " as JMX bean: " + e.getMessage(), e);
+			objectName = null;
+		}
+		log.info("Polling " + source + " every " + interval + "ms" 
+				+ (adaptive ? ", adapting between " + minInterval + "ms and " + maxInterval + "ms" : ""));
+	}
+	
+	/**
+	 * Called on shutdown
+	 */
+	public synchronized void destroy() {
+		if(objectName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			} catch (Exception e) {
+				log.debug("Exception unregistering poll scheduler: " + e.getMessage());
+			}
+			objectName = null;
+		}
+	}
+	
+	/**
+	 * Tells whether the next poll is due, and if so starts it, adding the scheduler to the exchange.
+	 * A poll that was started but never reported back, e.g. because fetching the source threw, is
+	 * counted as failed first.
+	 * 
+	 * @param exchange the tick
+	 * @return true if the source should be polled now
+	 */
+	public synchronized boolean isDue(Exchange exchange) {
+		if(polling) {
+			failed = true;
+			pollEnded();
+		}
+		
+		final long now = System.currentTimeMillis();
+		if(pollStart != 0 && now - pollStart < interval) {
+			return false;
+		}
+		
+		pollStart = now;
+		polling = true;
+		failed = false;
+		units = 0;
+		known = 0;
+		moved = 0;
+		polls++;
+		exchange.setProperty(EXCHANGE_PROPERTY, this);
+		return true;
+	}
+	
+	/**
+	 * Records how long the source took to respond, and whether it answered with an error
+	 * 
+	 * @param exchange the exchange holding the response
+	 */
+	public synchronized void responseReceived(Exchange exchange) {
+		fetchLatency = System.currentTimeMillis() - pollStart;
+		
+		final Integer code = exchange.getIn().getHeader(Exchange.HTTP_RESPONSE_CODE, Integer.class);
+		if(code != null && code >= 400) {
+			failed = true;
+		}
+	}
+	
+	/**
+	 * Records a unit's position in this poll
+	 * 
+	 * @param id the unit id
+	 * @param coordinates the unit's coordinates as reported
+	 */
+	public synchronized void unitReported(String id, String coordinates) {
+		if(id == null) {
+			return;
+		}
+		
+		units++;
+		final String previous = positions.put(id, coordinates);
+		if(previous != null) {
+			known++;
+			if(!previous.equals(coordinates)) {
+				moved++;
+			}
+		}
+	}
+	
+	/**
+	 * Ends the poll, adapting the interval to how it went
+	 * 
+	 * @param succeeded false if processing the response failed
+	 */
+	public synchronized void pollCompleted(boolean succeeded) {
+		if(!polling) {
+			return;
+		}
+		if(!succeeded) {
+			failed = true;
+		}
+		pollEnded();
+	}
+	
+	private void pollEnded() {
+		polling = false;
+		
+		if(failed) {
+			failedPolls++;
+		} else if(known > 0) {
+			changeRatio = (double) moved / known;
+		}
+		
+		if(!adaptive) {
+			return;
+		}
+		
+		final long previous = interval;
+		if(failed || units == 0 || (known > 0 && changeRatio <= quietRatio)) {
+			// Errors, nothing new, or next to nothing moving
+			interval = Math.min(maxInterval, interval * 2);
+		} else if(known > 0 && changeRatio >= busyRatio) {
+			interval = Math.max(minInterval, interval / 2);
+		}
+		
+		if(interval != previous) {
+			log.info("Polling " + source + " every " + interval + "ms, was " + previous + "ms. failed: " + failed 
+					+ "   units: " + units + "   moved: " + moved + " of " + known);
+		}
+	}
+	
+	/**
+	 * @param exchange an exchange of the route
+	 * @return the scheduler of the poll the exchange is for, or null if it isn't scheduled
+	 */
+	public static PollScheduler forExchange(Exchange exchange) {
+		return exchange.getProperty(EXCHANGE_PROPERTY, PollScheduler.class);
+	}
+	
+	@Override
+	public synchronized String getSource() {
+		return source;
+	}
+	
+	public synchronized void setSource(String source) {
+		this.source = source;
+	}
+	
+	public synchronized boolean isAdaptive() {
+		return adaptive;
+	}
+	
+	public synchronized void setAdaptive(boolean adaptive) {
+		this.adaptive = adaptive;
+	}
+	
+	@Override
+	public synchronized long getInterval() {
+		return interval;
+	}
+	
+	public synchronized void setInterval(long interval) {
+		this.interval = interval;
+	}
+	
+	public synchronized long getMinInterval() {
+		return minInterval;
+	}
+	
+	public synchronized void setMinInterval(long minInterval) {
+		this.minInterval = minInterval;
+	}
+	
+	public synchronized long getMaxInterval() {
+		return maxInterval;
+	}
+	
+	public synchronized void setMaxInterval(long maxInterval) {
+		this.maxInterval = maxInterval;
+	}
+	
+	public synchronized double getBusyRatio() {
+		return busyRatio;
+	}
+	
+	public synchronized void setBusyRatio(double busyRatio) {
+		this.busyRatio = busyRatio;
+	}
+	
+	public synchronized double getQuietRatio() {
+		return quietRatio;
+	}
+	
+	public synchronized void setQuietRatio(double quietRatio) {
+		this.quietRatio = quietRatio;
+	}
+	
+	@Override
+	public synchronized double getChangeRatio() {
+		return changeRatio;
+	}
+	
+	@Override
+	public synchronized long getFetchLatency() {
+		return fetchLatency;
+	}
+	
+	@Override
+	public synchronized long getPolls() {
+		return polls;
+	}
+	
+	@Override
+	public synchronized long getFailedPolls() {
+		return failedPolls;
+	}
+}
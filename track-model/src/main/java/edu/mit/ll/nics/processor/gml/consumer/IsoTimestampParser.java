@@ -0,0 +1,182 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.nics.processor.gml.consumer;
+
+import java.util.TimeZone;
+
+/**
+ * Parses the ISO-8601 timestamps of incoming tracks into epoch milliseconds, without creating
+ * any formatter or intermediate objects. Stateless and thread safe.
+ * 
+ * <p>Accepts <code>yyyy-MM-dd'T'HH:mm:ss</code>, optionally followed by fractional seconds, and
+ * then by one of the offsets <code>Z</code>, <code>&plusmn;hh</code>, <code>&plusmn;hhmm</code> or
+ * <code>&plusmn;hh:mm</code>. A timestamp without an offset is read in the JVM's default time
+ * zone, as the SimpleDateFormat this replaces did.</p>
+ */
+public final class IsoTimestampParser {
+
+	/** Zone used for timestamps without an offset, looked up once since getDefault() clones */
+	private static final TimeZone local_zone = TimeZone.getDefault();
+
+	private IsoTimestampParser() {
+	}
+
+	/**
+	 * @param text the timestamp
+	 * @return the timestamp in milliseconds since the epoch
+	 * @throws IllegalArgumentException if the text isn't one of the accepted forms
+	 */
+	public static long parseMillis(CharSequence text) {
+		final int length = text.length();
+		if(length < 19 || text.charAt(4) != '-' || text.charAt(7) != '-' || text.charAt(10) != 'T'
+				|| text.charAt(13) != ':' || text.charAt(16) != ':') {
+			throw invalid(text);
+		}
+		
+		final int year = digits(text, 0, 4);
+		final int month = digits(text, 5, 2);
+		final int day = digits(text, 8, 2);
+		final int hour = digits(text, 11, 2);
+		final int minute = digits(text, 14, 2);
+		final int second = digits(text, 17, 2);
+		if(month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month) || hour > 23 
+				|| minute > 59 || second > 59) {
+			throw invalid(text);
+		}
+		
+		int pos = 19;
+		int millis = 0;
+		if(pos < length && text.charAt(pos) == '.') {
+			pos++;
+			final int start = pos;
+			int scale = 100;
+			while(pos < length && isDigit(text.charAt(pos))) {
+				millis += (text.charAt(pos) - '0') * scale;
+				scale /= 10;
+				pos++;
+			}
+			if(pos == start) {
+				throw invalid(text);
+			}
+		}
+		
+		final long local = (daysFromEpoch(year, month, day) * 24 + hour) * 3600000L 
+				+ minute * 60000L + second * 1000L + millis;
+		
+		if(pos == length) {
+			// Taking the offset at the instant the first guess gives reads a time skipped by a
+			// daylight saving change with the offset from before it, as GregorianCalendar does
+			final int guess = local_zone.getOffset(local - local_zone.getRawOffset());
+			return local - local_zone.getOffset(local - guess);
+		}
+		
+		final char sign = text.charAt(pos++);
+		if(sign == 'Z' && pos == length) {
+			return local;
+		}
+		if(sign != '+' && sign != '-') {
+			throw invalid(text);
+		}
+		
+		final int offsetHours;
+		int offsetMinutes = 0;
+		switch(length - pos) {
+			case 2: // hh
+				offsetHours = digits(text, pos, 2);
+				break;
+			case 4: // hhmm
+				offsetHours = digits(text, pos, 2);
+				offsetMinutes = digits(text, pos + 2, 2);
+				break;
+			case 5: // hh:mm
+				if(text.charAt(pos + 2) != ':') {
+					throw invalid(text);
+				}
+				offsetHours = digits(text, pos, 2);
+				offsetMinutes = digits(text, pos + 3, 2);
+				break;
+			default:
+				throw invalid(text);
+		}
+		if(offsetHours > 18 || offsetMinutes > 59) {
+			throw invalid(text);
+		}
+		
+		final long offset = (offsetHours * 60L + offsetMinutes) * 60000L;
+		return sign == '+' ? local - offset : local + offset;
+	}
+
+	/**
+	 * Days from 1970-01-01 to the given date of the proleptic Gregorian calendar
+	 */
+	private static long daysFromEpoch(int year, int month, int day) {
+		// Count years from March, so the leap day is the last day of the year
+		final int y = month <= 2 ? year - 1 : year;
+		final int era = (y >= 0 ? y : y - 399) / 400;
+		final int yearOfEra = y - era * 400;
+		final int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+		final int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * 146097L + dayOfEra - 719468;
+	}
+
+	private static int daysInMonth(int year, int month) {
+		switch(month) {
+			case 2:
+				return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+			case 4:
+			case 6:
+			case 9:
+			case 11:
+				return 30;
+			default:
+				return 31;
+		}
+	}
+
+	private static int digits(CharSequence text, int start, int count) {
+		int value = 0;
+		for(int i = start; i < start + count; i++) {
+			final char c = text.charAt(i);
+			if(!isDigit(c)) {
+				throw invalid(text);
+			}
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private static IllegalArgumentException invalid(CharSequence text) {
+		return new IllegalArgumentException("Not an ISO-8601 timestamp: " + text);
+	}
+}
@@ -0,0 +1,176 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.nics.processor.gml.consumer;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * A single position report, handed to the {@link GMLToDBProcessor} in process instead of as a
+ * GML document, so it is neither serialized nor parsed. Holds the same fields as the GML that
+ * JSONPLIEntry.toXML writes, and goes through the same checks.
+ * 
+ * <p>The point's x and y are in the axis order of the srsName, as in gml:coordinates, so for
+ * EPSG:4326 x is the latitude. A missing or unparseable value is left null, or NaN for the
+ * coordinates, and the processor rejects the report the same way it would the GML.</p>
+ */
+public class TrackReport implements Serializable {
+
+	private static final long serialVersionUID = 4208126539183746317L;
+
+	/** Feature type, and so table, name */
+	private String typeName;
+
+	private String id;
+
+	private String name;
+
+	private String description;
+
+	private String srsName;
+
+	private double x = Double.NaN;
+
+	private double y = Double.NaN;
+
+	private Double speed;
+
+	private Double course;
+
+	private Date timestamp;
+
+	private String extended;
+
+	private String version;
+
+	public String getTypeName() {
+		return typeName;
+	}
+
+	public void setTypeName(String typeName) {
+		this.typeName = typeName;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public void setId(String id) {
+		this.id = id;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	public String getDescription() {
+		return description;
+	}
+
+	public void setDescription(String description) {
+		this.description = description;
+	}
+
+	public String getSrsName() {
+		return srsName;
+	}
+
+	public void setSrsName(String srsName) {
+		this.srsName = srsName;
+	}
+
+	public double getX() {
+		return x;
+	}
+
+	public void setX(double x) {
+		this.x = x;
+	}
+
+	public double getY() {
+		return y;
+	}
+
+	public void setY(double y) {
+		this.y = y;
+	}
+
+	public Double getSpeed() {
+		return speed;
+	}
+
+	public void setSpeed(Double speed) {
+		this.speed = speed;
+	}
+
+	public Double getCourse() {
+		return course;
+	}
+
+	public void setCourse(Double course) {
+		this.course = course;
+	}
+
+	public Date getTimestamp() {
+		return timestamp;
+	}
+
+	public void setTimestamp(Date timestamp) {
+		this.timestamp = timestamp;
+	}
+
+	public String getExtended() {
+		return extended;
+	}
+
+	public void setExtended(String extended) {
+		this.extended = extended;
+	}
+
+	public String getVersion() {
+		return version;
+	}
+
+	public void setVersion(String version) {
+		this.version = version;
+	}
+
+	@Override
+	public String toString() {
+		return "TrackReport [typeName=" + typeName + ", id=" + id + ", name=" + name + ", srsName=" + srsName 
+				+ ", x=" + x + ", y=" + y + ", speed=" + speed + ", course=" + course + ", timestamp=" 
+				+ (timestamp != null ? timestamp.getTime() : null) + ", description=" + description 
+				+ ", extended=" + extended + ", version=" + version + "]";
+	}
+}
@@ -0,0 +1,208 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.nics.processor.gml.consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Checks the {@link IsoTimestampParser} reads timestamps as the SimpleDateFormat parsing it
+ * replaced did, in each of the accepted forms, and rejects what isn't a timestamp.
+ */
+public class IsoTimestampParserTest {
+
+	private static TimeZone defaultZone;
+
+	/**
+	 * Timestamps without an offset are read in the default zone, which the parser looks up when
+	 * it's loaded, so a zone with daylight saving is set before any test uses it
+	 */
+	@BeforeClass
+	public static void setZone() {
+		defaultZone = TimeZone.getDefault();
+		TimeZone.setDefault(TimeZone.getTimeZone("America/Los_Angeles"));
+	}
+
+	@AfterClass
+	public static void restoreZone() {
+		TimeZone.setDefault(defaultZone);
+	}
+
+	@Test
+	public void utc() throws ParseException {
+		assertSameAsLegacy("2016-03-01T12:34:56Z");
+		assertSameAsLegacy("1970-01-01T00:00:00Z");
+		assertSameAsLegacy("1969-12-31T23:59:59Z");
+		assertSameAsLegacy("2038-01-19T03:14:08Z");
+	}
+
+	@Test
+	public void hourOffsets() throws ParseException {
+		assertSameAsLegacy("2016-03-01T12:34:56-08");
+		assertSameAsLegacy("2016-03-01T12:34:56+05");
+		assertSameAsLegacy("2016-03-01T12:34:56+00");
+		assertSameAsLegacy("2016-03-01T00:00:00+14");
+	}
+
+	@Test
+	public void hourMinuteOffsets() throws ParseException {
+		assertSameAsLegacy("2016-03-01T12:34:56-0800");
+		assertSameAsLegacy("2016-03-01T12:34:56+0530");
+		assertSameAsLegacy("2016-03-01T12:34:56+1245");
+		assertSameAsLegacy("2016-03-01T23:59:59-0930");
+	}
+
+	@Test
+	public void colonOffsets() throws ParseException {
+		assertSameAsLegacy("2016-03-01T12:34:56-08:00");
+		assertSameAsLegacy("2016-03-01T12:34:56+05:30");
+		assertSameAsLegacy("2016-03-01T12:34:56-09:30");
+		assertSameAsLegacy("2016-03-01T12:34:56+00:00");
+	}
+
+	/**
+	 * The SimpleDateFormat patterns had no fraction, so the fraction is added to the whole
+	 * seconds it read. Digits past milliseconds are dropped
+	 */
+	@Test
+	public void fractionalSeconds() throws ParseException {
+		assertEquals(legacyParse("2016-03-01T12:34:56Z") + 789, IsoTimestampParser.parseMillis("2016-03-01T12:34:56.789Z"));
+		assertEquals(legacyParse("2016-03-01T12:34:56Z") + 500, IsoTimestampParser.parseMillis("2016-03-01T12:34:56.5Z"));
+		assertEquals(legacyParse("2016-03-01T12:34:56Z") + 123, IsoTimestampParser.parseMillis("2016-03-01T12:34:56.123456Z"));
+		assertEquals(legacyParse("2016-03-01T12:34:56-08:00") + 10, IsoTimestampParser.parseMillis("2016-03-01T12:34:56.01-08:00"));
+		assertEquals(legacyParse("2016-03-01T12:34:56+0530") + 999, IsoTimestampParser.parseMillis("2016-03-01T12:34:56.999+0530"));
+		assertEquals(legacyParse("2016-03-01T12:34:56"), IsoTimestampParser.parseMillis("2016-03-01T12:34:56.000"));
+	}
+
+	/**
+	 * Every half hour around the 2016 daylight saving changes, including the hour that's skipped
+	 * in spring and the one that's repeated in autumn
+	 */
+	@Test
+	public void noOffsetAcrossDaylightSaving() throws ParseException {
+		final String[] days = {"2016-03-12", "2016-03-13", "2016-03-14", "2016-11-05", "2016-11-06", "2016-11-07"};
+		for(String day : days) {
+			for(int hour = 0; hour < 24; hour++) {
+				assertSameAsLegacy(String.format("%sT%02d:00:00", day, hour));
+				assertSameAsLegacy(String.format("%sT%02d:30:00", day, hour));
+			}
+		}
+		assertSameAsLegacy("2016-07-01T12:00:00");
+		assertSameAsLegacy("2016-01-01T12:00:00");
+	}
+
+	@Test
+	public void leapDays() throws ParseException {
+		assertSameAsLegacy("2016-02-29T12:00:00Z");
+		assertSameAsLegacy("2016-02-29T23:59:59-08:00");
+		assertSameAsLegacy("2016-02-29T00:00:00");
+		assertSameAsLegacy("2000-02-29T12:00:00Z");
+		assertSameAsLegacy("2016-03-01T00:00:00Z");
+		assertSameAsLegacy("2016-12-31T23:59:59Z");
+		assertSameAsLegacy("2015-03-01T00:00:00Z");
+	}
+
+	/**
+	 * The lenient SimpleDateFormat rolled days and times that don't exist over into the next
+	 * month or day. The parser rejects them, along with anything not in one of its forms
+	 */
+	@Test
+	public void invalidInput() {
+		assertInvalid("");
+		assertInvalid("2016-03-01");
+		assertInvalid("2016-03-01T12:34");
+		assertInvalid("2016-03-01 12:34:56Z");
+		assertInvalid("2016-3-01T12:34:56Z");
+		assertInvalid("abcd-03-01T12:34:56Z");
+		assertInvalid("2016-03-01T12:34:5xZ");
+		assertInvalid("2016-03-01T12:34:56X");
+		assertInvalid("2016-03-01T12:34:56ZZ");
+		assertInvalid("2016-03-01T12:34:56.Z");
+		assertInvalid("2016-03-01T12:34:56+8");
+		assertInvalid("2016-03-01T12:34:56+080");
+		assertInvalid("2016-03-01T12:34:56+08:0");
+		assertInvalid("2016-03-01T12:34:56+08-00");
+		assertInvalid("2016-03-01T12:34:56+0800Z");
+		assertInvalid("2016-03-01T12:34:56+19:00");
+		assertInvalid("2016-03-01T12:34:56+08:60");
+		assertInvalid("2016-00-01T00:00:00Z");
+		assertInvalid("2016-13-01T00:00:00Z");
+		assertInvalid("2016-04-31T00:00:00Z");
+		assertInvalid("2016-03-00T00:00:00Z");
+		assertInvalid("2015-02-29T00:00:00Z");
+		assertInvalid("1900-02-29T00:00:00Z");
+		assertInvalid("2016-03-01T24:00:00Z");
+		assertInvalid("2016-03-01T12:60:00Z");
+		assertInvalid("2016-03-01T12:34:60Z");
+	}
+
+	private static void assertSameAsLegacy(String text) throws ParseException {
+		assertEquals(text, legacyParse(text), IsoTimestampParser.parseMillis(text));
+	}
+
+	private static void assertInvalid(String text) {
+		try {
+			IsoTimestampParser.parseMillis(text);
+			fail("Accepted " + text);
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * The GMLToDBProcessor timestamp parsing before the IsoTimestampParser, as kept by the
+	 * TimestampParseBenchmark: a pattern picked by length, and a new SimpleDateFormat per call
+	 */
+	private static long legacyParse(String strTime) throws ParseException {
+		final String dateFormatPattern;
+		if (strTime.length() == 19) {
+			dateFormatPattern = "yyyy-MM-dd'T'HH:mm:ss";
+		} else if (strTime.length() <= 22) {
+			dateFormatPattern = "yyyy-MM-dd'T'HH:mm:ssX";
+		} else if (strTime.length() == 24) {
+			dateFormatPattern = "yyyy-MM-dd'T'HH:mm:ssXX";
+		} else if (strTime.length() == 25) {
+			dateFormatPattern = "yyyy-MM-dd'T'HH:mm:ssXXX";
+		} else {
+			throw new ParseException("timestamp did not fit any of the expected formats" + strTime, 0);
+		}
+		
+		return new SimpleDateFormat(dateFormatPattern, Locale.US).parse(strTime).getTime();
+	}
+}